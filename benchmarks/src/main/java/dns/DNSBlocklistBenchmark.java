@@ -0,0 +1,120 @@
+package dns;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blocklist lookups with a list of millions of entries: nine in ten block ad{i}.track{i % 50000}.example on its own,
+ * the rest block cdn{i}.example and every name below it. unlisted is what every query that isn't blocked pays for
+ * the blocklist being there. The memory the list takes up is printed once it has loaded.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class DNSBlocklistBenchmark {
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"1000000", "5000000"})
+    public int entries;
+
+    private Path file;
+
+    private DNSBlocklist blocklist;
+
+    private DNSQuestion[] listed = new DNSQuestion[SAMPLES]; // names blocked on their own
+
+    private DNSQuestion[] below = new DNSQuestion[SAMPLES]; // names below a blocked cdn{i}.example
+
+    private DNSQuestion[] unlisted = new DNSQuestion[SAMPLES]; // names that aren't blocked
+
+    /**
+     * One querying thread's position and response buffer
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private int next = ThreadLocalRandom.current().nextInt(SAMPLES);
+        private ByteBuffer out = ByteBuffer.allocateDirect(1232);
+
+        int nextName() {
+            return next++ & (SAMPLES - 1);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("dns-bench", ".blocklist");
+        try (BufferedWriter list = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < entries; ++i) {
+                list.write(i % 10 == 0 ? "||cdn" + i + ".example^\n"
+                        : "0.0.0.0 ad" + i + ".track" + i % 50000 + ".example\n");
+            }
+        }
+        blocklist = new DNSBlocklist(new String[]{file.toString()}, "nxdomain");
+        blocklist.load();
+        System.out.println("Blocklist of " + blocklist.getEntryCount() + " names takes " + blocklist.getMemoryBytes()
+                + " bytes, " + blocklist.getMemoryBytes() / blocklist.getEntryCount() + " an entry");
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < SAMPLES; ++i) {
+            int entry = random.nextInt(entries / 10) * 10;
+            listed[i] = DNSZoneBenchmark.question("ad" + (entry + 1) + ".track" + (entry + 1) % 50000 + ".example");
+            below[i] = DNSZoneBenchmark.question("img" + i + ".cdn" + entry + ".example");
+            unlisted[i] = DNSZoneBenchmark.question("www" + i + ".site" + random.nextInt(entries) + ".com");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        blocklist.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * A name on the list: the check and the NXDOMAIN copied into the outgoing buffer
+     */
+    @Benchmark
+    public int listed(Client client) {
+        client.out.clear();
+        return blocklist.writeResponse(listed[client.nextName()], 0x3c1a, client.out);
+    }
+
+    /**
+     * A name blocked because a name above it is, found by its suffix
+     */
+    @Benchmark
+    public int below(Client client) {
+        client.out.clear();
+        return blocklist.writeResponse(below[client.nextName()], 0x3c1a, client.out);
+    }
+
+    /**
+     * A name that isn't blocked: every suffix checked, nothing written
+     */
+    @Benchmark
+    public int unlisted(Client client) {
+        client.out.clear();
+        return blocklist.writeResponse(unlisted[client.nextName()], 0x3c1a, client.out);
+    }
+}
@@ -0,0 +1,139 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache lookups and inserts with Zipfian name popularity. The cache holds fewer entries than there are names, so
+ * the unpopular tail misses and churns the eviction lists the way a real query stream does. Every thread sharing
+ * the cache draws its own names; run with -t 1, -t 4, ... to see how it scales. Both cache stores are measured.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DNSCacheBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"100000"})
+    public int names;
+
+    @Param({"50000"})
+    public int cacheSize;
+
+    @Param({"0.99"})
+    public double skew;
+
+    @Param({"heap", "offheap"})
+    public String store;
+
+    private DNSCacheStore cache;
+
+    private DNSQuestion[] questions;
+
+    private DNSAnswer[] answers;
+
+    private DNSZipf zipf;
+
+    /**
+     * One querying thread's names and response buffer
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private int[] samples;
+        private int next;
+        private ByteBuffer out = ByteBuffer.allocateDirect(1232);
+
+        @Setup
+        public void setUp(DNSCacheBenchmark benchmark) {
+            samples = benchmark.zipf.sample(SAMPLES, ThreadLocalRandom.current().nextLong());
+        }
+
+        int nextName() {
+            return samples[next++ & (SAMPLES - 1)];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        questions = new DNSQuestion[names];
+        answers = new DNSAnswer[names];
+        for (int i = 0; i < names; ++i) {
+            DNSMessage response = DNSPackets.decodedResponse(i, 86400);
+            questions[i] = response.getQuestions()[0];
+            answers[i] = DNSAnswer.fromResponse(response, 3600);
+        }
+        zipf = new DNSZipf(names, skew);
+        cache = newCache(store, cacheSize);
+        for (int name : zipf.sample(names * 4, 1)) {
+            if (cache.get(questions[name]) == null) {
+                cache.addAnswer(questions[name], answers[name], false);
+            }
+        }
+    }
+
+    /**
+     * @param store - "heap" or "offheap"
+     * @param entries - most entries the cache holds
+     * @return - an empty cache with prefetching turned off and room for the entries
+     */
+    static DNSCacheStore newCache(String store, int entries) {
+        if (store.equals("offheap")) {
+            return new DNSOffHeapCache(entries, entries * 512L, Integer.MAX_VALUE, 0);
+        }
+        return new DNSCache(entries, Integer.MAX_VALUE, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+    }
+
+    /**
+     * A lookup that builds the answer objects, as TCP queries and EDNS requests with extra records use
+     */
+    @Benchmark
+    public DNSAnswer get(Client client) {
+        return cache.get(questions[client.nextName()]);
+    }
+
+    /**
+     * The UDP hit path: copy the pre-encoded response into the outgoing buffer
+     */
+    @Benchmark
+    public int writeResponse(Client client) {
+        client.out.clear();
+        return cache.writeResponse(questions[client.nextName()], 0x3c1a, client.out);
+    }
+
+    /**
+     * A lookup that inserts the answer when it misses, as if the upstream had answered at once
+     */
+    @Benchmark
+    public int getOrAdd(Client client) {
+        int name = client.nextName();
+        client.out.clear();
+        int written = cache.writeResponse(questions[name], 0x3c1a, client.out);
+        if (written == 0) {
+            cache.addAnswer(questions[name], answers[name], false);
+        }
+        return written;
+    }
+}
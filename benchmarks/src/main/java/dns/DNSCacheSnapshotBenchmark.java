@@ -0,0 +1,81 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long a restarted server takes to restore its cache, and how long a save holds the snapshot thread. Each
+ * measurement is one whole load into an empty cache, or one whole save.
+ */
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class DNSCacheSnapshotBenchmark {
+
+    @Param({"1000000"})
+    public int entries;
+
+    @Param({"heap", "offheap"})
+    public String store;
+
+    private DNSCacheStore cache;
+
+    private Path file;
+
+    private DNSCacheStore restored; // cache the last load went into
+
+    @Setup
+    public void setUp() throws IOException {
+        cache = DNSCacheBenchmark.newCache(store, entries);
+        for (int i = 0; i < entries; ++i) {
+            DNSMessage response = DNSPackets.decodedResponse(i, 86400);
+            cache.addAnswer(response.getQuestions()[0], DNSAnswer.fromResponse(response, 3600), false);
+        }
+        file = Files.createTempFile("dns-cache", ".snapshot");
+        new DNSCacheSnapshot(file, cache).save();
+    }
+
+    @TearDown(Level.Iteration)
+    public void dropRestored() {
+        if (restored != null) {
+            restored.close();
+            restored = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cache.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        restored = DNSCacheBenchmark.newCache(store, entries);
+        return new DNSCacheSnapshot(file, restored).load()[0];
+    }
+
+    @Benchmark
+    public int save() throws IOException {
+        return new DNSCacheSnapshot(file, cache).save();
+    }
+}
@@ -0,0 +1,126 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end latency of a cache hit: a client sends a query over loopback UDP to a running shard and waits for
+ * the answer. The cache is filled before measuring and nothing is ever asked upstream. Sample mode reports the
+ * latency percentiles; each thread is one client with one query in flight.
+ */
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DNSHitPathBenchmark {
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"10000"})
+    public int names;
+
+    @Param({"0.99"})
+    public double skew;
+
+    private DNSCache cache;
+
+    private DNSShard shard;
+
+    private InetSocketAddress server;
+
+    private DNSZipf zipf;
+
+    /**
+     * One client socket, with its queries encoded up front
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private DatagramChannel channel;
+        private ByteBuffer[] queries;
+        private ByteBuffer in = ByteBuffer.allocateDirect(1232);
+        private int next;
+
+        @Setup
+        public void setUp(DNSHitPathBenchmark benchmark) throws IOException {
+            channel = DatagramChannel.open();
+            channel.connect(benchmark.server);
+            queries = new ByteBuffer[SAMPLES];
+            int[] samples = benchmark.zipf.sample(SAMPLES, ThreadLocalRandom.current().nextLong());
+            for (int i = 0; i < SAMPLES; ++i) {
+                queries[i] = ByteBuffer.wrap(DNSPackets.query(samples[i], i));
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        int port;
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(0));
+            port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+        System.setProperty("dns.port", Integer.toString(port));
+        System.setProperty("dns.upstreams", "127.0.0.1");
+        System.setProperty("dns.upstreamLocalPort", "0");
+        System.setProperty("dns.snapshotFile", "");
+        DNSConfig config = DNSConfig.load();
+
+        cache = new DNSCache(names, Integer.MAX_VALUE, 0);
+        for (int i = 0; i < names; ++i) {
+            DNSMessage response = DNSPackets.decodedResponse(i, 86400);
+            cache.addAnswer(response.getQuestions()[0], DNSAnswer.fromResponse(response, 3600), false);
+        }
+        zipf = new DNSZipf(names, skew);
+        shard = new DNSShard(0, 1, config, cache, new DNSZoneStore(new String[0]),
+                new DNSBlocklist(new String[0], "nxdomain"), new DNSMetrics());
+        Thread loop = new Thread(() -> {
+            try {
+                shard.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "dns-shard-0");
+        loop.setDaemon(true);
+        loop.start();
+        server = new InetSocketAddress("127.0.0.1", port);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        shard.close();
+        cache.close();
+    }
+
+    @Benchmark
+    public int query(Client client) throws IOException {
+        ByteBuffer query = client.queries[client.next++ & (SAMPLES - 1)];
+        query.clear();
+        client.channel.write(query);
+        client.in.clear();
+        return client.channel.read(client.in);
+    }
+}
@@ -0,0 +1,449 @@
+package dns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a query mix against a running server and reports the throughput, latency percentiles and loss it saw.
+ * Names are drawn with Zipfian popularity from a fixed set, so after warming up the popular ones are cache hits;
+ * a configurable share of queries instead asks for a name never asked before, which always misses. Pair it with
+ * DNSStubUpstream as the server's upstream to test without network access.
+ *
+ * With --qps the generator is open loop: queries go out on a fixed schedule whether or not earlier ones have been
+ * answered, and latency is measured from when each query was due, so a stalled server shows up as latency rather
+ * than as fewer queries sent. Without --qps it is closed loop: --concurrency clients each send their next query as
+ * soon as the last one is answered or times out, which finds the highest throughput the server can sustain.
+ *
+ * java -cp benchmarks/target/benchmarks.jar dns.DNSLoadGenerator --server 127.0.0.1:8053 --qps 20000
+ *     --warmup 5 --duration 30 --names 100000 --skew 0.99 --miss-ratio 0.05 --types A:80,AAAA:15,MX:5
+ */
+
+public class DNSLoadGenerator {
+
+    private static final int SOCKETS = 8; // each has its own 16 bit ID space for queries in flight
+
+    private InetSocketAddress server;
+
+    private DNSZipf zipf;
+
+    private double missRatio;
+
+    private int[] types; // query type for each percent of queries
+
+    private long timeoutNanos;
+
+    private long runId = System.nanoTime() & 0xffffff; // keeps one run's miss names from hitting another's
+
+    private AtomicLong uniqueNames = new AtomicLong();
+
+    private AtomicLong sent = new AtomicLong();
+
+    private AtomicLong answered = new AtomicLong();
+
+    private AtomicLong[] rcodes = new AtomicLong[16];
+
+    private AtomicLong truncated = new AtomicLong();
+
+    private List<long[]> latencies = new ArrayList<>(); // one growing array per receiving thread, in microseconds
+
+    /**
+     * @param server - address of the server under test
+     * @param names - number of distinct names asked for
+     * @param skew - Zipf exponent of their popularity
+     * @param missRatio - share of queries for names never asked before
+     * @param typeMix - query types and their weights, e.g. A:80,AAAA:15,MX:5
+     * @param timeoutMillis - how long to wait for an answer before counting it lost
+     */
+    public DNSLoadGenerator(InetSocketAddress server, int names, double skew, double missRatio, String typeMix,
+                            int timeoutMillis) {
+        this.server = server;
+        this.zipf = new DNSZipf(names, skew);
+        this.missRatio = missRatio;
+        this.types = parseTypes(typeMix);
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+        for (int i = 0; i < rcodes.length; ++i) {
+            rcodes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Turns "A:80,AAAA:15,MX:5" into 100 slots of query types
+     * @param typeMix - types by name or number, each with a weight
+     * @return - type for each percent of queries
+     */
+    private static int[] parseTypes(String typeMix) {
+        String[] entries = typeMix.split(",");
+        int[] codes = new int[entries.length];
+        double[] weights = new double[entries.length];
+        double total = 0;
+        for (int i = 0; i < entries.length; ++i) {
+            String[] parts = entries[i].trim().split(":");
+            codes[i] = typeCode(parts[0]);
+            weights[i] = parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+            total += weights[i];
+        }
+        int[] slots = new int[100];
+        double cumulative = 0;
+        int slot = 0;
+        for (int i = 0; i < entries.length; ++i) {
+            cumulative += weights[i] / total * slots.length;
+            for (; slot < Math.round(cumulative) && slot < slots.length; ++slot) {
+                slots[slot] = codes[i];
+            }
+        }
+        for (; slot < slots.length; ++slot) {
+            slots[slot] = codes[codes.length - 1];
+        }
+        return slots;
+    }
+
+    /**
+     * @param name - type mnemonic or number
+     * @return - type code
+     */
+    private static int typeCode(String name) {
+        switch (name.toUpperCase()) {
+            case "A":
+                return DNSRecord.TYPE_A;
+            case "NS":
+                return DNSRecord.TYPE_NS;
+            case "CNAME":
+                return DNSRecord.TYPE_CNAME;
+            case "SOA":
+                return DNSRecord.TYPE_SOA;
+            case "PTR":
+                return DNSRecord.TYPE_PTR;
+            case "MX":
+                return DNSRecord.TYPE_MX;
+            case "TXT":
+                return 16;
+            case "AAAA":
+                return DNSRecord.TYPE_AAAA;
+            case "SRV":
+                return DNSRecord.TYPE_SRV;
+            default:
+                return Integer.parseInt(name);
+        }
+    }
+
+    /**
+     * Writes the next query of the mix: a popular name most of the time, a never asked one for the miss share
+     * @param out - buffer to write the query into, flipped when done
+     * @param id - transaction ID
+     * @param random - source of randomness for this thread
+     */
+    private void nextQuery(ByteBuffer out, int id, SplittableRandom random) {
+        String host = missRatio > 0 && random.nextDouble() < missRatio
+                ? "m" + uniqueNames.incrementAndGet() + "-" + runId
+                : "n" + zipf.next(random);
+        out.clear();
+        out.putShort((short) id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 1);
+        out.put((byte) host.length());
+        for (int i = 0; i < host.length(); ++i) {
+            out.put((byte) host.charAt(i));
+        }
+        out.put((byte) 4).put((byte) 'l').put((byte) 'o').put((byte) 'a').put((byte) 'd');
+        out.put((byte) 4).put((byte) 't').put((byte) 'e').put((byte) 's').put((byte) 't').put((byte) 0);
+        out.putShort((short) types[random.nextInt(types.length)]).putShort((short) 1);
+        out.put((byte) 0).putShort((short) DNSRecord.TYPE_OPT).putShort((short) 1232).putInt(0).putShort((short) 0);
+        out.flip();
+    }
+
+    /**
+     * Counts an answer
+     * @param answer - answer as received
+     * @param samples - the receiving thread's latency array
+     * @param count - samples in it so far
+     * @param micros - latency of this answer
+     * @return - the latency array, grown if it was full
+     */
+    private long[] record(ByteBuffer answer, long[] samples, int count, long micros) {
+        answered.incrementAndGet();
+        rcodes[answer.get(3) & 0x0f].incrementAndGet();
+        if ((answer.get(2) & 0x02) != 0) {
+            truncated.incrementAndGet();
+        }
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count] = micros;
+        return samples;
+    }
+
+    /**
+     * Sends queries on a fixed schedule for the duration, with one thread receiving the answers of each socket
+     * @param qps - queries per second to send
+     * @param durationNanos - how long to send for
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void runOpenLoop(int qps, long durationNanos) throws IOException, InterruptedException {
+        DatagramChannel[] channels = new DatagramChannel[SOCKETS];
+        AtomicLongArray[] due = new AtomicLongArray[SOCKETS]; // when each ID's query was due, 0 if none in flight
+        Thread[] receivers = new Thread[SOCKETS];
+        long[][] results = new long[SOCKETS][];
+        int[] counts = new int[SOCKETS];
+        for (int s = 0; s < SOCKETS; ++s) {
+            channels[s] = DatagramChannel.open();
+            channels[s].connect(server);
+            due[s] = new AtomicLongArray(65536);
+            int socket = s;
+            receivers[s] = new Thread(() -> {
+                ByteBuffer in = ByteBuffer.allocate(65535);
+                long[] samples = new long[1 << 16];
+                int count = 0;
+                while (true) {
+                    in.clear();
+                    try {
+                        channels[socket].read(in);
+                    } catch (IOException e) {
+                        break; // closed at the end of the run
+                    }
+                    long now = System.nanoTime();
+                    in.flip();
+                    if (in.remaining() < 12) {
+                        continue;
+                    }
+                    long dueAt = due[socket].getAndSet(in.getShort(0) & 0xffff, 0);
+                    if (dueAt != 0) {
+                        samples = record(in, samples, count++, (now - dueAt) / 1000);
+                    }
+                }
+                results[socket] = samples;
+                counts[socket] = count;
+            }, "dns-load-receive-" + s);
+            receivers[s].start();
+        }
+
+        SplittableRandom random = new SplittableRandom();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        int[] nextId = new int[SOCKETS];
+        long interval = 1_000_000_000L / qps;
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextSweep = start + timeoutNanos;
+        for (long n = 0; ; ++n) {
+            long dueAt = start + n * interval;
+            if (dueAt - end >= 0) {
+                break;
+            }
+            long wait = dueAt - System.nanoTime();
+            if (wait > 50_000) {
+                LockSupport.parkNanos(wait - 20_000);
+            }
+            while (System.nanoTime() - dueAt < 0) {
+                Thread.onSpinWait();
+            }
+            int socket = (int) (n % SOCKETS);
+            int id = nextId[socket]++ & 0xffff;
+            due[socket].set(id, dueAt); // an ID still in flight after 65536 more queries is given up on
+            nextQuery(out, id, random);
+            channels[socket].write(out);
+            sent.incrementAndGet();
+            if (dueAt - nextSweep >= 0) {
+                sweep(due, dueAt);
+                nextSweep = dueAt + timeoutNanos / 4;
+            }
+        }
+        Thread.sleep(timeoutNanos / 1_000_000);
+        sweep(due, System.nanoTime());
+        for (int s = 0; s < SOCKETS; ++s) {
+            channels[s].close();
+        }
+        for (int s = 0; s < SOCKETS; ++s) {
+            receivers[s].join();
+            latencies.add(Arrays.copyOf(results[s], counts[s]));
+        }
+    }
+
+    /**
+     * Forgets queries that have been waiting longer than the timeout, so answers arriving later aren't counted
+     * @param due - due time of the query in flight for each ID of each socket
+     * @param now - current System.nanoTime()
+     */
+    private void sweep(AtomicLongArray[] due, long now) {
+        for (AtomicLongArray ids : due) {
+            for (int id = 0; id < ids.length(); ++id) {
+                long dueAt = ids.get(id);
+                if (dueAt != 0 && now - dueAt > timeoutNanos) {
+                    ids.compareAndSet(id, dueAt, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs clients that each wait for an answer before sending their next query
+     * @param concurrency - number of clients
+     * @param durationNanos - how long to run for
+     * @throws InterruptedException
+     */
+    public void runClosedLoop(int concurrency, long durationNanos) throws InterruptedException {
+        Thread[] clients = new Thread[concurrency];
+        long[][] results = new long[concurrency][];
+        int[] counts = new int[concurrency];
+        long end = System.nanoTime() + durationNanos;
+        for (int c = 0; c < concurrency; ++c) {
+            int client = c;
+            clients[c] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom();
+                ByteBuffer out = ByteBuffer.allocate(512);
+                ByteBuffer in = ByteBuffer.allocate(65535);
+                long[] samples = new long[1 << 16];
+                int count = 0;
+                try (DatagramChannel channel = DatagramChannel.open()) {
+                    channel.connect(server);
+                    channel.socket().setSoTimeout((int) (timeoutNanos / 1_000_000));
+                    int id = 0;
+                    while (System.nanoTime() - end < 0) {
+                        id = (id + 1) & 0xffff;
+                        nextQuery(out, id, random);
+                        long sentAt = System.nanoTime();
+                        channel.write(out);
+                        sent.incrementAndGet();
+                        if (awaitAnswer(channel, in, id, sentAt)) {
+                            samples = record(in, samples, count++, (System.nanoTime() - sentAt) / 1000);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                results[client] = samples;
+                counts[client] = count;
+            }, "dns-load-client-" + c);
+            clients[c].start();
+        }
+        for (int c = 0; c < concurrency; ++c) {
+            clients[c].join();
+            latencies.add(Arrays.copyOf(results[c], counts[c]));
+        }
+    }
+
+    /**
+     * Waits for the answer to a query, skipping late answers to earlier ones
+     * @param channel - client socket
+     * @param in - buffer the answer is read into
+     * @param id - ID of the query
+     * @param sentAt - System.nanoTime() the query was sent
+     * @return - whether the answer arrived before the timeout
+     * @throws IOException
+     */
+    private boolean awaitAnswer(DatagramChannel channel, ByteBuffer in, int id, long sentAt) throws IOException {
+        byte[] buffer = in.array();
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (System.nanoTime() - sentAt < timeoutNanos) {
+            try {
+                channel.socket().receive(packet);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            in.clear().limit(packet.getLength());
+            if (packet.getLength() >= 12 && (in.getShort(0) & 0xffff) == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Prints what the run achieved
+     * @param durationNanos - how long queries were sent for
+     */
+    public void report(long durationNanos) {
+        int total = 0;
+        for (long[] samples : latencies) {
+            total += samples.length;
+        }
+        long[] all = new long[total];
+        int at = 0;
+        for (long[] samples : latencies) {
+            System.arraycopy(samples, 0, all, at, samples.length);
+            at += samples.length;
+        }
+        Arrays.sort(all);
+        double seconds = durationNanos / 1e9;
+        long lost = sent.get() - answered.get();
+        System.out.printf("sent %d, answered %d, lost %d (%.3f%%)%n", sent.get(), answered.get(), lost,
+                sent.get() == 0 ? 0.0 : 100.0 * lost / sent.get());
+        System.out.printf("qps sent %.0f, answered %.0f%n", sent.get() / seconds, answered.get() / seconds);
+        System.out.printf("latency ms p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n", percentile(all, 0.5),
+                percentile(all, 0.99), percentile(all, 0.999), all.length == 0 ? 0.0 : all[all.length - 1] / 1000.0);
+        StringBuilder codes = new StringBuilder("rcodes");
+        for (int rcode = 0; rcode < rcodes.length; ++rcode) {
+            if (rcodes[rcode].get() > 0) {
+                codes.append(' ').append(rcode).append(':').append(rcodes[rcode].get());
+            }
+        }
+        System.out.println(codes + ", truncated " + truncated.get());
+    }
+
+    /**
+     * @param sorted - latencies in microseconds, sorted
+     * @param fraction - which percentile, e.g. 0.99
+     * @return - that percentile in milliseconds
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * fraction) - 1)] / 1000.0;
+    }
+
+    /**
+     * Runs for the duration at the given rate, or closed loop when qps is 0
+     * @param qps - queries per second, 0 for closed loop
+     * @param concurrency - clients in closed loop
+     * @param durationNanos - how long to run for
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run(int qps, int concurrency, long durationNanos) throws IOException, InterruptedException {
+        if (qps > 0) {
+            runOpenLoop(qps, durationNanos);
+        } else {
+            runClosedLoop(concurrency, durationNanos);
+        }
+    }
+
+    /**
+     * @param options - command line options
+     * @return - generator configured from them
+     */
+    private static DNSLoadGenerator fromOptions(Map<String, String> options) {
+        String[] server = options.getOrDefault("server", "127.0.0.1:8053").split(":");
+        return new DNSLoadGenerator(
+                new InetSocketAddress(server[0], Integer.parseInt(server[1])),
+                Integer.parseInt(options.getOrDefault("names", "100000")),
+                Double.parseDouble(options.getOrDefault("skew", "0.99")),
+                Double.parseDouble(options.getOrDefault("miss-ratio", "0.05")),
+                options.getOrDefault("types", "A:80,AAAA:15,MX:5"),
+                Integer.parseInt(options.getOrDefault("timeout-ms", "2000")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = DNSStubUpstream.parseOptions(args);
+        int qps = Integer.parseInt(options.getOrDefault("qps", "0"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        long warmupNanos = Long.parseLong(options.getOrDefault("warmup", "5")) * 1_000_000_000L;
+        long durationNanos = Long.parseLong(options.getOrDefault("duration", "30")) * 1_000_000_000L;
+        if (warmupNanos > 0) {
+            fromOptions(options).run(qps, concurrency, warmupNanos); // fills the cache, results thrown away
+        }
+        DNSLoadGenerator generator = fromOptions(options);
+        generator.run(qps, concurrency, durationNanos);
+        generator.report(durationNanos);
+    }
+}
@@ -0,0 +1,114 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and encoding of whole messages and their parts, once per packet in DNSPackets. Run with -prof gc to
+ * see the allocation each one costs.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DNSMessageBenchmark {
+
+    @Param({"QUERY", "CNAME", "CDN", "MX", "NXDOMAIN"})
+    public String packet;
+
+    private byte[] wire;
+
+    private ByteBuffer wireBuffer;
+
+    private DNSMessage decoded;
+
+    private DNSMessage reader; // the same packet left undecoded, for reading single names
+
+    private DNSMessage request;
+
+    private DNSAnswer answer;
+
+    private DNSRecord opt;
+
+    private int firstRecordOffset; // owner of the first record, a compression pointer in every packet but QUERY
+
+    @Setup
+    public void setUp() throws IOException {
+        wire = DNSPackets.byName(packet);
+        wireBuffer = ByteBuffer.wrap(wire);
+        decoded = DNSMessage.decodeMessage(wire, wire.length);
+        request = DNSMessage.decodeMessage(DNSPackets.QUERY, DNSPackets.QUERY.length);
+        answer = DNSAnswer.fromResponse(decoded, 3600);
+        opt = DNSRecord.buildOpt(1232);
+        reader = DNSMessage.wrap(ByteBuffer.wrap(wire));
+        reader.setPosition(12);
+        reader.readName();
+        firstRecordOffset = reader.getPosition() + 4;
+    }
+
+    @Benchmark
+    public DNSMessage decodeMessage() throws IOException {
+        return DNSMessage.decodeMessage(wire, wire.length);
+    }
+
+    @Benchmark
+    public DNSHeader decodeHeader() throws IOException {
+        wireBuffer.clear();
+        return DNSHeader.decodeHeader(wireBuffer);
+    }
+
+    @Benchmark
+    public byte[] readQuestionName() throws IOException {
+        reader.setPosition(12);
+        return reader.readName();
+    }
+
+    @Benchmark
+    public byte[] readFirstRecordName() throws IOException {
+        reader.setPosition(firstRecordOffset);
+        return reader.readName();
+    }
+
+    /**
+     * Re-encodes the decoded packet with name compression into a new array
+     */
+    @Benchmark
+    public byte[] toBytes() {
+        return decoded.toBytes();
+    }
+
+    /**
+     * Encodes the decoded packet into the thread's encoder, the way responses are sent without copying
+     */
+    @Benchmark
+    public int writeTo() {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        decoded.writeTo(encoder);
+        return encoder.position();
+    }
+
+    /**
+     * What a cache miss costs once the upstream has answered: build the client's response and encode it
+     */
+    @Benchmark
+    public int buildAndEncodeResponse() {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        DNSMessage.buildResponse(request, answer, opt).writeTo(encoder);
+        return encoder.position();
+    }
+}
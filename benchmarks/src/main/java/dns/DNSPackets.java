@@ -0,0 +1,153 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packets the benchmarks decode and encode, shaped like what real resolvers send: names compressed wherever
+ * they repeat, EDNS0 on every message, and a spread of sizes from a bare query to a CDN answer with authority and
+ * glue. Also builds uncompressed responses for any number of distinct names to fill caches with.
+ */
+
+public class DNSPackets {
+
+    /**
+     * A query as dig sends it: EDNS0 with a client cookie (56 bytes)
+     */
+    static final byte[] QUERY = hex("3c1a0120000100000000000103777777076578616d706c6503636f6d000001000100002904d000000000000c000a0008"
+            + "9ad3c2e1f0a4b5c6");
+
+    /**
+     * A CNAME to the apex and its address (73 bytes)
+     */
+    static final byte[] CNAME = hex("3c1a81800001000200000001037777770667697468756203636f6d0000010001c00c0005000100000e100002c010c010"
+            + "000100010000003c00048c52790400002904d0000000000000");
+
+    /**
+     * A CDN answer: two CNAMEs, eight addresses, four NS records in authority and their glue (444 bytes)
+     */
+    static final byte[] CDN = hex("3c1a81800001000a000400050377777706616d617a6f6e03636f6d0000010001c00c0005000100000708001802747012"
+            + "3437636632633863392d66726f6e74696572c010c02c000500010000003c001f0e643361673468756b6b683632796e0a"
+            + "636c6f756466726f6e74036e657400c050000100010000003c0004129a0007c050000100010000003c0004129a0108c0"
+            + "50000100010000003c0004129a0209c050000100010000003c0004129a030ac050000100010000003c0004129a040bc0"
+            + "50000100010000003c0004129a050cc050000100010000003c0004129a060dc050000100010000003c0004129a070ec0"
+            + "5f00020001000151800014046e732d3109617773646e732d3033036f726700c05f00020001000151800018066e732d32"
+            + "353109617773646e732d313302636f02756b00c05f00020001000151800013066e732d35303109617773646e732d3233"
+            + "c017c05f00020001000151800013066e732d37353109617773646e732d3333c06ac0fb00010001000151800004cdfbc0"
+            + "01c11b00010001000151800004cdfbc102c13f00010001000151800004cdfbc203c15e00010001000151800004cdfbc3"
+            + "0400002904d0000000000000");
+
+    /**
+     * Five MX records whose exchange names are compressed against each other (161 bytes)
+     */
+    static final byte[] MX = hex("3c1a8180000100050000000105676d61696c03636f6d00000f0001c00c000f000100000e10001b00050d676d61696c2d"
+            + "736d74702d696e016c06676f6f676c65c012c00c000f000100000e100009000a04616c7431c029c00c000f000100000e"
+            + "100009001404616c7432c029c00c000f000100000e100009001e04616c7433c029c00c000f000100000e100009002804"
+            + "616c7434c02900002904d0000000000000");
+
+    /**
+     * NXDOMAIN with the zone SOA in authority (105 bytes)
+     */
+    static final byte[] NXDOMAIN = hex("3c1a818300010000000100010b6e6f6e6578697374656e74076578616d706c65036f72670000010001c0180006000100"
+            + "000e100029026e73056963616e6ec020036e6f6303646e73c03878a5082c00001c2000000e100012750000000e100000"
+            + "2904d0000000000000");
+
+    /**
+     * Every packet above by name, for @Param driven benchmarks
+     * @param name - QUERY, CNAME, CDN, MX or NXDOMAIN
+     * @return - the packet
+     */
+    static byte[] byName(String name) {
+        switch (name) {
+            case "QUERY":
+                return QUERY;
+            case "CNAME":
+                return CNAME;
+            case "CDN":
+                return CDN;
+            case "MX":
+                return MX;
+            case "NXDOMAIN":
+                return NXDOMAIN;
+            default:
+                throw new IllegalArgumentException("No packet called " + name);
+        }
+    }
+
+    /**
+     * Builds the response for host{index}.bench.example with two A records, the kind of entry a cache is full of
+     * @param index - which name
+     * @param ttl - TTL of the records in seconds
+     * @return - the response in wire format
+     */
+    static byte[] response(int index, int ttl) {
+        byte[] name = name(index);
+        ByteBuffer wire = ByteBuffer.allocate(12 + name.length + 4 + 2 * (name.length + 14));
+        wire.putShort((short) index).putShort((short) 0x8180).putShort((short) 1).putShort((short) 2)
+                .putShort((short) 0).putShort((short) 0);
+        wire.put(name).putShort((short) DNSRecord.TYPE_A).putShort((short) 1);
+        for (int i = 0; i < 2; ++i) {
+            wire.put(name).putShort((short) DNSRecord.TYPE_A).putShort((short) 1).putInt(ttl).putShort((short) 4);
+            wire.put((byte) 10).put((byte) i).put((byte) (index >> 8)).put((byte) index);
+        }
+        return wire.array();
+    }
+
+    /**
+     * Builds the query a client sends for host{index}.bench.example, with EDNS0
+     * @param index - which name
+     * @param id - transaction ID
+     * @return - the query in wire format
+     */
+    static byte[] query(int index, int id) {
+        byte[] name = name(index);
+        ByteBuffer wire = ByteBuffer.allocate(12 + name.length + 4 + 11);
+        wire.putShort((short) id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 1);
+        wire.put(name).putShort((short) DNSRecord.TYPE_A).putShort((short) 1);
+        wire.put((byte) 0).putShort((short) DNSRecord.TYPE_OPT).putShort((short) 1232).putInt(0).putShort((short) 0);
+        return wire.array();
+    }
+
+    /**
+     * Decodes a response built by response() into the question and answer the cache stores
+     * @param index - which name
+     * @param ttl - TTL of the records in seconds
+     * @return - the decoded response
+     */
+    static DNSMessage decodedResponse(int index, int ttl) {
+        byte[] wire = response(index, ttl);
+        try {
+            return DNSMessage.decodeMessage(wire, wire.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param index - which name
+     * @return - host{index}.bench.example in wire format
+     */
+    private static byte[] name(int index) {
+        String host = "host" + index;
+        ByteBuffer name = ByteBuffer.allocate(1 + host.length() + 15);
+        name.put((byte) host.length());
+        for (int i = 0; i < host.length(); ++i) {
+            name.put((byte) host.charAt(i));
+        }
+        name.put((byte) 5).put("bench".getBytes()).put((byte) 7).put("example".getBytes()).put((byte) 0);
+        return name.array();
+    }
+
+    /**
+     * @param hex - bytes as hex digits
+     * @return - the bytes
+     */
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,54 @@
+package dns;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Draws name indexes with Zipfian popularity, the way real query streams look: the name of rank k is asked
+ * 1/k^skew as often as the most popular one. Samples are drawn up front so the benchmarks measure the cache, not
+ * the random number generator.
+ */
+
+public class DNSZipf {
+
+    private double[] cumulative; // cumulative probability of ranks 0..i
+
+    /**
+     * @param names - number of distinct names
+     * @param skew - Zipf exponent, around 1 for DNS traffic; 0 makes every name equally popular
+     */
+    public DNSZipf(int names, double skew) {
+        cumulative = new double[names];
+        double total = 0;
+        for (int i = 0; i < names; ++i) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < names; ++i) {
+            cumulative[i] /= total;
+        }
+    }
+
+    /**
+     * @param random - source of randomness
+     * @return - index of the next name asked for, 0 being the most popular
+     */
+    public int next(SplittableRandom random) {
+        int found = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(found >= 0 ? found : -found - 1, cumulative.length - 1);
+    }
+
+    /**
+     * @param count - number of samples
+     * @param seed - seed for the samples
+     * @return - that many name indexes
+     */
+    public int[] sample(int count, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] samples = new int[count];
+        for (int i = 0; i < count; ++i) {
+            samples[i] = next(random);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,169 @@
+package dns;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in the local zones with a large zone loaded: host{i}.bench.example A records, alias{i} CNAMEs to them and
+ * a wildcard under wild.bench.example. Names are drawn uniformly, so most lookups miss the CPU caches the way a big
+ * zone does in practice. outsideZones is what every forwarded query pays for the zones being there at all.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class DNSZoneBenchmark {
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"1000000"})
+    public int records;
+
+    private Path file;
+
+    private DNSZoneStore zones;
+
+    private DNSQuestion[] hosts; // host{i}.bench.example A
+
+    private DNSQuestion[] aliases; // alias{i}.bench.example A, answered by following the CNAME
+
+    private DNSQuestion[] wildcards; // w{i}.wild.bench.example A, synthesised from *.wild
+
+    private DNSQuestion[] missing; // none{i}.bench.example A, NXDOMAIN
+
+    private DNSQuestion[] outside; // host{i}.bench.other A, under no zone
+
+    /**
+     * One querying thread's draws and response buffer
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private int[] samples = new int[SAMPLES];
+        private int next;
+        private ByteBuffer out = ByteBuffer.allocateDirect(1232);
+
+        @Setup
+        public void setUp(DNSZoneBenchmark benchmark) {
+            for (int i = 0; i < SAMPLES; ++i) {
+                samples[i] = ThreadLocalRandom.current().nextInt(benchmark.records);
+            }
+        }
+
+        int nextName() {
+            return samples[next++ & (SAMPLES - 1)];
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("dns-bench", ".zone");
+        try (BufferedWriter zone = Files.newBufferedWriter(file)) {
+            zone.write("$ORIGIN bench.example.\n$TTL 3600\n");
+            zone.write("@ IN SOA ns1 hostmaster 1 7200 900 1209600 60\n");
+            zone.write("@ IN NS ns1\nns1 IN A 10.255.255.1\n*.wild IN A 10.255.255.2\n");
+            for (int i = 0; i < records; ++i) {
+                zone.write("host" + i + " IN A 10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff)
+                        + "\nalias" + i + " IN CNAME host" + i + "\n");
+            }
+        }
+        zones = new DNSZoneStore(new String[]{file.toString()});
+        zones.load();
+
+        int count = Math.min(records, SAMPLES);
+        hosts = new DNSQuestion[records];
+        aliases = new DNSQuestion[records];
+        wildcards = new DNSQuestion[records];
+        missing = new DNSQuestion[records];
+        outside = new DNSQuestion[records];
+        for (int i = 0; i < records; ++i) {
+            hosts[i] = question("host" + i + ".bench.example");
+            aliases[i] = question("alias" + i + ".bench.example");
+            wildcards[i] = i < count ? question("w" + i + ".wild.bench.example") : wildcards[i % count];
+            missing[i] = i < count ? question("none" + i + ".bench.example") : missing[i % count];
+            outside[i] = i < count ? question("host" + i + ".bench.other") : outside[i % count];
+        }
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - an A/IN question for the name
+     */
+    static DNSQuestion question(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return DNSQuestion.forName(wire.array(), DNSRecord.TYPE_A, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        zones.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * The UDP fast path: copy the pre-encoded answer for an existing name into the outgoing buffer
+     */
+    @Benchmark
+    public int writeResponse(Client client) {
+        client.out.clear();
+        return zones.writeResponse(hosts[client.nextName()], 0x3c1a, client.out);
+    }
+
+    /**
+     * A CNAME resolved inside the zone, also pre-encoded
+     */
+    @Benchmark
+    public int writeCnameResponse(Client client) {
+        client.out.clear();
+        return zones.writeResponse(aliases[client.nextName()], 0x3c1a, client.out);
+    }
+
+    /**
+     * A name synthesised from the wildcard, built as objects
+     */
+    @Benchmark
+    public DNSAnswer getWildcard(Client client) {
+        return zones.get(wildcards[client.nextName()]);
+    }
+
+    /**
+     * NXDOMAIN with the SOA, built as objects
+     */
+    @Benchmark
+    public DNSAnswer getMissing(Client client) {
+        return zones.get(missing[client.nextName()]);
+    }
+
+    /**
+     * A name under no zone: both zone checks a forwarded query goes through before the cache
+     */
+    @Benchmark
+    public DNSAnswer outsideZones(Client client) {
+        client.out.clear();
+        DNSQuestion question = outside[client.nextName()];
+        return zones.writeResponse(question, 0x3c1a, client.out) == 0 ? zones.get(question) : null;
+    }
+}
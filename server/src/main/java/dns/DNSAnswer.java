@@ -0,0 +1,305 @@
+package dns;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * What we tell a client about one question: the response code, the answer section and the authority section.
+ * This is the unit the cache stores. A positive answer carries the answer records; a negative answer (NXDOMAIN,
+ * or NOERROR with no answers, i.e. NODATA) carries the zone's SOA record in its authority section as RFC 2308
+ * requires, and lives for the SOA's negative TTL.
+ */
+
+public class DNSAnswer {
+
+    static final int RCODE_NOERROR = 0;
+
+    static final int RCODE_SERVFAIL = 2;
+
+    static final int RCODE_NXDOMAIN = 3;
+
+    static final int RCODE_REFUSED = 5;
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private int rcode;
+
+    private DNSRecord[] answers;
+
+    private DNSRecord[] authorities;
+
+    private long retirement; // System.nanoTime() the answer stops being valid, 0 if it can't be cached
+
+    private boolean cacheable;
+
+    private boolean truncated; // the upstream set TC, the records may be incomplete
+
+    private boolean authoritative; // answered from a local zone, sent with AA set
+
+    private byte[] chaseName; // CNAME target outside the local zones that still has to be resolved, null if none
+
+    /**
+     * Pulls the answer out of an upstream response. Positive answers retire with their shortest lived record.
+     * Negative answers retire after min(SOA TTL, SOA MINIMUM, negativeTtlCap) seconds; without an SOA they are
+     * relayed but not cached. Other response codes (SERVFAIL, REFUSED, ...) and truncated responses are never
+     * cached.
+     * @param response - decoded upstream response
+     * @param negativeTtlCap - longest a negative answer may be cached, in seconds
+     * @return - answer to relay, check isCacheable() before storing it
+     */
+    static DNSAnswer fromResponse(DNSMessage response, long negativeTtlCap) {
+        DNSAnswer answer = new DNSAnswer();
+        answer.rcode = response.getHeader().getRcode();
+        answer.answers = response.getAnswers();
+        answer.authorities = response.getAuthorities();
+        answer.truncated = response.getHeader().isTruncated();
+
+        if (answer.truncated) {
+            return answer; // the upstream couldn't be asked over TCP, UDP clients get TC and retry over TCP themselves
+        }
+        if (answer.rcode == RCODE_NOERROR && answer.answers.length > 0) {
+            answer.cacheable = true;
+            answer.retirement = answer.answers[0].getRetirement();
+            for (DNSRecord record : answer.answers) {
+                if (record.getRetirement() - answer.retirement < 0) {
+                    answer.retirement = record.getRetirement();
+                }
+            }
+            answer.authorities = NO_RECORDS; // referral data isn't needed to answer from cache
+        } else if (answer.rcode == RCODE_NOERROR || answer.rcode == RCODE_NXDOMAIN) {
+            for (DNSRecord record : answer.authorities) {
+                if (record.getType() == DNSRecord.TYPE_SOA) {
+                    long negativeTtl = Math.min(Math.min(record.getTtl(), record.getSoaMinimum()), negativeTtlCap);
+                    DNSRecord soa = record.withLifespan(negativeTtl, System.nanoTime());
+                    answer.authorities = new DNSRecord[] {soa};
+                    answer.retirement = soa.getRetirement();
+                    answer.cacheable = negativeTtl > 0;
+                    break;
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Copy of this answer with every record's TTL rewritten to the time it has left
+     * @param now - current System.nanoTime()
+     * @return - answer ready to send to a client
+     */
+    DNSAnswer withRemainingTtl(long now) {
+        DNSAnswer copy = new DNSAnswer();
+        copy.rcode = rcode;
+        copy.retirement = retirement;
+        copy.cacheable = cacheable;
+        copy.truncated = truncated;
+        copy.answers = new DNSRecord[answers.length];
+        for (int i = 0; i < answers.length; ++i) {
+            copy.answers[i] = answers[i].withRemainingTtl(now);
+        }
+        copy.authorities = new DNSRecord[authorities.length];
+        for (int i = 0; i < authorities.length; ++i) {
+            copy.authorities[i] = authorities[i].withRemainingTtl(now);
+        }
+        return copy;
+    }
+
+    /**
+     * Copy of an expired answer for serving stale (RFC 8767): every record gets the same short TTL, so clients
+     * come back soon and find a fresh answer once the upstream recovers
+     * @param staleTtl - TTL of every record, in seconds
+     * @param now - current System.nanoTime()
+     * @return - answer ready to send to a client, not cacheable
+     */
+    DNSAnswer withStaleTtl(long staleTtl, long now) {
+        DNSAnswer copy = new DNSAnswer();
+        copy.rcode = rcode;
+        copy.retirement = now + staleTtl * 1_000_000_000L;
+        copy.answers = new DNSRecord[answers.length];
+        for (int i = 0; i < answers.length; ++i) {
+            copy.answers[i] = answers[i].withLifespan(staleTtl, now);
+        }
+        copy.authorities = new DNSRecord[authorities.length];
+        for (int i = 0; i < authorities.length; ++i) {
+            copy.authorities[i] = authorities[i].withLifespan(staleTtl, now);
+        }
+        return copy;
+    }
+
+    /**
+     * @param rcode - response code, e.g. RCODE_SERVFAIL
+     * @return - an answer with no records that is never cached, for when we have nothing better to say
+     */
+    static DNSAnswer failure(int rcode) {
+        DNSAnswer answer = new DNSAnswer();
+        answer.rcode = rcode;
+        answer.answers = NO_RECORDS;
+        answer.authorities = NO_RECORDS;
+        return answer;
+    }
+
+    /**
+     * Builds an answer from local zone data. It is never cached; the zone is the source of truth.
+     * @param rcode - response code, NOERROR or NXDOMAIN
+     * @param answers - answer section
+     * @param authorities - authority section, the zone's SOA for a negative answer
+     * @param chaseName - where a CNAME chain leaves the local zones, or null if the answer is complete
+     * @return - the answer, with AA set when sent
+     */
+    static DNSAnswer authoritative(int rcode, DNSRecord[] answers, DNSRecord[] authorities, byte[] chaseName) {
+        DNSAnswer answer = new DNSAnswer();
+        answer.rcode = rcode;
+        answer.answers = answers;
+        answer.authorities = authorities;
+        answer.authoritative = true;
+        answer.chaseName = chaseName;
+        return answer;
+    }
+
+    /**
+     * Builds the answer given for a name on the blocklist. It is never cached.
+     * @param rcode - NXDOMAIN, or NOERROR for an address that goes nowhere or no records at all
+     * @param answers - 0.0.0.0 or :: for the name, or none
+     * @return - the answer
+     */
+    static DNSAnswer blocked(int rcode, DNSRecord[] answers) {
+        DNSAnswer answer = new DNSAnswer();
+        answer.rcode = rcode;
+        answer.answers = answers;
+        answer.authorities = NO_RECORDS;
+        return answer;
+    }
+
+    /**
+     * Joins a local CNAME chain to the answer for the name it points at. The answer's response code and authority
+     * section are the ones that apply to the end of the chain (RFC 6604).
+     * @param rest - answer for the chain's target, from the cache or the upstream
+     * @return - the chain followed by the target's records, not cached
+     */
+    DNSAnswer followedBy(DNSAnswer rest) {
+        DNSRecord[] joined = new DNSRecord[answers.length + rest.answers.length];
+        System.arraycopy(answers, 0, joined, 0, answers.length);
+        System.arraycopy(rest.answers, 0, joined, answers.length, rest.answers.length);
+        DNSAnswer answer = authoritative(rest.rcode, joined, rest.authorities, null);
+        answer.truncated = rest.truncated;
+        return answer;
+    }
+
+    /**
+     * Writes a cacheable answer to a cache snapshot
+     * @param out - snapshot being written
+     * @param question - question the answer is for
+     * @param now - current System.nanoTime()
+     * @param wallNow - current System.currentTimeMillis()
+     * @throws IOException
+     */
+    void writeSnapshot(DataOutput out, DNSQuestion question, long now, long wallNow) throws IOException {
+        out.writeByte(rcode);
+        out.writeShort(answers.length);
+        out.writeShort(authorities.length);
+        for (DNSRecord record : answers) {
+            record.writeSnapshot(out, question, now, wallNow);
+        }
+        for (DNSRecord record : authorities) {
+            record.writeSnapshot(out, question, now, wallNow);
+        }
+    }
+
+    /**
+     * Reads back an answer written by writeSnapshot. It retires with its shortest lived record, which for a
+     * negative answer is its SOA, the same as when it first came from upstream.
+     * @param in - snapshot being read
+     * @param question - question the answer is for
+     * @param now - current System.nanoTime()
+     * @param wallNow - current System.currentTimeMillis()
+     * @return - the answer, not cacheable if it has already retired
+     */
+    static DNSAnswer readSnapshot(ByteBuffer in, DNSQuestion question, long now, long wallNow) {
+        DNSAnswer answer = new DNSAnswer();
+        answer.rcode = in.get() & 0xff;
+        answer.answers = new DNSRecord[in.getShort() & 0xffff];
+        answer.authorities = new DNSRecord[in.getShort() & 0xffff];
+        answer.retirement = Long.MAX_VALUE;
+        for (int i = 0; i < answer.answers.length; ++i) {
+            answer.answers[i] = DNSRecord.readSnapshot(in, question, now, wallNow);
+            answer.retireBy(answer.answers[i]);
+        }
+        for (int i = 0; i < answer.authorities.length; ++i) {
+            answer.authorities[i] = DNSRecord.readSnapshot(in, question, now, wallNow);
+            answer.retireBy(answer.authorities[i]);
+        }
+        answer.cacheable = answer.answers.length + answer.authorities.length > 0 && answer.retirement - now > 0;
+        return answer;
+    }
+
+    /**
+     * @param record - record this answer must not outlive
+     */
+    private void retireBy(DNSRecord record) {
+        if (retirement == Long.MAX_VALUE || record.getRetirement() - retirement < 0) {
+            retirement = record.getRetirement();
+        }
+    }
+
+    public int getRcode() {
+        return rcode;
+    }
+
+    public DNSRecord[] getAnswers() {
+        return answers;
+    }
+
+    public DNSRecord[] getAuthorities() {
+        return authorities;
+    }
+
+    /**
+     * @return - System.nanoTime() at which this answer stops being valid
+     */
+    long getRetirement() {
+        return retirement;
+    }
+
+    /**
+     * @return - whether this answer may be stored in the cache
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    /**
+     * @return - whether the upstream response this came from was truncated
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return - whether this answer comes from a local zone
+     */
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    /**
+     * @return - name a local CNAME chain points at outside the local zones, in wire format, or null if the
+     * answer is complete
+     */
+    byte[] getChaseName() {
+        return chaseName;
+    }
+
+    /**
+     * @return - whether this is an NXDOMAIN or NODATA answer
+     */
+    public boolean isNegative() {
+        return answers.length == 0;
+    }
+
+    /**
+     * @return - whether the upstream failed to resolve the question rather than answering it (SERVFAIL, REFUSED)
+     */
+    public boolean isServerFailure() {
+        return rcode == RCODE_SERVFAIL || rcode == RCODE_REFUSED;
+    }
+}
@@ -0,0 +1,90 @@
+package dns;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of direct buffers for datagrams, each paired with the address it came from or goes to. Buffers are
+ * allocated once up front and handed around between the receive loop and the workers, so the transport creates
+ * no garbage per packet. Direct buffers let the channel read and write without copying through the heap.
+ * When the pool runs dry acquire() returns null and the caller drops the packet, as a full socket buffer would.
+ */
+
+public class DNSBufferPool {
+
+    private ArrayBlockingQueue<Datagram> free;
+
+    private int bufferSize;
+
+    private AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * One pooled datagram
+     */
+    static class Datagram {
+        final ByteBuffer data;
+        SocketAddress peer; // sender of a request, destination of a response
+        long receivedAt; // System.nanoTime() when a request was read off the socket
+
+        private Datagram(int size) {
+            data = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * @param buffers - number of datagrams in the pool
+     * @param bufferSize - size of each buffer, the largest datagram that can be carried
+     */
+    public DNSBufferPool(int buffers, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; ++i) {
+            free.add(new Datagram(bufferSize));
+        }
+    }
+
+    /**
+     * @return - a cleared datagram, or null if every buffer is in use
+     */
+    Datagram acquire() {
+        Datagram datagram = free.poll();
+        if (datagram == null) {
+            exhausted.incrementAndGet();
+            return null;
+        }
+        datagram.data.clear();
+        datagram.peer = null;
+        return datagram;
+    }
+
+    /**
+     * Returns a datagram to the pool. It must not be touched afterwards.
+     * @param datagram - datagram from acquire()
+     */
+    void release(Datagram datagram) {
+        free.offer(datagram);
+    }
+
+    /**
+     * @return - size of each buffer
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return - number of buffers not in use
+     */
+    public int getAvailable() {
+        return free.size();
+    }
+
+    /**
+     * @return - times a buffer was asked for while none were free
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+}
@@ -0,0 +1,523 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * This class is the local cache, shared by the receive loop and the miss workers. It maps each question to the
+ * complete answer section it was given (every address, and any CNAME chain leading to them), or to the negative
+ * answer (NXDOMAIN / NODATA plus SOA) for names that don't exist. Lookups go straight
+ * to a ConcurrentHashMap, so a hit costs one map read. Each entry also keeps its answer pre-encoded so a hit can be
+ * served by copying bytes (see DNSWireResponse). The cache holds at most maxEntries records and evicts with a
+ * segmented LRU: new records enter a probation segment and are promoted to a protected segment the second time
+ * they are hit. A burst of one-off names only churns probation, so popular names survive scans.
+ *
+ * Recency updates need the policy lock. A hit that finds the lock busy skips its update rather than waiting, so
+ * readers never block each other; under contention the ordering is only approximately LRU.
+ *
+ * Retired records are reclaimed in the background by a timer wheel ticking once a second, so names that are never
+ * asked for again don't sit in the map until they are evicted. With serve-stale turned on (RFC 8767) a retired
+ * record is kept for the stale window first: lookups treat it as a miss, but getStale() can still answer from it
+ * when the upstream is slow or failing.
+ *
+ * Entries count their hits. Once an entry has been hit prefetchHits times and has less than prefetchFraction of
+ * its lifetime left, the cache asks the refresher to fetch it again in the background so a hot name is renewed
+ * before it expires instead of costing its next client an upstream round trip.
+ *
+ * The live entries can be walked to save them (see DNSCacheSnapshot) and put back with restoreAnswer() after a
+ * restart.
+ */
+
+public class DNSCache implements DNSCacheStore {
+
+    private static final int PROBATION = 0;
+
+    private static final int PROTECTED = 1;
+
+    private ConcurrentHashMap<DNSKey, Node> domainCache; // names match whatever their case
+
+    private ReentrantLock policyLock;
+
+    private Node probation; // sentinel of the probation list, most recent after the sentinel
+
+    private Node protectedSeg; // sentinel of the protected list
+
+    private int maxEntries;
+
+    private int maxProtected;
+
+    private int protectedSize;
+
+    private int size;
+
+    private DNSTimerWheel<Node> expiryWheel;
+
+    private ScheduledExecutorService expiryTimer;
+
+    private int prefetchHits;
+
+    private double prefetchFraction;
+
+    private Predicate<DNSQuestion> refresher; // starts a background refresh, false if it declined
+
+    private LongAdder prefetchHitCount = new LongAdder();
+
+    private LongAdder prefetchMissCount = new LongAdder();
+
+    private LongAdder expirations = new LongAdder(); // entries removed because their TTL ran out
+
+    private LongAdder evictions = new LongAdder(); // entries pushed out to make room
+
+    private long staleNanos; // how long a retired entry is kept to answer from when the upstream fails, 0 for not at all
+
+    private long staleTtl; // TTL of stale answers, and how long after a failure they are served without asking again
+
+    private LongAdder staleAnswers = new LongAdder();
+
+    /**
+     * Cache entry, linked into one of the two LRU segments
+     */
+    private static class Node {
+        private DNSQuestion domain;
+        private volatile DNSAnswer answer; // null once the entry has left the cache
+        private volatile DNSWireResponse wire; // answer pre-encoded for the fast hit path, null once it has left
+        private long retirement;
+        private long inserted;
+        private volatile int hits; // approximate, concurrent hits may be lost
+        private volatile boolean refreshing;
+        private volatile long failedAt; // System.nanoTime() resolving the question last failed, 0 if it hasn't
+        private boolean prefetched; // installed by a refresh rather than a client miss
+        private int segment;
+        private Node prev;
+        private Node next;
+    }
+
+    /**
+     * Cache constructor. Allocate memory for the cache map and the eviction lists.
+     * @param maxEntries - most records the cache will hold before evicting
+     * @param prefetchHits - hits an entry needs before it is refreshed ahead of expiry
+     * @param prefetchFraction - share of its lifetime an entry has left when it is refreshed
+     */
+    public DNSCache(int maxEntries, int prefetchHits, double prefetchFraction) {
+        this.prefetchHits = prefetchHits;
+        this.prefetchFraction = prefetchFraction;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxProtected = Math.max(1, this.maxEntries * 4 / 5);
+        domainCache = new ConcurrentHashMap<>();
+        policyLock = new ReentrantLock();
+        probation = new Node();
+        probation.prev = probation.next = probation;
+        protectedSeg = new Node();
+        protectedSeg.prev = protectedSeg.next = protectedSeg;
+        expiryWheel = new DNSTimerWheel<>(TimeUnit.SECONDS.toNanos(1), node -> node.retirement + staleNanos, this::expungeRecord);
+        expiryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread timer = new Thread(runnable, "dns-cache-expiry");
+            timer.setDaemon(true);
+            return timer;
+        });
+        expiryTimer.scheduleAtFixedRate(() -> expiryWheel.advance(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets who is asked to refresh hot entries. Without one, nothing is prefetched.
+     * @param refresher - starts a background upstream query for the question, returns false if it declined
+     */
+    @Override
+    public void setRefresher(Predicate<DNSQuestion> refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * Lets a later hit start a refresh again after one that came to nothing
+     * @param domain - question of the entry that was being refreshed
+     */
+    @Override
+    public void refreshFailed(DNSQuestion domain) {
+        Node node = domainCache.get(domain.getKey());
+        if (node != null) {
+            node.refreshing = false;
+        }
+    }
+
+    /**
+     * Turns on serve-stale (RFC 8767). Must be called before anything is added.
+     * @param staleSeconds - how long a retired entry is kept to answer from, 0 to drop entries as they retire
+     * @param staleTtl - TTL of answers served stale, in seconds; after a failed resolution stale answers are served
+     *                 straight away for this long before the upstream is tried again
+     */
+    @Override
+    public void setServeStale(long staleSeconds, long staleTtl) {
+        this.staleNanos = TimeUnit.SECONDS.toNanos(staleSeconds);
+        this.staleTtl = staleTtl;
+    }
+
+    /**
+     * Add the answer for a question to the domain cache, evicting the least valuable entry if the cache is full.
+     * Answers that aren't cacheable are ignored.
+     * @param domain - question the answer belongs to
+     * @param answer - answer taken from the upstream response
+     * @param prefetched - whether this is a background refresh rather than an answer for a waiting client
+     */
+    @Override
+    public void addAnswer(DNSQuestion domain, DNSAnswer answer, boolean prefetched) {
+        if (answer.isCacheable()) {
+            insert(domain, answer, prefetched, false);
+        }
+    }
+
+    /**
+     * Puts back an answer saved before a restart. An entry already in the cache came from upstream since the
+     * restart and is at least as fresh, so it is kept instead.
+     * @param domain - question the answer belongs to
+     * @param answer - answer read back from a snapshot
+     * @return - whether the answer was added
+     */
+    @Override
+    public boolean restoreAnswer(DNSQuestion domain, DNSAnswer answer) {
+        return answer.isCacheable() && insert(domain, answer, false, true);
+    }
+
+    /**
+     * Links a new entry in at the front of probation and evicts down to maxEntries
+     * @param domain - question the answer belongs to
+     * @param answer - cacheable answer
+     * @param prefetched - whether this is a background refresh
+     * @param onlyIfAbsent - leave an existing entry for the question alone
+     * @return - whether the entry was added
+     */
+    private boolean insert(DNSQuestion domain, DNSAnswer answer, boolean prefetched, boolean onlyIfAbsent) {
+        Node node = new Node();
+        node.domain = domain;
+        node.answer = answer;
+        node.wire = DNSWireResponse.encode(domain, answer);
+        node.prefetched = prefetched;
+        node.inserted = System.nanoTime();
+        node.retirement = answer.getRetirement();
+        node.segment = PROBATION;
+
+        policyLock.lock();
+        try {
+            if (onlyIfAbsent && domainCache.containsKey(domain.getKey())) {
+                return false;
+            }
+            Node old = domainCache.put(domain.getKey(), node);
+            if (old != null) {
+                unlink(old);
+                onRemoval(old);
+            }
+            linkFirst(probation, node);
+            while (size > maxEntries) {
+                Node victim = probation.prev != probation ? probation.prev : protectedSeg.prev;
+                unlink(victim);
+                domainCache.remove(victim.domain.getKey(), victim);
+                evictions.increment();
+                onRemoval(victim);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+        expiryWheel.schedule(node);
+        return true;
+    }
+
+    /**
+     * Hands every live entry to the action, without locking out lookups or inserts. Entries added or removed
+     * while the walk is under way may or may not be seen.
+     * @param action - called with each question and its answer
+     */
+    @Override
+    public void forEachAnswer(BiConsumer<DNSQuestion, DNSAnswer> action) {
+        long now = System.nanoTime();
+        for (Node node : domainCache.values()) {
+            DNSAnswer answer = node.answer;
+            if (answer != null && node.retirement - now > 0) {
+                action.accept(node.domain, answer);
+            }
+        }
+    }
+
+    /**
+     * Looks up the answer for a question in a single map read. Each returned record's TTL is rewritten to the
+     * time it has left. An entry past its retirement is reported as a miss, and removed once past the stale window.
+     * @param domain - Domain name of the entry being queried
+     * @return - matching answer, or null on a miss
+     */
+    @Override
+    public DNSAnswer get(DNSQuestion domain) {
+        long now = System.nanoTime();
+        Node node = lookup(domain, now);
+        DNSAnswer answer = node == null ? null : node.answer;
+        return answer == null ? null : answer.withRemainingTtl(now);
+    }
+
+    /**
+     * Fast path for a hit: writes the pre-encoded response for a question straight into the outgoing buffer,
+     * stamped with the client's transaction ID and current TTLs, without building any objects.
+     * @param domain - Domain name of the entry being queried
+     * @param id - transaction ID of the client request
+     * @param out - buffer the response is written to, its position moves past the response
+     * @return - bytes written; 0 on a miss, or -1 if the entry is live but doesn't fit in what is left of out.
+     * Nothing is written in either case.
+     */
+    @Override
+    public int writeResponse(DNSQuestion domain, int id, ByteBuffer out) {
+        long now = System.nanoTime();
+        Node node = lookup(domain, now);
+        DNSWireResponse wire = node == null ? null : node.wire;
+        if (wire == null) {
+            return 0; // a miss, or removed since the map read
+        }
+        if (wire.length() > out.remaining()) {
+            return -1;
+        }
+        wire.writeTo(out, id, domain.getWireName(), now);
+        return wire.length();
+    }
+
+    /**
+     * Finds the live entry for a question and records the hit: recency, hit count, and a refresh if the entry is
+     * hot and close to expiring.
+     * @param domain - Domain name of the entry being queried
+     * @param now - current System.nanoTime()
+     * @return - the entry, or null on a miss
+     */
+    private Node lookup(DNSQuestion domain, long now) {
+        Node node = domainCache.get(domain.getKey());
+        if (node == null) {
+            return null;
+        }
+        if (node.retirement - now <= 0) {
+            if (now - node.retirement >= staleNanos) {
+                expungeRecord(node);
+            }
+            return null;
+        }
+        if (policyLock.tryLock()) {
+            try {
+                onHit(node);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        node.hits++;
+        if (node.prefetched) {
+            prefetchHitCount.increment();
+        }
+        if (refresher != null && !node.refreshing && node.hits >= prefetchHits
+                && node.retirement - now < (node.retirement - node.inserted) * prefetchFraction) {
+            node.refreshing = true;
+            if (!refresher.test(domain)) {
+                node.refreshing = false; // try again on a later hit
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Answers from a retired entry that is still within the stale window, for when the upstream can't answer in
+     * time. A live entry, added since the caller missed, is returned as a normal hit would be.
+     * @param domain - question to answer
+     * @param onlyAfterFailure - only answer if resolving the question failed within the last staleTtl seconds,
+     *                         so the upstream isn't asked again yet
+     * @return - the answer with every TTL set to staleTtl, or null if there is nothing to serve
+     */
+    @Override
+    public DNSAnswer getStale(DNSQuestion domain, boolean onlyAfterFailure) {
+        long now = System.nanoTime();
+        Node node = domainCache.get(domain.getKey());
+        DNSAnswer answer = node == null ? null : node.answer;
+        if (answer == null || now - node.retirement >= staleNanos) {
+            return null;
+        }
+        if (node.retirement - now > 0) {
+            return answer.withRemainingTtl(now);
+        }
+        long failedAt = node.failedAt;
+        if (onlyAfterFailure && (failedAt == 0 || now - failedAt >= TimeUnit.SECONDS.toNanos(staleTtl))) {
+            return null;
+        }
+        staleAnswers.increment();
+        return answer.withStaleTtl(staleTtl, now);
+    }
+
+    /**
+     * @param domain - question to check
+     * @return - whether getStale() has something to answer it with
+     */
+    @Override
+    public boolean hasStale(DNSQuestion domain) {
+        Node node = domainCache.get(domain.getKey());
+        return node != null && System.nanoTime() - node.retirement < staleNanos;
+    }
+
+    /**
+     * Notes that the upstream failed to answer a question, so its stale entry, if any, is served without asking
+     * again for the next staleTtl seconds
+     * @param domain - question that failed
+     */
+    @Override
+    public void resolutionFailed(DNSQuestion domain) {
+        Node node = domainCache.get(domain.getKey());
+        if (node != null) {
+            node.failedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Stops the background expiry timer. The cache still answers, but retired records are only removed when they
+     * are looked up.
+     */
+    @Override
+    public void close() {
+        expiryTimer.shutdownNow();
+    }
+
+    /**
+     * @return - number of records currently held
+     */
+    @Override
+    public int size() {
+        return domainCache.size();
+    }
+
+    /**
+     * Moves a hit entry to the front of the protected segment, demoting the protected tail back to probation
+     * when the protected segment overflows. Caller must hold the policy lock.
+     * @param node - entry that was hit
+     */
+    private void onHit(Node node) {
+        if (node.prev == null) {
+            return; // evicted or replaced between the map read and taking the lock
+        }
+        unlink(node);
+        node.segment = PROTECTED;
+        linkFirst(protectedSeg, node);
+        if (protectedSize > maxProtected) {
+            Node demoted = protectedSeg.prev;
+            unlink(demoted);
+            demoted.segment = PROBATION;
+            linkFirst(probation, demoted);
+        }
+    }
+
+    /**
+     * Removes overdue record from the cache. Called on lookup and by the expiry wheel; does nothing if the
+     * entry has already been replaced or evicted.
+     * @param node - entry to be deleted
+     */
+    private void expungeRecord(Node node) {
+        policyLock.lock();
+        try {
+            if (domainCache.remove(node.domain.getKey(), node)) {
+                unlink(node); // RETIRED
+                expirations.increment();
+                onRemoval(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Bookkeeping for an entry leaving the cache. A prefetched entry that goes without ever being hit was a
+     * wasted refresh. The answer is let go here: a replaced or evicted entry stays in the expiry wheel until its
+     * stale window is over, which would otherwise keep a day of answers on the heap whatever maxEntries says.
+     * Caller must hold the policy lock.
+     * @param node - entry that was removed
+     */
+    private void onRemoval(Node node) {
+        if (node.prefetched && node.hits == 0) {
+            prefetchMissCount.increment();
+        }
+        node.answer = null;
+        node.wire = null;
+    }
+
+    /**
+     * @return - hits served from entries that were installed by a prefetch
+     */
+    @Override
+    public long getPrefetchHits() {
+        return prefetchHitCount.sum();
+    }
+
+    /**
+     * @return - prefetched entries that left the cache without serving a single hit
+     */
+    @Override
+    public long getPrefetchMisses() {
+        return prefetchMissCount.sum();
+    }
+
+    /**
+     * @return - entries removed because their TTL ran out
+     */
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return - entries evicted to make room for new ones
+     */
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return - answers served from retired entries
+     */
+    @Override
+    public long getStaleAnswers() {
+        return staleAnswers.sum();
+    }
+
+    /**
+     * @return - always 0, answers are kept as objects and never need decoding
+     */
+    @Override
+    public long getErrors() {
+        return 0;
+    }
+
+    /**
+     * Links an entry at the front of a segment. Caller must hold the policy lock.
+     * @param head - sentinel of the segment
+     * @param node - entry to link
+     */
+    private void linkFirst(Node head, Node node) {
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+        size++;
+        if (node.segment == PROTECTED) {
+            protectedSize++;
+        }
+    }
+
+    /**
+     * Unlinks an entry from whichever segment it is in. Caller must hold the policy lock.
+     * @param node - entry to unlink
+     */
+    private void unlink(Node node) {
+        if (node.prev == null) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        size--;
+        if (node.segment == PROTECTED) {
+            protectedSize--;
+        }
+    }
+}
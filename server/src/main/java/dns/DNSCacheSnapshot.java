@@ -0,0 +1,183 @@
+package dns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the cache to a file and loads it back after a restart, so a restarted server answers from a warm cache
+ * instead of sending every client to the upstream while it refills.
+ *
+ * The file is a stream of entries: each question followed by its answer, every record carrying the wall clock
+ * time it expires at, since System.nanoTime() doesn't carry over between processes. Records keep the TTL they
+ * had left and entries that expired while the server was down are skipped. A snapshot is written to a temporary
+ * file and renamed over the old one, so a crash while saving leaves the previous snapshot intact. Loading maps
+ * the file into memory and decodes straight out of it.
+ *
+ * Loading runs on a thread of its own while the server is already answering. A question asked before its entry
+ * is loaded goes upstream as usual, and that fresher answer is kept over the saved one.
+ */
+
+public class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x444e5343; // "DNSC"
+
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private Path file;
+
+    private DNSCacheStore cache;
+
+    private ScheduledExecutorService saveTimer;
+
+    private volatile boolean loading; // saving now would replace the snapshot with part of it
+
+    /**
+     * @param file - where the snapshot is kept
+     * @param cache - cache to save and restore
+     */
+    public DNSCacheSnapshot(Path file, DNSCacheStore cache) {
+        this.file = file;
+        this.cache = cache;
+    }
+
+    /**
+     * Loads the snapshot on a background thread, logging how many entries were restored and how long it took
+     */
+    public void loadInBackground() {
+        loading = true;
+        Thread loader = new Thread(() -> {
+            long started = System.nanoTime();
+            try {
+                int[] counts = load();
+                System.out.println("Restored " + counts[0] + " cache entries from " + file + " in "
+                        + (System.nanoTime() - started) / 1_000_000 + "ms, skipped " + counts[1]
+                        + " expired or already cached");
+            } catch (NoSuchFileException e) {
+                // first start, nothing saved yet
+            } catch (IOException e) {
+                System.out.println("Could not restore the cache from " + file + ": " + e);
+            } finally {
+                loading = false;
+            }
+        }, "dns-cache-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Reads the snapshot into the cache. A file cut short by a crash is loaded up to where it ends.
+     * @return - entries restored, then entries skipped because they expired or were already cached
+     * @throws IOException - if the file can't be read or isn't a snapshot
+     */
+    int[] load() throws IOException {
+        int[] counts = new int[2];
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Cache snapshot is larger than 2GB");
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a cache snapshot");
+            }
+            long now = System.nanoTime();
+            long wallNow = System.currentTimeMillis();
+            while (in.get() != 0) {
+                DNSQuestion question = DNSQuestion.readSnapshot(in);
+                DNSAnswer answer = DNSAnswer.readSnapshot(in, question, now, wallNow);
+                if (cache.restoreAnswer(question, answer)) {
+                    counts[0]++;
+                } else {
+                    counts[1]++;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // saving was cut short, keep what was read
+        }
+        return counts;
+    }
+
+    /**
+     * Writes every live entry to the snapshot, replacing the previous one
+     * @return - entries written
+     * @throws IOException
+     */
+    public synchronized int save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] written = new int[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long now = System.nanoTime();
+            long wallNow = System.currentTimeMillis();
+            try {
+                cache.forEachAnswer((question, answer) -> {
+                    try {
+                        out.writeBoolean(true);
+                        question.writeSnapshot(out);
+                        answer.writeSnapshot(out, question, now, wallNow);
+                        written[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written[0];
+    }
+
+    /**
+     * Saves the cache every interval and once more when the JVM shuts down
+     * @param intervalSeconds - time between saves, 0 to only save at shutdown
+     */
+    public void saveOnSchedule(int intervalSeconds) {
+        if (intervalSeconds > 0) {
+            saveTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread timer = new Thread(runnable, "dns-cache-snapshot");
+                timer.setDaemon(true);
+                return timer;
+            });
+            saveTimer.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveQuietly, "dns-cache-shutdown"));
+    }
+
+    /**
+     * Saves the cache, logging rather than throwing if that fails. Nothing is saved while the snapshot is still
+     * being loaded.
+     */
+    private void saveQuietly() {
+        if (loading) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            int written = save();
+            System.out.println("Saved " + written + " cache entries to " + file + " in "
+                    + (System.nanoTime() - started) / 1_000_000 + "ms");
+        } catch (IOException e) {
+            System.out.println("Could not save the cache to " + file + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * What the server needs from a cache of answers, whichever way it keeps them. DNSCache holds entries as objects
+ * on the heap with a segmented LRU; DNSOffHeapCache holds them as encoded bytes in direct memory so the heap
+ * doesn't grow with the cache. Pick one with dns.cacheStore.
+ */
+
+public interface DNSCacheStore {
+
+    /**
+     * Sets who is asked to refresh hot entries. Without one, nothing is prefetched.
+     * @param refresher - starts a background upstream query for the question, returns false if it declined
+     */
+    void setRefresher(Predicate<DNSQuestion> refresher);
+
+    /**
+     * Notes that a refresh the refresher started came to nothing, so a later hit may start another
+     * @param domain - question of the entry that was being refreshed
+     */
+    void refreshFailed(DNSQuestion domain);
+
+    /**
+     * Turns on serve-stale (RFC 8767). Must be called before anything is added.
+     * @param staleSeconds - how long a retired entry is kept to answer from, 0 to drop entries as they retire
+     * @param staleTtl - TTL of answers served stale, in seconds; after a failed resolution stale answers are served
+     *                 straight away for this long before the upstream is tried again
+     */
+    void setServeStale(long staleSeconds, long staleTtl);
+
+    /**
+     * Adds the answer for a question, replacing any entry it already has. Answers that aren't cacheable are
+     * ignored.
+     * @param domain - question the answer belongs to
+     * @param answer - the answer
+     * @param prefetched - whether this is a background refresh rather than a client miss
+     */
+    void addAnswer(DNSQuestion domain, DNSAnswer answer, boolean prefetched);
+
+    /**
+     * Puts back an answer saved before a restart, unless the question already has an entry
+     * @param domain - question the answer belongs to
+     * @param answer - answer read back from a snapshot
+     * @return - whether the answer was added
+     */
+    boolean restoreAnswer(DNSQuestion domain, DNSAnswer answer);
+
+    /**
+     * Hands every live entry to the action without stopping lookups for long. Entries added or removed while the
+     * walk is under way may or may not be seen.
+     * @param action - called with each question and its answer
+     */
+    void forEachAnswer(BiConsumer<DNSQuestion, DNSAnswer> action);
+
+    /**
+     * @param domain - question to look up
+     * @return - the live answer with each TTL rewritten to the time it has left, or null on a miss
+     */
+    DNSAnswer get(DNSQuestion domain);
+
+    /**
+     * Hit fast path: writes the encoded response for a question into the buffer with the client's transaction ID
+     * and current TTLs
+     * @param domain - question to look up
+     * @param id - transaction ID of the client request
+     * @param out - buffer the response is written to, its position moves past the response
+     * @return - bytes written; 0 on a miss, or -1 if the entry is live but doesn't fit in what is left of out.
+     * Nothing is written in either case.
+     */
+    int writeResponse(DNSQuestion domain, int id, ByteBuffer out);
+
+    /**
+     * Answers from a retired entry that is still within the stale window. A live entry is returned as a normal
+     * hit would be.
+     * @param domain - question to answer
+     * @param onlyAfterFailure - only answer if resolving the question failed within the last staleTtl seconds
+     * @return - the answer with every TTL set to staleTtl, or null if there is nothing to serve
+     */
+    DNSAnswer getStale(DNSQuestion domain, boolean onlyAfterFailure);
+
+    /**
+     * @param domain - question to check
+     * @return - whether getStale() has something to answer it with
+     */
+    boolean hasStale(DNSQuestion domain);
+
+    /**
+     * Notes that the upstream failed to answer a question
+     * @param domain - question that failed
+     */
+    void resolutionFailed(DNSQuestion domain);
+
+    /**
+     * Stops background work. The cache still answers afterwards.
+     */
+    void close();
+
+    /**
+     * @return - number of entries held, stale ones included
+     */
+    int size();
+
+    /**
+     * @return - hits served from entries that were installed by a prefetch
+     */
+    long getPrefetchHits();
+
+    /**
+     * @return - prefetched entries that left the cache without serving a single hit
+     */
+    long getPrefetchMisses();
+
+    /**
+     * @return - entries removed because their TTL, and stale window, ran out
+     */
+    long getExpirations();
+
+    /**
+     * @return - entries evicted to make room for new ones
+     */
+    long getEvictions();
+
+    /**
+     * @return - answers served from retired entries
+     */
+    long getStaleAnswers();
+
+    /**
+     * @return - cached answers that couldn't be read back, which only a bug would cause
+     */
+    long getErrors();
+}
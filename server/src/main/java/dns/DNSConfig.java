@@ -0,0 +1,427 @@
+package dns;
+
+/**
+ * Runtime settings for the server. Every value is read from a JVM system property so the server can be tuned
+ * from the command line, e.g. java -Ddns.workers=64 DNSServer
+ */
+
+public class DNSConfig {
+
+    private int port;
+
+    private int shards;
+
+    private int workerThreads;
+
+    private int maxPendingMisses;
+
+    private int udpBuffers;
+
+    private int ednsMaxPayload;
+
+    private int tcpMaxConnections;
+
+    private int tcpIdleTimeoutMillis;
+
+    private int cacheMaxEntries;
+
+    private String cacheStore;
+
+    private int offHeapCacheMegabytes;
+
+    private int negativeTtlMax;
+
+    private int prefetchHits;
+
+    private double prefetchFraction;
+
+    private int maxPrefetchPerSecond;
+
+    private int serveStaleSeconds;
+
+    private int staleTtl;
+
+    private int staleAnswerMillis;
+
+    private String snapshotFile;
+
+    private int snapshotIntervalSeconds;
+
+    private int metricsPort;
+
+    private String metricsAddress;
+
+    private String[] zoneFiles;
+
+    private int zoneReloadSeconds;
+
+    private String[] blocklistFiles;
+
+    private String blockResponse;
+
+    private int blocklistReloadSeconds;
+
+    private String upstreamHost;
+
+    private String[] upstreams;
+
+    private double hedgePercentile;
+
+    private int hedgeMinMillis;
+
+    private int upstreamPort;
+
+    private int upstreamLocalPort;
+
+    private int upstreamTimeoutMillis;
+
+    private int upstreamRetries;
+
+    /**
+     * Build the configuration from the JVM system properties, falling back to defaults for anything not set
+     * @return - populated configuration object
+     */
+    public static DNSConfig load() {
+        DNSConfig config = new DNSConfig();
+        config.port = Integer.getInteger("dns.port", 8053);
+        config.shards = Integer.getInteger("dns.shards", 1);
+        config.workerThreads = Integer.getInteger("dns.workers", Runtime.getRuntime().availableProcessors() * 4);
+        config.maxPendingMisses = Integer.getInteger("dns.maxPendingMisses", 1024);
+        config.udpBuffers = Integer.getInteger("dns.udpBuffers", 2048);
+        config.ednsMaxPayload = Integer.getInteger("dns.ednsMaxPayload", 1232);
+        config.tcpMaxConnections = Integer.getInteger("dns.tcpMaxConnections", 1024);
+        config.tcpIdleTimeoutMillis = Integer.getInteger("dns.tcpIdleTimeoutMillis", 10000);
+        config.cacheMaxEntries = Integer.getInteger("dns.cacheMaxEntries", 100000);
+        config.cacheStore = System.getProperty("dns.cacheStore", "heap");
+        config.offHeapCacheMegabytes = Integer.getInteger("dns.offHeapCacheMegabytes", 256);
+        config.negativeTtlMax = Integer.getInteger("dns.negativeTtlMax", 3600);
+        config.prefetchHits = Integer.getInteger("dns.prefetchHits", 3);
+        config.prefetchFraction = Double.parseDouble(System.getProperty("dns.prefetchFraction", "0.1"));
+        config.maxPrefetchPerSecond = Integer.getInteger("dns.maxPrefetchPerSecond", 50);
+        config.serveStaleSeconds = Integer.getInteger("dns.serveStaleSeconds", 86400);
+        config.staleTtl = Integer.getInteger("dns.staleTtl", 30);
+        config.staleAnswerMillis = Integer.getInteger("dns.staleAnswerMillis", 1800);
+        config.snapshotFile = System.getProperty("dns.snapshotFile", "");
+        config.snapshotIntervalSeconds = Integer.getInteger("dns.snapshotIntervalSeconds", 300);
+        config.metricsPort = Integer.getInteger("dns.metricsPort", 0);
+        config.metricsAddress = System.getProperty("dns.metricsAddress", "127.0.0.1");
+        String zoneFiles = System.getProperty("dns.zoneFiles", "");
+        config.zoneFiles = zoneFiles.isEmpty() ? new String[0] : zoneFiles.split(",");
+        config.zoneReloadSeconds = Integer.getInteger("dns.zoneReloadSeconds", 5);
+        String blocklistFiles = System.getProperty("dns.blocklistFiles", "");
+        config.blocklistFiles = blocklistFiles.isEmpty() ? new String[0] : blocklistFiles.split(",");
+        config.blockResponse = System.getProperty("dns.blockResponse", "nxdomain");
+        config.blocklistReloadSeconds = Integer.getInteger("dns.blocklistReloadSeconds", 60);
+        config.upstreamHost = System.getProperty("dns.upstream", "8.8.8.8");
+        config.upstreamPort = Integer.getInteger("dns.upstreamPort", 53);
+        config.upstreams = System.getProperty("dns.upstreams", config.upstreamHost).split(",");
+        config.hedgePercentile = Double.parseDouble(System.getProperty("dns.hedgePercentile", "0"));
+        config.hedgeMinMillis = Integer.getInteger("dns.hedgeMinMillis", 5);
+        config.upstreamLocalPort = Integer.getInteger("dns.upstreamLocalPort", 0);
+        config.upstreamTimeoutMillis = Integer.getInteger("dns.upstreamTimeoutMillis", 2000);
+        config.upstreamRetries = Integer.getInteger("dns.upstreamRetries", 2);
+        return config;
+    }
+
+    /**
+     * @return - UDP port client requests are read from (dns.port)
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return - sockets bound to the port with SO_REUSEPORT, each with its own event loop and upstream socket.
+     * Set it to the number of cores to spread load across them (dns.shards)
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return - number of threads answering cache misses once the upstream replies, split between the shards (dns.workers)
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return - cache misses allowed to wait on the upstream before new ones are dropped, split between the
+     * shards (dns.maxPendingMisses)
+     */
+    public int getMaxPendingMisses() {
+        return maxPendingMisses;
+    }
+
+    /**
+     * @return - pooled datagram buffers shared by requests being handled and responses waiting to be sent, split
+     * between the shards (dns.udpBuffers)
+     */
+    public int getUdpBuffers() {
+        return udpBuffers;
+    }
+
+    /**
+     * @return - largest UDP message we send or receive; clients asking for more over EDNS get this much, and our
+     * upstream queries advertise it. 1232 avoids IP fragmentation on common paths (dns.ednsMaxPayload)
+     */
+    public int getEdnsMaxPayload() {
+        return ednsMaxPayload;
+    }
+
+    /**
+     * @return - most TCP connections open at once, 0 turns TCP off (dns.tcpMaxConnections)
+     */
+    public int getTcpMaxConnections() {
+        return tcpMaxConnections;
+    }
+
+    /**
+     * @return - how long a TCP connection with nothing outstanding may stay quiet before it is closed
+     * (dns.tcpIdleTimeoutMillis)
+     */
+    public int getTcpIdleTimeoutMillis() {
+        return tcpIdleTimeoutMillis;
+    }
+
+    /**
+     * @return - most records the cache holds before evicting (dns.cacheMaxEntries)
+     */
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    /**
+     * @return - where cached answers are kept: "heap" for objects on the heap, "offheap" for encoded entries in
+     * direct memory that the collector never has to look at (dns.cacheStore)
+     */
+    public String getCacheStore() {
+        return cacheStore;
+    }
+
+    /**
+     * @return - direct memory for an off-heap cache; above the heap size the JVM also needs a matching
+     * -XX:MaxDirectMemorySize (dns.offHeapCacheMegabytes)
+     */
+    public int getOffHeapCacheMegabytes() {
+        return offHeapCacheMegabytes;
+    }
+
+    /**
+     * @return - longest an NXDOMAIN or NODATA answer is cached, in seconds (dns.negativeTtlMax)
+     */
+    public int getNegativeTtlMax() {
+        return negativeTtlMax;
+    }
+
+    /**
+     * @return - hits a cache entry needs before it is refreshed ahead of expiry (dns.prefetchHits)
+     */
+    public int getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    /**
+     * @return - share of its TTL an entry has left when it is refreshed (dns.prefetchFraction)
+     */
+    public double getPrefetchFraction() {
+        return prefetchFraction;
+    }
+
+    /**
+     * @return - most background refreshes sent per second, 0 turns prefetching off (dns.maxPrefetchPerSecond)
+     */
+    public int getMaxPrefetchPerSecond() {
+        return maxPrefetchPerSecond;
+    }
+
+    /**
+     * @return - how long expired cache entries are kept to answer from when the upstream is slow or down, 0 turns
+     * serve-stale off (dns.serveStaleSeconds)
+     */
+    public int getServeStaleSeconds() {
+        return serveStaleSeconds;
+    }
+
+    /**
+     * @return - TTL of stale answers, and how long after a failed resolution they are served without asking the
+     * upstream again (dns.staleTtl)
+     */
+    public int getStaleTtl() {
+        return staleTtl;
+    }
+
+    /**
+     * @return - how long a miss waits on the upstream before a stale answer is sent instead, 0 waits for the
+     * upstream to answer or fail (dns.staleAnswerMillis)
+     */
+    public int getStaleAnswerMillis() {
+        return staleAnswerMillis;
+    }
+
+    /**
+     * @return - file the cache is saved to and restored from across restarts, off (empty) unless a path is given
+     * (dns.snapshotFile)
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @return - seconds between cache saves, 0 saves only at shutdown (dns.snapshotIntervalSeconds)
+     */
+    public int getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    /**
+     * @return - TCP port serving the metrics as text over HTTP at /metrics, off (0) by default as the endpoint has
+     * no authentication; JMX is always on (dns.metricsPort)
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * @return - address the metrics endpoint listens on, loopback by default; 0.0.0.0 for every interface
+     * (dns.metricsAddress)
+     */
+    public String getMetricsAddress() {
+        return metricsAddress;
+    }
+
+    /**
+     * @return - master files of the zones answered locally, none by default (dns.zoneFiles, comma separated)
+     */
+    public String[] getZoneFiles() {
+        return zoneFiles;
+    }
+
+    /**
+     * @return - seconds between checks of the zone files for changes, 0 never reloads them (dns.zoneReloadSeconds)
+     */
+    public int getZoneReloadSeconds() {
+        return zoneReloadSeconds;
+    }
+
+    /**
+     * @return - lists of names to sinkhole, none by default (dns.blocklistFiles, comma separated)
+     */
+    public String[] getBlocklistFiles() {
+        return blocklistFiles;
+    }
+
+    /**
+     * @return - "nxdomain" to answer blocked names with NXDOMAIN, or "zero" for 0.0.0.0 and :: (dns.blockResponse)
+     */
+    public String getBlockResponse() {
+        return blockResponse;
+    }
+
+    /**
+     * @return - seconds between checks of the blocklists for changes, 0 never reloads them (dns.blocklistReloadSeconds)
+     */
+    public int getBlocklistReloadSeconds() {
+        return blocklistReloadSeconds;
+    }
+
+    /**
+     * @return - host name or address of the upstream resolver when dns.upstreams isn't set (dns.upstream)
+     */
+    public String getUpstreamHost() {
+        return upstreamHost;
+    }
+
+    /**
+     * @return - port of the upstream resolvers, unless an entry of dns.upstreams gives its own (dns.upstreamPort)
+     */
+    public int getUpstreamPort() {
+        return upstreamPort;
+    }
+
+    /**
+     * @return - upstream resolvers as host or host:port, e.g. -Ddns.upstreams=8.8.8.8,1.1.1.1:53 (dns.upstreams)
+     */
+    public String[] getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * @return - round trip percentile of the chosen upstream after which a query is also sent to the next best
+     * one, e.g. 0.9; 0 turns hedging off (dns.hedgePercentile)
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return - shortest wait before hedging, however fast the upstream usually is (dns.hedgeMinMillis)
+     */
+    public int getHedgeMinMillis() {
+        return hedgeMinMillis;
+    }
+
+    /**
+     * @return - local port upstream queries are sent from; shard n uses this port + n (dns.upstreamLocalPort). The
+     * default of 0 gives every shard a random free port, which together with random IDs is what makes replies
+     * hard to spoof; a fixed port is only for firewalls that insist on one.
+     */
+    public int getUpstreamLocalPort() {
+        return upstreamLocalPort;
+    }
+
+    /**
+     * @return - how long to wait for an upstream reply before resending (dns.upstreamTimeoutMillis)
+     */
+    public int getUpstreamTimeoutMillis() {
+        return upstreamTimeoutMillis;
+    }
+
+    /**
+     * @return - how many times an unanswered upstream query is resent (dns.upstreamRetries)
+     */
+    public int getUpstreamRetries() {
+        return upstreamRetries;
+    }
+
+    @Override
+    public String toString() {
+        return "DNSConfig{" +
+                "port=" + port +
+                ", shards=" + shards +
+                ", workerThreads=" + workerThreads +
+                ", maxPendingMisses=" + maxPendingMisses +
+                ", udpBuffers=" + udpBuffers +
+                ", ednsMaxPayload=" + ednsMaxPayload +
+                ", tcpMaxConnections=" + tcpMaxConnections +
+                ", tcpIdleTimeoutMillis=" + tcpIdleTimeoutMillis +
+                ", cacheMaxEntries=" + cacheMaxEntries +
+                ", cacheStore='" + cacheStore + '\'' +
+                ", offHeapCacheMegabytes=" + offHeapCacheMegabytes +
+                ", negativeTtlMax=" + negativeTtlMax +
+                ", prefetchHits=" + prefetchHits +
+                ", prefetchFraction=" + prefetchFraction +
+                ", maxPrefetchPerSecond=" + maxPrefetchPerSecond +
+                ", serveStaleSeconds=" + serveStaleSeconds +
+                ", staleTtl=" + staleTtl +
+                ", staleAnswerMillis=" + staleAnswerMillis +
+                ", snapshotFile='" + snapshotFile + '\'' +
+                ", snapshotIntervalSeconds=" + snapshotIntervalSeconds +
+                ", metricsPort=" + metricsPort +
+                ", metricsAddress='" + metricsAddress + '\'' +
+                ", zoneFiles=" + String.join(",", zoneFiles) +
+                ", zoneReloadSeconds=" + zoneReloadSeconds +
+                ", blocklistFiles=" + String.join(",", blocklistFiles) +
+                ", blockResponse=" + blockResponse +
+                ", blocklistReloadSeconds=" + blocklistReloadSeconds +
+                ", upstreamHost='" + upstreamHost + '\'' +
+                ", upstreamPort=" + upstreamPort +
+                ", upstreams=" + String.join(",", upstreams) +
+                ", hedgePercentile=" + hedgePercentile +
+                ", hedgeMinMillis=" + hedgeMinMillis +
+                ", upstreamLocalPort=" + upstreamLocalPort +
+                ", upstreamTimeoutMillis=" + upstreamTimeoutMillis +
+                ", upstreamRetries=" + upstreamRetries +
+                '}';
+    }
+}
@@ -0,0 +1,214 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes DNS messages into a ByteBuffer. One encoder is kept per thread and reused for every message, so encoding
+ * allocates nothing: the buffer, the compression table and the TTL offset list are all sized up front.
+ *
+ * Names are compressed on every label suffix as RFC 1035 4.1.4 allows. Once "www.example.com" has been written, a
+ * later "mail.example.com" is written as "mail" plus a pointer to "example.com". The table remembers the first
+ * 64 suffixes written in a message; names after that are still written correctly, just less compactly.
+ */
+
+public class DNSEncoder {
+
+    static final int MAX_MESSAGE_SIZE = 65535;
+
+    private static final int TABLE_SIZE = 64;
+
+    private static final int MAX_POINTER = 0x3fff;
+
+    private static final ThreadLocal<DNSEncoder> ENCODERS = ThreadLocal.withInitial(
+            () -> new DNSEncoder(ByteBuffer.allocate(MAX_MESSAGE_SIZE)));
+
+    private ByteBuffer out;
+
+    private int start; // position of the message header in out, pointers are relative to it
+
+    private byte[][] suffixNames = new byte[TABLE_SIZE][]; // name each remembered suffix was cut from
+
+    private int[] suffixFrom = new int[TABLE_SIZE]; // where the suffix starts in that name
+
+    private int[] suffixOffsets = new int[TABLE_SIZE]; // where the suffix was written, relative to start
+
+    private int suffixCount;
+
+    private int[] ttlOffsets = new int[TABLE_SIZE]; // where each record's TTL field was written, relative to start
+
+    private int ttlCount;
+
+    /**
+     * @param out - buffer messages are written to
+     */
+    DNSEncoder(ByteBuffer out) {
+        this.out = out;
+    }
+
+    /**
+     * @return - this thread's encoder, already reset to write at the start of its own buffer
+     */
+    static DNSEncoder forThread() {
+        DNSEncoder encoder = ENCODERS.get();
+        encoder.out.clear();
+        encoder.begin();
+        return encoder;
+    }
+
+    /**
+     * Starts a new message at the buffer's current position, forgetting the names of the previous one
+     */
+    void begin() {
+        start = out.position();
+        suffixCount = 0;
+        ttlCount = 0;
+    }
+
+    /**
+     * @param bytes - bytes to write as they are
+     */
+    void writeBytes(byte[] bytes) {
+        out.put(bytes);
+    }
+
+    /**
+     * @param value - byte to write
+     */
+    void writeByte(byte value) {
+        out.put(value);
+    }
+
+    /**
+     * Writes an unsigned 16 bit value, most significant byte first
+     * @param value - value to write
+     */
+    void writeShort(int value) {
+        out.putShort((short) value);
+    }
+
+    /**
+     * Writes a record's TTL field and remembers where it went
+     * @param ttl - TTL in seconds
+     */
+    void writeTtl(long ttl) {
+        if (ttlCount == ttlOffsets.length) {
+            ttlOffsets = Arrays.copyOf(ttlOffsets, ttlCount * 2);
+        }
+        ttlOffsets[ttlCount++] = out.position() - start;
+        out.putInt((int) ttl);
+    }
+
+    /**
+     * @param name - name in uncompressed wire format
+     */
+    void writeName(byte[] name) {
+        writeName(name, 0);
+    }
+
+    /**
+     * Writes a name, replacing its longest suffix already in the message with a pointer to it
+     * @param name - bytes holding the name in uncompressed wire format
+     * @param from - offset of the name in those bytes
+     * @return - offset just past the name in those bytes
+     */
+    int writeName(byte[] name, int from) {
+        int end = from;
+        while (name[end] != 0) {
+            end += (name[end] & 0xff) + 1;
+        }
+        end++;
+
+        int label = from;
+        while (name[label] != 0) {
+            int pointer = findSuffix(name, label, end);
+            if (pointer >= 0) {
+                rememberSuffixes(name, from, label);
+                out.put(name, from, label - from);
+                out.putShort((short) (0xc000 | pointer));
+                return end;
+            }
+            label += (name[label] & 0xff) + 1;
+        }
+        rememberSuffixes(name, from, label);
+        out.put(name, from, end - from);
+        return end;
+    }
+
+    /**
+     * @param name - bytes holding the name
+     * @param from - start of the suffix
+     * @param end - end of the name, past the terminating 0
+     * @return - where an identical suffix was written in this message, or -1
+     */
+    private int findSuffix(byte[] name, int from, int end) {
+        for (int s = 0; s < suffixCount; ++s) {
+            byte[] other = suffixNames[s];
+            int otherFrom = suffixFrom[s];
+            int otherEnd = otherFrom + (end - from);
+            if (otherEnd <= other.length && Arrays.equals(name, from, end, other, otherFrom, otherEnd)) {
+                return suffixOffsets[s];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the suffixes of a name that are about to be written in full, up to where a pointer takes over
+     * @param name - bytes holding the name
+     * @param from - first label being written
+     * @param until - label the pointer replaces, or the terminating 0
+     */
+    private void rememberSuffixes(byte[] name, int from, int until) {
+        int offset = out.position() - start;
+        for (int label = from; label < until && suffixCount < TABLE_SIZE; label += (name[label] & 0xff) + 1) {
+            int at = offset + (label - from);
+            if (at > MAX_POINTER) {
+                return;
+            }
+            suffixNames[suffixCount] = name;
+            suffixFrom[suffixCount] = label;
+            suffixOffsets[suffixCount] = at;
+            suffixCount++;
+        }
+    }
+
+    /**
+     * @return - position the next byte will be written at, relative to the start of the message
+     */
+    int position() {
+        return out.position() - start;
+    }
+
+    /**
+     * Overwrites an unsigned 16 bit value already written, for lengths only known afterwards
+     * @param offset - where the value is, relative to the start of the message
+     * @param value - value to write
+     */
+    void patchShort(int offset, int value) {
+        out.putShort(start + offset, (short) value);
+    }
+
+    /**
+     * @return - TTL field offsets of the records written so far, relative to the start of the message
+     */
+    int[] getTtlOffsets() {
+        return Arrays.copyOf(ttlOffsets, ttlCount);
+    }
+
+    /**
+     * @return - the buffer being written to
+     */
+    ByteBuffer getBuffer() {
+        return out;
+    }
+
+    /**
+     * @return - copy of the message written since begin()
+     */
+    byte[] toByteArray() {
+        byte[] bytes = new byte[position()];
+        out.get(start, bytes);
+        return bytes;
+    }
+}
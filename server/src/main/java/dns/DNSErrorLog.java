@@ -0,0 +1,53 @@
+package dns;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the unexpected errors on a per-request path and logs them one line at a time, at most once a second,
+ * so a flood of bad input shows up in the metrics instead of filling the log. The line after a quiet spell says
+ * how many were left out.
+ */
+
+class DNSErrorLog {
+
+    private static final long INTERVAL_NANOS = 1_000_000_000L;
+
+    private String where; // what failed, the start of every line
+
+    private LongAdder errors = new LongAdder();
+
+    private AtomicLong nextLogAt = new AtomicLong(System.nanoTime());
+
+    private AtomicLong unlogged = new AtomicLong(); // errors since the last line
+
+    /**
+     * @param where - what failed, e.g. "Sending a response"
+     */
+    DNSErrorLog(String where) {
+        this.where = where;
+    }
+
+    /**
+     * Counts the error and logs it unless a line went out less than a second ago
+     * @param e - the error
+     */
+    void report(Throwable e) {
+        errors.increment();
+        long now = System.nanoTime();
+        long due = nextLogAt.get();
+        if (now - due < 0 || !nextLogAt.compareAndSet(due, now + INTERVAL_NANOS)) {
+            unlogged.incrementAndGet();
+            return;
+        }
+        long skipped = unlogged.getAndSet(0);
+        System.out.println(where + " failed: " + e + (skipped > 0 ? " (" + skipped + " more not logged)" : ""));
+    }
+
+    /**
+     * @return - errors reported, logged or not
+     */
+    long getCount() {
+        return errors.sum();
+    }
+}
@@ -0,0 +1,188 @@
+package dns;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class DNSHeader {
+
+    private byte[] fullHeader;
+
+    private int requestID;
+
+    private int questionCount;
+
+    private int answerCount;
+
+    private int authorityCount;
+
+    private int additionalCount;
+
+    private int rcode;
+
+    private boolean truncated;
+
+    private boolean authoritative;
+
+    /**
+     * read the header from the first 12 bytes of a message buffer
+     * @param wire - buffer holding the message, starting at the header
+     * @return decoded header
+     */
+    public static DNSHeader decodeHeader(ByteBuffer wire) throws IOException {
+        if (wire.limit() < 12) {
+            throw new EOFException("Truncated DNS header");
+        }
+        DNSHeader header = new DNSHeader();
+        header.fullHeader = new byte[12];
+        wire.get(0, header.fullHeader);
+
+        header.requestID = wire.getShort(0) & 0xffff;
+        header.rcode = wire.get(3) & 0x0f;
+        header.truncated = (wire.get(2) & 0x02) != 0;
+        header.authoritative = (wire.get(2) & 0x04) != 0;
+        header.questionCount = wire.getShort(4) & 0xffff;
+        header.answerCount = wire.getShort(6) & 0xffff;
+        header.authorityCount = wire.getShort(8) & 0xffff;
+        header.additionalCount = wire.getShort(10) & 0xffff;
+
+        return header;
+    }
+
+    /**
+     * This will create the header for the response. It will copy some fields from the request
+     * @param request - request message to parse
+     * @param response - response message that will use this header
+     * @return header with response message
+     */
+    public static DNSHeader buildResponseHeader(DNSMessage request, DNSMessage response) {
+        DNSHeader resHeader = new DNSHeader();
+        resHeader.fullHeader = request.getHeader().fullHeader.clone(); // ID and question count stay as asked
+        resHeader.requestID = request.getHeader().requestID;
+        resHeader.questionCount = request.getHeader().questionCount;
+        resHeader.fillResponseFields(response);
+        return resHeader;
+    }
+
+    /**
+     * Header for a pre-encoded cache response: zero ID, which is patched per client, and one question
+     * @param response - response message that will use this header
+     * @return header with response message
+     */
+    public static DNSHeader buildTemplateHeader(DNSMessage response) {
+        DNSHeader resHeader = new DNSHeader();
+        resHeader.fullHeader = new byte[12];
+        resHeader.questionCount = 1;
+        resHeader.fullHeader[5] = 1;
+        resHeader.fillResponseFields(response);
+        return resHeader;
+    }
+
+    /**
+     * Sets the flags, response code and section counts from the response being sent
+     * @param response - response message that will use this header
+     */
+    private void fillResponseFields(DNSMessage response) {
+        answerCount = response.getAnswers().length;
+        authorityCount = response.getAuthorities().length;
+        additionalCount = response.getAdditionalRecords().length;
+        rcode = response.getRcode();
+        truncated = response.isTruncated();
+        authoritative = response.isAuthoritative();
+
+       // Masking off of the messageCount from the response to add to the header
+        fullHeader[6] = (byte) ((answerCount >> 8) & 0xff);
+        fullHeader[7] = (byte) (answerCount & 0xff);
+        fullHeader[8] = (byte) ((authorityCount >> 8) & 0xff);
+        fullHeader[9] = (byte) (authorityCount & 0xff);
+        fullHeader[10] = (byte) ((additionalCount >> 8) & 0xff);
+        fullHeader[11] = (byte) (additionalCount & 0xff);
+
+        fullHeader[2] = (byte) (truncated ? 0x83 : 0x81); // Flip the QR bit so it denotes this as a response message, plus TC
+        if (authoritative) {
+            fullHeader[2] |= 0x04; // AA, answered from a zone we serve
+        }
+        fullHeader[3] = (byte) (0x80 | rcode); // RA, plus the response code
+    }
+
+    /**
+     * encode the header to bytes to be sent back to the client
+     * @param encoder - encoder for the message being built
+     */
+    void writeBytes(DNSEncoder encoder) {
+        encoder.writeBytes(fullHeader);
+    }
+
+    /**
+     * Return a human readable string version of a header object.
+     * @return - String representation of the header
+     */
+    @Override
+    public String toString() {
+        return "DNSHeader{" +
+                "fullHeader=" + Arrays.toString(fullHeader) +
+                ", requestID=" + requestID +
+                ", questionCount=" + questionCount +
+                ", answerCount=" + answerCount +
+                ", authorityCount=" + authorityCount +
+                ", additionalCount=" + additionalCount +
+                ", rcode=" + rcode +
+                ", truncated=" + truncated +
+                ", authoritative=" + authoritative +
+                '}';
+    }
+
+    /**
+     * @return - the 12 header bytes as they will be written
+     */
+    byte[] getFullHeader() {
+        return fullHeader;
+    }
+
+    /**
+     * @return - transaction ID
+     */
+    public int getRequestID() {
+        return requestID;
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public int getAuthorityCount() {
+        return authorityCount;
+    }
+
+    public int getAdditionalCount() {
+        return additionalCount;
+    }
+
+    /**
+     * @return - whether the TC bit is set, i.e. the message didn't fit and was cut short
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return - whether the AA bit is set
+     */
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    /**
+     * @return - response code (0 NOERROR, 2 SERVFAIL, 3 NXDOMAIN, ...)
+     */
+    public int getRcode() {
+        return rcode;
+    }
+
+
+}
@@ -0,0 +1,166 @@
+package dns;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the style of HdrHistogram: buckets are laid out log-linearly, 16 to every power of two, so
+ * any recorded value is known to within about 6% from a nanosecond up to a few minutes, in a fixed 600 or so
+ * buckets. Recording is one striped counter increment per value and never locks, so the query path can record
+ * every request; reading sums the buckets and is only done when metrics are exported.
+ */
+
+public class DNSHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 40; // 2^41 ns is about 37 minutes, longer values land in the last bucket
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private LongAdder[] counts = new LongAdder[BUCKETS];
+
+    private LongAdder sum = new LongAdder();
+
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Percentiles and totals of a histogram at one moment, in microseconds
+     */
+    public static class Summary {
+        private long count;
+        private double meanMicros;
+        private double p50Micros;
+        private double p90Micros;
+        private double p99Micros;
+        private double p999Micros;
+        private double maxMicros;
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getP999Micros() {
+            return p999Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    public DNSHistogram() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one value
+     * @param nanos - the value, e.g. a latency in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketOf(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @param value - non-negative value
+     * @return - index of the bucket it falls in
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket - bucket index
+     * @return - middle of the range of values the bucket holds
+     */
+    static double middleOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+        return lowest + (width - 1) / 2.0;
+    }
+
+    /**
+     * Reads the histogram. Values recorded while it is being read may or may not be included.
+     * @return - count, mean, percentiles and max
+     */
+    public Summary summarize() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        Summary summary = new Summary();
+        summary.count = total;
+        if (total == 0) {
+            return summary;
+        }
+        summary.meanMicros = sum.sum() / (double) total / 1000;
+        summary.p50Micros = percentile(snapshot, total, 0.5) / 1000;
+        summary.p90Micros = percentile(snapshot, total, 0.9) / 1000;
+        summary.p99Micros = percentile(snapshot, total, 0.99) / 1000;
+        summary.p999Micros = percentile(snapshot, total, 0.999) / 1000;
+        summary.maxMicros = max.get() / 1000.0;
+        return summary;
+    }
+
+    /**
+     * @param snapshot - bucket counts
+     * @param total - sum of the counts
+     * @param fraction - which percentile, e.g. 0.99
+     * @return - value below which that fraction of the recorded values fall, in nanoseconds
+     */
+    private static double percentile(long[] snapshot, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return middleOf(i);
+            }
+        }
+        return middleOf(snapshot.length - 1);
+    }
+
+    /**
+     * @return - sum of every recorded value, in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,94 @@
+package dns;
+
+import java.util.Arrays;
+
+/**
+ * Canonical cache key for a question. Names compare without regard to ASCII case (RFC 4343), so Example.COM and
+ * example.com share an entry. The key is the name in uncompressed wire format with A-Z folded to a-z, the type and
+ * class packed into one int, and a hash worked out once when the key is built rather than on every map probe.
+ * A name that is already lower case, as nearly all are, is shared with the question rather than copied.
+ */
+
+public final class DNSKey {
+
+    private byte[] name; // uncompressed wire format, lower case
+
+    private int typeAndClass; // qType << 16 | qClass
+
+    private int hash; // over name and typeAndClass
+
+    /**
+     * Builds the key for a name read off the wire. Label length bytes are at most 63 so can't be taken for letters.
+     * @param wireName - name in uncompressed wire format, not modified
+     * @param qType - question type
+     * @param qClass - question class
+     * @return - the canonical key
+     */
+    static DNSKey of(byte[] wireName, int qType, int qClass) {
+        DNSKey key = new DNSKey();
+        key.name = canonical(wireName);
+        int hash = 1;
+        for (byte b : key.name) {
+            hash = 31 * hash + b;
+        }
+        key.typeAndClass = qType << 16 | qClass;
+        key.hash = 31 * hash + key.typeAndClass;
+        return key;
+    }
+
+    /**
+     * @param wireName - name in uncompressed wire format, not modified
+     * @return - the name with A-Z folded to a-z; the same array if it has no upper case letters
+     */
+    static byte[] canonical(byte[] wireName) {
+        byte[] name = wireName;
+        for (int i = 0; i < wireName.length; ++i) {
+            byte b = wireName[i];
+            if (b >= 'A' && b <= 'Z') {
+                if (name == wireName) {
+                    name = wireName.clone();
+                }
+                name[i] = (byte) (b + 'a' - 'A');
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return - the name in uncompressed wire format with letters in lower case, not to be modified
+     */
+    byte[] getName() {
+        return name;
+    }
+
+    /**
+     * @return - qType << 16 | qClass
+     */
+    int getTypeAndClass() {
+        return typeAndClass;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DNSKey)) return false;
+        DNSKey that = (DNSKey) o;
+        return hash == that.hash &&
+                typeAndClass == that.typeAndClass &&
+                Arrays.equals(name, that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "DNSKey{" +
+                "name=" + DNSMessage.octetsToString(DNSMessage.nameToLabels(name)) +
+                ", qType=" + (typeAndClass >>> 16) +
+                ", qClass=" + (typeAndClass & 0xffff) +
+                '}';
+    }
+}
@@ -0,0 +1,466 @@
+package dns;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This corresponds to an entire DNS Message. It should contain:
+ * + the DNS Header
+ * + an array of questions
+ * + an array of answers
+ * + an array of "authority records", kept so negative answers can carry their SOA
+ * + an array of "additional records", of which only the EDNS0 OPT record is looked at
+ *
+ * Decoding works directly on the received datagram through a ByteBuffer and a read cursor; nothing is copied
+ * except the pieces the message keeps. Names are kept in uncompressed wire format (length-prefixed labels, 0 at
+ * the end) and only turned into Strings when asked for. The buffer is only referenced while decoding, so the
+ * caller may reuse it once decodeMessage returns.
+ */
+
+public class DNSMessage {
+
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private static final int MIN_UDP_PAYLOAD = 512; // what every client accepts, with or without EDNS
+
+    private static final int MIN_QUESTION_SIZE = 5; // root name, type and class
+
+    private static final int MIN_RECORD_SIZE = 11; // root name, type, class, TTL and an empty RDATA
+
+    private static final byte[] QUERY_HEADER = {0, 0, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 1}; // RD set, one question, OPT
+
+    private ByteBuffer wire; // datagram being decoded, null once decoding is done
+
+    private int position; // read cursor into wire
+
+    private DNSRecord[] answers;
+
+    private DNSRecord[] authorities;
+
+    private int rcode;
+
+    private DNSHeader header;
+
+    private DNSQuestion[] questions;
+
+    private DNSRecord[] additionalRecords;
+
+    private int udpPayloadSize; // from the OPT record, 0 if the message has none
+
+    private boolean truncated;
+
+    private boolean authoritative;
+
+    /**
+     * Use this for the request/response messages
+     * @param bytes - bytes from the datagram packet
+     * @param length - number of valid bytes in the packet
+     * @return - this DNSMessage object containing the given message
+     */
+    static DNSMessage decodeMessage(byte[] bytes, int length) throws IOException {
+        return decodeMessage(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    /**
+     * Wraps a message without decoding anything, so single fields can be read with setPosition() and the read
+     * methods, e.g. one name
+     * @param wire - buffer holding the message, starting at the DNS header
+     * @return - message to read from
+     */
+    static DNSMessage wrap(ByteBuffer wire) {
+        DNSMessage msg = new DNSMessage();
+        msg.wire = wire;
+        return msg;
+    }
+
+    /**
+     * Decodes a message in place. Offsets are absolute within the buffer, which must start at the DNS header and
+     * whose limit marks the end of the message. Truncated input and looping compression pointers are reported as
+     * an IOException rather than read past, and so are section counts the message is too short to hold, before
+     * anything is allocated for them.
+     * @param wire - buffer holding the message
+     * @return - this DNSMessage object containing the given message
+     */
+    static DNSMessage decodeMessage(ByteBuffer wire) throws IOException {
+        DNSMessage msg = new DNSMessage();
+        msg.wire = wire;
+        msg.header = DNSHeader.decodeHeader(wire); // Generate the header from the buffer
+        msg.position = 12;
+        long smallest = (long) msg.header.getQuestionCount() * MIN_QUESTION_SIZE + ((long) msg.header.getAnswerCount()
+                + msg.header.getAuthorityCount() + msg.header.getAdditionalCount()) * MIN_RECORD_SIZE;
+        if (smallest > wire.limit() - msg.position) {
+            throw new EOFException("DNS message too short for its section counts");
+        }
+
+        // Generate the question objects from the buffer
+        msg.questions = new DNSQuestion[msg.header.getQuestionCount()];
+        for (int x = 0; x < msg.questions.length; ++x) {
+            msg.questions[x] = DNSQuestion.decodeQuestion(msg);
+        }
+
+        msg.answers = msg.decodeSection(msg.header.getAnswerCount());
+        msg.authorities = msg.decodeSection(msg.header.getAuthorityCount());
+        msg.additionalRecords = msg.decodeSection(msg.header.getAdditionalCount());
+        msg.rcode = msg.header.getRcode();
+        msg.truncated = msg.header.isTruncated();
+        msg.authoritative = msg.header.isAuthoritative();
+        for (DNSRecord record : msg.additionalRecords) {
+            if (record.getType() == DNSRecord.TYPE_OPT) {
+                msg.udpPayloadSize = Math.max(MIN_UDP_PAYLOAD, record.getRecordClass());
+                break;
+            }
+        }
+
+        msg.wire = null;
+        return msg;
+    }
+
+    /**
+     * @param count - number of records in the section
+     * @return - the decoded records
+     */
+    private DNSRecord[] decodeSection(int count) throws IOException {
+        if (count == 0) {
+            return NO_RECORDS;
+        }
+        if (count > (wire.limit() - position) / MIN_RECORD_SIZE) {
+            throw new EOFException("DNS message too short for its section counts");
+        }
+        DNSRecord[] records = new DNSRecord[count];
+        for (int x = 0; x < count; ++x) {
+            records[x] = DNSRecord.decodeRecord(this);
+        }
+        return records;
+    }
+
+    /**
+     * @param offset - absolute offset in the message
+     * @return - the unsigned byte at offset
+     * @throws IOException - if offset is past the end of the message
+     */
+    private int byteAt(int offset) throws IOException {
+        if (offset >= wire.limit()) {
+            throw new EOFException("Truncated DNS message");
+        }
+        return wire.get(offset) & 0xff;
+    }
+
+    /**
+     * @return - unsigned 16 bit value at the cursor, cursor moves past it
+     */
+    int readShort() throws IOException {
+        int value = (byteAt(position) << 8) | byteAt(position + 1);
+        position += 2;
+        return value;
+    }
+
+    /**
+     * @return - unsigned 32 bit value at the cursor, cursor moves past it
+     */
+    long readInt() throws IOException {
+        long value = ((long) readShort() << 16) | readShort();
+        return value;
+    }
+
+    /**
+     * Copies bytes out of the message
+     * @param length - number of bytes to copy
+     * @return - the bytes at the cursor, cursor moves past them
+     */
+    byte[] readBytes(int length) throws IOException {
+        if (length > 0) {
+            byteAt(position + length - 1);
+        }
+        byte[] bytes = new byte[length];
+        wire.get(position, bytes);
+        position += length;
+        return bytes;
+    }
+
+    /**
+     * @return - offset of the next byte the cursor will read
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * @param position - offset the cursor should read from next
+     */
+    void setPosition(int position) {
+        this.position = position;
+    }
+
+    /**
+     * Reads the domain name at the cursor, following compression pointers, and moves the cursor past the name as
+     * it is written at this spot (so past the pointer, not past the name it points to).
+     * @return - the name in uncompressed wire format
+     */
+    byte[] readName() throws IOException {
+        byte[] name = new byte[expandedNameLength(position)];
+        int offset = position;
+        int out = 0;
+        int end = -1; // where the cursor resumes, fixed by the first pointer we follow
+        int len = byteAt(offset);
+        while (len != 0) {
+            if ((len & 0xc0) == 0xc0) {
+                if (end < 0) {
+                    end = offset + 2;
+                }
+                offset = ((len & 0x3f) << 8) | byteAt(offset + 1);
+            } else {
+                wire.get(offset, name, out, len + 1);
+                out += len + 1;
+                offset += len + 1;
+            }
+            len = byteAt(offset);
+        }
+        name[out] = 0;
+        position = end < 0 ? offset + 1 : end;
+        return name;
+    }
+
+    /**
+     * Walks a name without copying it to find how long it is uncompressed. This is also where malformed names
+     * are caught: every pointer must jump to before the stretch of labels it was reached from, which rules out
+     * loops, and the result may not exceed 255 bytes.
+     * @param offset - offset of the name
+     * @return - length of the name in uncompressed wire format, including the terminating 0
+     */
+    private int expandedNameLength(int offset) throws IOException {
+        int length = 1;
+        int segmentStart = offset;
+        int len = byteAt(offset);
+        while (len != 0) {
+            if ((len & 0xc0) == 0xc0) {
+                int target = ((len & 0x3f) << 8) | byteAt(offset + 1);
+                if (target >= segmentStart) {
+                    throw new IOException("DNS compression pointer loop at offset " + offset);
+                }
+                offset = segmentStart = target;
+            } else if ((len & 0xc0) != 0) {
+                throw new IOException("Unsupported DNS label type at offset " + offset);
+            } else {
+                length += len + 1;
+                if (length > MAX_NAME_LENGTH) {
+                    throw new IOException("DNS name longer than 255 bytes at offset " + offset);
+                }
+                offset += len + 1;
+            }
+            len = byteAt(offset);
+        }
+        return length;
+    }
+
+    /**
+     * Splits a wire format name into its labels
+     * @param name - name in uncompressed wire format
+     * @return String array containing the sections of the domain name
+     */
+    static String[] nameToLabels(byte[] name) {
+        int count = 0;
+        for (int i = 0; name[i] != 0; i += (name[i] & 0xff) + 1) {
+            count++;
+        }
+        String[] labels = new String[count];
+        int i = 0;
+        for (int x = 0; x < count; ++x) {
+            labels[x] = new String(name, i + 1, name[i] & 0xff, StandardCharsets.ISO_8859_1);
+            i += (name[i] & 0xff) + 1;
+        }
+        return labels;
+    }
+
+    /**
+     * Makes the response from the request message which will contain the question header
+     * build a response based on the request and the answers you intend to send back.
+     * @param request - The original request the header and questions will be populated from
+     * @param answer - The answer from the cache or the upstream response
+     * @param opt - our OPT record, only included if the request had one of its own
+     * @return - Initialized response message
+     */
+    static DNSMessage buildResponse(DNSMessage request, DNSAnswer answer, DNSRecord opt) {
+        DNSMessage response = new DNSMessage();
+        response.questions = request.questions;
+        response.answers = answer.getAnswers();
+        response.authorities = answer.getAuthorities();
+        response.rcode = answer.getRcode();
+        response.truncated = answer.isTruncated();
+        response.authoritative = answer.isAuthoritative();
+        response.additionalRecords = request.hasEdns() ? new DNSRecord[] {opt} : NO_RECORDS;
+        response.header = DNSHeader.buildResponseHeader(request, response);
+        return response;
+    }
+
+    /**
+     * Builds the response for an answer too large for the client's UDP payload size: TC set, the question, no
+     * records except our OPT. The client is expected to ask again over TCP.
+     * @param request - The original request the header and questions will be populated from
+     * @param rcode - response code of the answer that didn't fit
+     * @param opt - our OPT record, only included if the request had one of its own
+     * @return - Initialized response message
+     */
+    static DNSMessage buildTruncated(DNSMessage request, int rcode, DNSRecord opt) {
+        DNSMessage response = new DNSMessage();
+        response.questions = request.questions;
+        response.answers = NO_RECORDS;
+        response.authorities = NO_RECORDS;
+        response.rcode = rcode;
+        response.truncated = true;
+        response.additionalRecords = request.hasEdns() ? new DNSRecord[] {opt} : NO_RECORDS;
+        response.header = DNSHeader.buildResponseHeader(request, response);
+        return response;
+    }
+
+    /**
+     * Builds a response for a cached answer that isn't tied to any request: zero ID, the one question, and no
+     * additional records. Used to pre-encode cache entries.
+     * @param question - question the answer belongs to
+     * @param answer - the cached answer
+     * @return - Initialized response message
+     */
+    static DNSMessage buildTemplate(DNSQuestion question, DNSAnswer answer) {
+        DNSMessage response = new DNSMessage();
+        response.questions = new DNSQuestion[] {question};
+        response.answers = answer.getAnswers();
+        response.authorities = answer.getAuthorities();
+        response.rcode = answer.getRcode();
+        response.authoritative = answer.isAuthoritative();
+        response.additionalRecords = NO_RECORDS;
+        response.header = DNSHeader.buildTemplateHeader(response);
+        return response;
+    }
+
+    /**
+     * Builds a standalone recursive query for a question, used for everything we ask upstream. It carries our own
+     * OPT record so the upstream can answer with up to udpPayloadSize bytes rather than 512, whatever the client
+     * that triggered it supports.
+     * @param question - question to ask
+     * @param opt - our OPT record
+     * @return - query bytes with a zero ID, the upstream client assigns the real one
+     */
+    static byte[] buildQuery(DNSQuestion question, DNSRecord opt) {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        encoder.writeBytes(QUERY_HEADER);
+        question.writeBytes(encoder);
+        opt.writeBytes(encoder);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * get the bytes to put in a packet and send back
+     * @return - byte array containing this message's data
+     */
+    byte[] toBytes() {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        writeTo(encoder);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Writes the whole message: header, questions, then the answer, authority and additional records
+     * @param encoder - encoder positioned at the start of the message
+     */
+    void writeTo(DNSEncoder encoder) {
+        header.writeBytes(encoder); // HEADER
+
+        for (DNSQuestion q : questions) { // QUESTIONS
+            q.writeBytes(encoder);
+        }
+
+        for (DNSRecord r : answers) { // ANSWERS
+            r.writeBytes(encoder);
+        }
+
+        for (DNSRecord r : authorities) { // AUTHORITY
+            r.writeBytes(encoder);
+        }
+
+        for (DNSRecord r : additionalRecords) { // Additional Records
+            r.writeBytes(encoder);
+        }
+    }
+
+    /**
+     * join the pieces of a domain name with dots ([ "utah", "edu"] -> "utah.edu" )
+     * @param octets - the domain String sections to be joined together
+     * @return - One string comprised of the passed domain name sections
+     */
+    static String octetsToString(String[] octets) {
+        if (octets.length == 0) {
+            return ".";
+        }
+        StringBuilder joinedSections = new StringBuilder();
+        for (int x = 0; x < octets.length-1; ++x) {
+            joinedSections.append(octets[x]).append('.');
+        }
+        joinedSections.append(octets[octets.length-1]);
+        return joinedSections.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DNSMessage{" +
+                "answers=" + Arrays.toString(answers) +
+                ", authorities=" + Arrays.toString(authorities) +
+                ", header=" + header +
+                ", question=" + Arrays.toString(questions) +
+                '}';
+    }
+
+    public DNSRecord[] getAnswers() {
+        return answers;
+    }
+
+    public DNSRecord[] getAuthorities() {
+        return authorities;
+    }
+
+    public DNSRecord[] getAdditionalRecords() {
+        return additionalRecords;
+    }
+
+    public int getRcode() {
+        return rcode;
+    }
+
+    /**
+     * @return - whether the message carries an EDNS0 OPT record
+     */
+    public boolean hasEdns() {
+        return udpPayloadSize != 0;
+    }
+
+    /**
+     * @return - largest UDP response the sender accepts: 512 without EDNS, else what its OPT record advertises
+     */
+    public int getUdpPayloadSize() {
+        return hasEdns() ? udpPayloadSize : MIN_UDP_PAYLOAD;
+    }
+
+    /**
+     * @return - whether the TC bit is set
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return - whether the AA bit is set, i.e. the answer comes from a zone we serve
+     */
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    public DNSHeader getHeader() {
+        return header;
+    }
+
+    public DNSQuestion[] getQuestions() {
+        return questions;
+    }
+}
@@ -0,0 +1,388 @@
+package dns;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics. The latency histograms live here and are recorded into by the shards and upstreams; every
+ * counter stays in the component that owns it, as a striped LongAdder or an atomic only its own thread writes,
+ * and is only read when someone asks. So the query path never takes a lock or touches a shared cache line for
+ * metrics. They are published over JMX as dns:type=Metrics and, when dns.metricsPort is set, as plain text in
+ * the Prometheus exposition format at http://dns.metricsAddress:dns.metricsPort/metrics.
+ */
+
+public class DNSMetrics implements DNSMetricsMXBean {
+
+    private DNSHistogram hitLatency = new DNSHistogram();
+
+    private DNSHistogram missLatency = new DNSHistogram();
+
+    private DNSHistogram upstreamRtt = new DNSHistogram();
+
+    private DNSServer server; // null until start()
+
+    private HttpServer httpServer; // null when the endpoint is turned off
+
+    /**
+     * Registers the metrics with JMX and starts the HTTP endpoint
+     * @param server - server whose components are read
+     * @param httpAddress - address the text endpoint listens on
+     * @param httpPort - TCP port of the text endpoint, 0 for none
+     * @throws IOException - if the port can't be bound or the MBean can't be registered
+     */
+    public void start(DNSServer server, String httpAddress, int httpPort) throws IOException {
+        this.server = server;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("dns:type=Metrics"));
+        } catch (JMException e) {
+            throw new IOException("Could not register the metrics with JMX", e);
+        }
+        if (httpPort > 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName(httpAddress), httpPort), 16);
+            httpServer.createContext("/metrics", this::handleScrape);
+            httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            httpServer.start();
+        }
+    }
+
+    /**
+     * Stops the HTTP endpoint
+     */
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * Answers a scrape of /metrics
+     * @param exchange - the HTTP request
+     * @throws IOException
+     */
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return - every metric in the Prometheus text format
+     */
+    String render() {
+        StringBuilder text = new StringBuilder(4096);
+        counter(text, "dns_queries_total", "Requests received over UDP and TCP", getQueries());
+        counter(text, "dns_cache_hits_total", "Requests answered from the cache", getCacheHits());
+        counter(text, "dns_cache_misses_total", "Requests forwarded upstream", getCacheMisses());
+        counter(text, "dns_authoritative_answers_total", "Requests answered from the local zones", getAuthoritativeAnswers());
+        counter(text, "dns_blocked_answers_total", "Requests answered from the blocklist", getBlockedAnswers());
+        counter(text, "dns_cache_expirations_total", "Cache entries removed because their TTL ran out", getCacheExpirations());
+        counter(text, "dns_cache_evictions_total", "Cache entries evicted to make room", getCacheEvictions());
+        counter(text, "dns_upstream_timeouts_total", "Upstream queries that ran out of attempts", getUpstreamTimeouts());
+        counter(text, "dns_upstream_errors_total", "Upstream replies that answered SERVFAIL or REFUSED", getUpstreamErrors());
+        counter(text, "dns_dropped_misses_total", "Cache misses answered SERVFAIL with nothing stale to give", getDroppedMisses());
+        counter(text, "dns_shed_misses_total", "Cache misses answered without asking upstream under overload", getShedMisses());
+        counter(text, "dns_stale_answers_total", "Answers served from expired cache entries", getStaleAnswers());
+        counter(text, "dns_malformed_requests_total", "Requests dropped because they couldn't be decoded", getMalformedRequests());
+        counter(text, "dns_truncated_total", "UDP responses replaced by an empty one with TC set", getTruncated());
+        counter(text, "dns_dropped_responses_total", "Responses lost on a full send queue or failed send", getDroppedResponses());
+        counter(text, "dns_internal_errors_total", "Unexpected errors while handling requests", getInternalErrors());
+        counter(text, "dns_coalesced_queries_total", "Misses that joined a question already waiting upstream", server.getCoalescedQueries());
+        counter(text, "dns_prefetches_total", "Background refreshes of hot entries close to expiry", server.getPrefetchesIssued());
+        gauge(text, "dns_cache_entries", "Entries in the cache", getCacheSize());
+        gauge(text, "dns_zone_records", "Records in the local zones", getZoneRecords());
+        gauge(text, "dns_blocklist_entries", "Names on the blocklists", getBlocklistEntries());
+        gauge(text, "dns_blocklist_bytes", "Memory the blocklists take up", server.getBlocklist().getMemoryBytes());
+        gauge(text, "dns_heap_used_bytes", "Heap in use", getHeapUsedBytes());
+        gauge(text, "dns_heap_committed_bytes", "Heap reserved from the OS",
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted());
+        gauge(text, "dns_direct_memory_bytes", "Direct buffer memory in use", getDirectMemoryBytes());
+        summary(text, "dns_hit_latency_seconds", "Time from reading a request to queueing its answer without going upstream", hitLatency);
+        summary(text, "dns_miss_latency_seconds", "Time from reading a request to queueing the upstream's answer", missLatency);
+        summary(text, "dns_upstream_rtt_seconds", "Round trip of upstream queries", upstreamRtt);
+
+        Map<String, long[]> perUpstream = new LinkedHashMap<>(); // queries, replies, failures; every shard has its own
+        for (DNSShard shard : server.getShards()) {
+            for (DNSUpstreamServer upstream : shard.getUpstream().getServers()) {
+                long[] counts = perUpstream.computeIfAbsent(upstream.getAddress().toString(), a -> new long[3]);
+                counts[0] += upstream.getQueries();
+                counts[1] += upstream.getReplies();
+                counts[2] += upstream.getFailures();
+            }
+        }
+        text.append("# TYPE dns_upstream_queries_total counter\n");
+        perUpstream.forEach((address, counts) -> labelled(text, "dns_upstream_queries_total", address, counts[0]));
+        text.append("# TYPE dns_upstream_replies_total counter\n");
+        perUpstream.forEach((address, counts) -> labelled(text, "dns_upstream_replies_total", address, counts[1]));
+        text.append("# TYPE dns_upstream_failures_total counter\n");
+        perUpstream.forEach((address, counts) -> labelled(text, "dns_upstream_failures_total", address, counts[2]));
+        return text.toString();
+    }
+
+    /**
+     * Appends a counter with its help and type lines
+     * @param text - text being built
+     * @param name - metric name
+     * @param help - what it counts
+     * @param value - current total
+     */
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a gauge with its help and type lines
+     * @param text - text being built
+     * @param name - metric name
+     * @param help - what it measures
+     * @param value - current value
+     */
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends one upstream's sample of a per-upstream metric
+     * @param text - text being built
+     * @param name - metric name
+     * @param upstream - address of the upstream
+     * @param value - current value
+     */
+    private static void labelled(StringBuilder text, String name, String upstream, long value) {
+        text.append(name).append("{upstream=\"").append(upstream).append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * Appends a histogram as a summary with its quantiles, sum and count, in seconds
+     * @param text - text being built
+     * @param name - metric name
+     * @param help - what it measures
+     * @param histogram - histogram to read
+     */
+    private static void summary(StringBuilder text, String name, String help, DNSHistogram histogram) {
+        DNSHistogram.Summary summary = histogram.summarize();
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+        quantile(text, name, "0.5", summary.getP50Micros());
+        quantile(text, name, "0.9", summary.getP90Micros());
+        quantile(text, name, "0.99", summary.getP99Micros());
+        quantile(text, name, "0.999", summary.getP999Micros());
+        text.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        text.append(name).append("_count ").append(summary.getCount()).append('\n');
+    }
+
+    /**
+     * Appends one quantile of a summary
+     * @param text - text being built
+     * @param name - metric name
+     * @param quantile - which quantile, e.g. "0.99"
+     * @param micros - its value in microseconds
+     */
+    private static void quantile(StringBuilder text, String name, String quantile, double micros) {
+        text.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(micros / 1e6).append('\n');
+    }
+
+    /**
+     * @return - histogram the shards record cache hit latencies in
+     */
+    DNSHistogram getHitLatencyHistogram() {
+        return hitLatency;
+    }
+
+    /**
+     * @return - histogram the shards record cache miss latencies in
+     */
+    DNSHistogram getMissLatencyHistogram() {
+        return missLatency;
+    }
+
+    /**
+     * @return - histogram the upstreams record round trips in
+     */
+    DNSHistogram getUpstreamRttHistogram() {
+        return upstreamRtt;
+    }
+
+    @Override
+    public long getQueries() {
+        long total = server.getTcpListener() == null ? 0 : server.getTcpListener().getQueries();
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getReceived();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCacheHits() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getHits();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getMisses();
+        }
+        return total;
+    }
+
+    @Override
+    public long getAuthoritativeAnswers() {
+        return server.getAuthoritativeAnswers();
+    }
+
+    @Override
+    public int getZoneRecords() {
+        return server.getZones().getRecordCount();
+    }
+
+    @Override
+    public long getBlockedAnswers() {
+        return server.getBlockedAnswers();
+    }
+
+    @Override
+    public int getBlocklistEntries() {
+        return server.getBlocklist().getEntryCount();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        return server.getCache().getExpirations();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return server.getCache().getEvictions();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return server.getCache().size();
+    }
+
+    @Override
+    public long getUpstreamTimeouts() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getUpstream().getTimeouts();
+        }
+        return total;
+    }
+
+    @Override
+    public long getUpstreamErrors() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getUpstream().getErrorReplies();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDroppedMisses() {
+        return server.getDroppedMisses();
+    }
+
+    @Override
+    public long getShedMisses() {
+        return server.getShedMisses();
+    }
+
+    @Override
+    public long getStaleAnswers() {
+        return server.getCache().getStaleAnswers();
+    }
+
+    @Override
+    public long getMalformedRequests() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getMalformedRequests();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTruncated() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getTruncated();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDroppedResponses() {
+        long total = 0;
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getListener().getDroppedResponses();
+        }
+        return total;
+    }
+
+    @Override
+    public long getInternalErrors() {
+        long total = server.getCache().getErrors();
+        for (DNSShard shard : server.getShards()) {
+            total += shard.getErrors();
+        }
+        return total;
+    }
+
+    @Override
+    public DNSHistogram.Summary getHitLatency() {
+        return hitLatency.summarize();
+    }
+
+    @Override
+    public DNSHistogram.Summary getMissLatency() {
+        return missLatency.summarize();
+    }
+
+    @Override
+    public DNSHistogram.Summary getUpstreamRtt() {
+        return upstreamRtt.summarize();
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getDirectMemoryBytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
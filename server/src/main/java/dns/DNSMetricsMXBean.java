@@ -0,0 +1,130 @@
+package dns;
+
+/**
+ * What the server publishes over JMX as dns:type=Metrics. Counters are totals since startup; latencies are in
+ * microseconds.
+ */
+
+public interface DNSMetricsMXBean {
+
+    /**
+     * @return - requests received over UDP and TCP
+     */
+    long getQueries();
+
+    /**
+     * @return - requests answered from the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return - requests forwarded upstream
+     */
+    long getCacheMisses();
+
+    /**
+     * @return - requests answered from the local zones
+     */
+    long getAuthoritativeAnswers();
+
+    /**
+     * @return - records in the local zones
+     */
+    int getZoneRecords();
+
+    /**
+     * @return - requests answered from the blocklist
+     */
+    long getBlockedAnswers();
+
+    /**
+     * @return - names on the blocklists
+     */
+    int getBlocklistEntries();
+
+    /**
+     * @return - cache entries removed because their TTL ran out
+     */
+    long getCacheExpirations();
+
+    /**
+     * @return - cache entries evicted to make room
+     */
+    long getCacheEvictions();
+
+    /**
+     * @return - entries in the cache
+     */
+    int getCacheSize();
+
+    /**
+     * @return - upstream queries that ran out of attempts without a reply
+     */
+    long getUpstreamTimeouts();
+
+    /**
+     * @return - upstream replies that answered SERVFAIL or REFUSED
+     */
+    long getUpstreamErrors();
+
+    /**
+     * @return - cache misses answered SERVFAIL because the upstream failed and nothing stale was cached
+     */
+    long getDroppedMisses();
+
+    /**
+     * @return - cache misses answered without asking the upstream because the miss workers were backed up
+     */
+    long getShedMisses();
+
+    /**
+     * @return - answers served from expired cache entries
+     */
+    long getStaleAnswers();
+
+    /**
+     * @return - requests dropped because they couldn't be decoded
+     */
+    long getMalformedRequests();
+
+    /**
+     * @return - UDP responses replaced by an empty one with TC set
+     */
+    long getTruncated();
+
+    /**
+     * @return - responses lost because the send queue was full or the send failed
+     */
+    long getDroppedResponses();
+
+    /**
+     * @return - unexpected errors while handling requests, sending responses or reading back the cache
+     */
+    long getInternalErrors();
+
+    /**
+     * @return - latency of requests answered from the cache, the local zones or the blocklist, from the datagram
+     * being read to the answer being queued
+     */
+    DNSHistogram.Summary getHitLatency();
+
+    /**
+     * @return - latency of requests that had to wait on the upstream
+     */
+    DNSHistogram.Summary getMissLatency();
+
+    /**
+     * @return - round trip of upstream queries
+     */
+    DNSHistogram.Summary getUpstreamRtt();
+
+    /**
+     * @return - heap in use, in bytes
+     */
+    long getHeapUsedBytes();
+
+    /**
+     * @return - direct buffer memory in use, in bytes
+     */
+    long getDirectMemoryBytes();
+}
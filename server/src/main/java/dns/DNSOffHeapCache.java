@@ -0,0 +1,908 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Cache backend for caches of millions of entries. Instead of a DNSQuestion, a Node, a DNSAnswer and their records
+ * on the heap, each entry is one chunk of direct memory holding the question's canonical name (as DNSKey has it),
+ * the answer's encoded response (as DNSWireResponse would keep it) and each record's TTL offset and retirement
+ * time. The index is an open addressing table of longs, also in direct memory, mapping a hash of the question to
+ * its chunk. The heap only holds the fixed bookkeeping below, so it doesn't grow with the cache and the collector
+ * has nothing to trace or copy however many entries there are.
+ *
+ * The cache is split into segments by hash, each with its own lock, memory, index and free lists, so lookups on
+ * different segments don't contend; a lookup holds its segment's lock only to probe and copy the bytes out.
+ * Memory is carved into 64K pages and each page into chunks of one size class, like a slab allocator. When a size
+ * class runs out of chunks it is given a free page, then evicts one of its own entries with the CLOCK algorithm (an
+ * entry hit since the hand last passed gets a second chance), and if it has no entries to evict it takes a page
+ * away from the class with the most. Retired entries are kept for the stale window like DNSCache does and are
+ * swept out in the background, a few pages at a time so lookups never wait long behind the sweep.
+ *
+ * A hit on the UDP fast path is a copy of the stored response with the ID, name and TTLs patched in, as in DNSCache.
+ * Paths that need answer objects (TCP, stale answers, snapshots) decode them from the stored response.
+ */
+
+public class DNSOffHeapCache implements DNSCacheStore {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    private static final int[] CHUNK_SIZES = {64, 80, 96, 128, 160, 192, 256, 320, 384, 512, 640, 768, 1024, 1280,
+            1536, 2048, 3072, 4096, 8192, 16384, 32768, 65536};
+
+    private static final int STATE = 0; // byte, FREE or LIVE
+
+    private static final int FLAGS = 1; // byte, REFERENCED | PREFETCHED | REFRESHING
+
+    private static final int NAME_LENGTH = 2; // short
+
+    private static final int HASH = 4; // int; next free chunk + 1 while the chunk is free
+
+    private static final int RETIREMENT = 8; // long, System.nanoTime() the answer retires at
+
+    private static final int INSERTED = 16; // long
+
+    private static final int FAILED_AT = 24; // long, System.nanoTime() resolving the question last failed, 0 if it hasn't
+
+    private static final int HITS = 32; // int
+
+    private static final int WIRE_LENGTH = 36; // int
+
+    private static final int TYPE_AND_CLASS = 40; // int, qType << 16 | qClass
+
+    private static final int RECORD_COUNT = 44; // short
+
+    private static final int HEADER = 46; // then the name in lower case, then each record's TTL offset and retirement, then the response
+
+    private static final int RECORD_BYTES = 10;
+
+    private static final int SWEEP_PAGES = 16; // pages the expiry sweep scans per hold of a segment's lock, 1MB
+
+    private static final byte FREE = 0;
+
+    private static final byte LIVE = 1;
+
+    private static final int REFERENCED = 1;
+
+    private static final int PREFETCHED = 2;
+
+    private static final int REFRESHING = 4;
+
+    private Segment[] segments;
+
+    private int segmentShift;
+
+    private int nextSweep; // segment the expiry sweep visits next
+
+    private ScheduledExecutorService expiryTimer;
+
+    private int prefetchHits;
+
+    private double prefetchFraction;
+
+    private Predicate<DNSQuestion> refresher; // starts a background refresh, false if it declined
+
+    private long staleNanos; // how long a retired entry is kept to answer from when the upstream fails
+
+    private long staleTtl; // TTL of stale answers, and how long after a failure they are served without asking again
+
+    private LongAdder prefetchHitCount = new LongAdder();
+
+    private LongAdder prefetchMissCount = new LongAdder();
+
+    private LongAdder expirations = new LongAdder();
+
+    private LongAdder evictions = new LongAdder();
+
+    private LongAdder staleAnswers = new LongAdder();
+
+    private LongAdder rejected = new LongAdder(); // answers too large for the largest chunk
+
+    private DNSErrorLog decodeErrors = new DNSErrorLog("Decoding a cached answer");
+
+    /**
+     * One independently locked part of the cache. Every method but the constructor needs the lock.
+     */
+    private class Segment {
+        private ReentrantLock lock = new ReentrantLock();
+        private ByteBuffer memory; // pages of chunks
+        private ByteBuffer index; // slots of hash << 32 | chunk offset + 1, 0 when empty
+        private int slotMask;
+        private int maxEntries;
+        private volatile int entries;
+        private int[] pageClass; // size class each page was carved for
+        private int nextPage; // pages from here on haven't been carved yet
+        private int[][] classPages; // pages carved for each size class
+        private int[] classPageCount;
+        private int[] classLive; // live entries in each size class
+        private int[] freeChunks; // head of each size class's free list, chunk offset + 1, 0 when empty
+        private int[] handPage; // each size class's CLOCK hand: position in classPages
+        private int[] handChunk; // and chunk within that page
+
+        private Segment(int pages, int maxEntries) {
+            this.maxEntries = maxEntries;
+            memory = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+            int slots = Integer.highestOneBit(maxEntries * 4 / 3 + 1) << 1;
+            index = ByteBuffer.allocateDirect(slots * 8);
+            slotMask = slots - 1;
+            pageClass = new int[pages];
+            classPages = new int[CHUNK_SIZES.length][];
+            classPageCount = new int[CHUNK_SIZES.length];
+            classLive = new int[CHUNK_SIZES.length];
+            freeChunks = new int[CHUNK_SIZES.length];
+            handPage = new int[CHUNK_SIZES.length];
+            handChunk = new int[CHUNK_SIZES.length];
+        }
+
+        /**
+         * @param hash - hash of the question
+         * @param domain - the question
+         * @return - index slot of its entry, or -1
+         */
+        private int find(int hash, DNSQuestion domain) {
+            DNSKey key = domain.getKey();
+            for (int slot = hash & slotMask; ; slot = (slot + 1) & slotMask) {
+                long value = index.getLong(slot << 3);
+                if (value == 0) {
+                    return -1;
+                }
+                if ((int) (value >>> 32) == hash && matches((int) value - 1, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * @param chunk - offset of a live chunk
+         * @param key - canonical key of the question
+         * @return - whether the chunk holds the entry for the question
+         */
+        private boolean matches(int chunk, DNSKey key) {
+            byte[] name = key.getName();
+            if (memory.getShort(chunk + NAME_LENGTH) != name.length
+                    || memory.getInt(chunk + TYPE_AND_CLASS) != key.getTypeAndClass()) {
+                return false;
+            }
+            for (int i = 0; i < name.length; ++i) {
+                if (memory.get(chunk + HEADER + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param slot - index slot in use
+         * @return - offset of the chunk it points to
+         */
+        private int chunkAt(int slot) {
+            return (int) index.getLong(slot << 3) - 1;
+        }
+
+        /**
+         * @param chunk - offset of a live chunk
+         * @return - index slot pointing to it
+         */
+        private int slotOf(int chunk) {
+            int slot = memory.getInt(chunk + HASH) & slotMask;
+            while ((int) index.getLong(slot << 3) != chunk + 1) {
+                slot = (slot + 1) & slotMask;
+            }
+            return slot;
+        }
+
+        /**
+         * Files a chunk in the index
+         * @param hash - hash of its question
+         * @param chunk - offset of the chunk
+         */
+        private void link(int hash, int chunk) {
+            int slot = hash & slotMask;
+            while (index.getLong(slot << 3) != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            index.putLong(slot << 3, (long) hash << 32 | (chunk + 1));
+        }
+
+        /**
+         * Removes an entry from the index and frees its chunk. Later slots of the same probe run are shifted back
+         * into the gap, so lookups never need tombstones.
+         * @param slot - index slot of the entry
+         */
+        private void remove(int slot) {
+            int chunk = chunkAt(slot);
+            int hole = slot;
+            for (int next = (slot + 1) & slotMask; ; next = (next + 1) & slotMask) {
+                long value = index.getLong(next << 3);
+                if (value == 0) {
+                    break;
+                }
+                int home = (int) (value >>> 32) & slotMask;
+                if (((next - home) & slotMask) >= ((next - hole) & slotMask)) {
+                    index.putLong(hole << 3, value);
+                    hole = next;
+                }
+            }
+            index.putLong(hole << 3, 0);
+
+            if ((memory.get(chunk + FLAGS) & PREFETCHED) != 0 && memory.getInt(chunk + HITS) == 0) {
+                prefetchMissCount.increment();
+            }
+            int sizeClass = pageClass[chunk / PAGE_SIZE];
+            classLive[sizeClass]--;
+            entries--;
+            free(sizeClass, chunk);
+        }
+
+        /**
+         * @param sizeClass - size class of the chunk
+         * @param chunk - offset of the chunk
+         */
+        private void free(int sizeClass, int chunk) {
+            memory.put(chunk + STATE, FREE);
+            memory.putInt(chunk + HASH, freeChunks[sizeClass]);
+            freeChunks[sizeClass] = chunk + 1;
+        }
+
+        /**
+         * Takes a free chunk of a size class, making room if there is none
+         * @param sizeClass - index into CHUNK_SIZES
+         * @param now - current System.nanoTime()
+         * @return - offset of the chunk
+         */
+        private int allocate(int sizeClass, long now) {
+            while (freeChunks[sizeClass] == 0) {
+                if (nextPage < pageClass.length) {
+                    carve(nextPage++, sizeClass);
+                } else if (classLive[sizeClass] > 0) {
+                    evict(sizeClass, now);
+                } else {
+                    stealPage(sizeClass);
+                }
+            }
+            int chunk = freeChunks[sizeClass] - 1;
+            freeChunks[sizeClass] = memory.getInt(chunk + HASH);
+            return chunk;
+        }
+
+        /**
+         * Cuts a page into free chunks of a size class
+         * @param page - page number
+         * @param sizeClass - index into CHUNK_SIZES
+         */
+        private void carve(int page, int sizeClass) {
+            if (classPages[sizeClass] == null) {
+                classPages[sizeClass] = new int[pageClass.length];
+            }
+            pageClass[page] = sizeClass;
+            classPages[sizeClass][classPageCount[sizeClass]++] = page;
+            int size = CHUNK_SIZES[sizeClass];
+            for (int i = PAGE_SIZE / size - 1; i >= 0; --i) {
+                free(sizeClass, page * PAGE_SIZE + i * size);
+            }
+        }
+
+        /**
+         * Evicts one entry of a size class with the CLOCK algorithm. There must be at least one.
+         * @param sizeClass - index into CHUNK_SIZES
+         * @param now - current System.nanoTime()
+         */
+        private void evict(int sizeClass, long now) {
+            int size = CHUNK_SIZES[sizeClass];
+            int perPage = PAGE_SIZE / size;
+            while (true) {
+                if (handChunk[sizeClass] == perPage) {
+                    handChunk[sizeClass] = 0;
+                    handPage[sizeClass] = (handPage[sizeClass] + 1) % classPageCount[sizeClass];
+                }
+                int chunk = classPages[sizeClass][handPage[sizeClass]] * PAGE_SIZE + handChunk[sizeClass]++ * size;
+                if (memory.get(chunk + STATE) != LIVE) {
+                    continue;
+                }
+                byte flags = memory.get(chunk + FLAGS);
+                boolean retired = memory.getLong(chunk + RETIREMENT) - now <= 0;
+                if ((flags & REFERENCED) != 0 && !retired) {
+                    memory.put(chunk + FLAGS, (byte) (flags & ~REFERENCED)); // second chance
+                    continue;
+                }
+                remove(slotOf(chunk));
+                (retired ? expirations : evictions).increment();
+                return;
+            }
+        }
+
+        /**
+         * Evicts one entry to make room in the index, from the given size class if it has any and otherwise from
+         * the one with the most
+         * @param sizeClass - size class of the entry being added
+         * @param now - current System.nanoTime()
+         */
+        private void evictAny(int sizeClass, long now) {
+            int victim = sizeClass;
+            if (classLive[victim] == 0) {
+                for (int other = 0; other < CHUNK_SIZES.length; ++other) {
+                    if (classLive[other] > classLive[victim]) {
+                        victim = other;
+                    }
+                }
+            }
+            evict(victim, now);
+        }
+
+        /**
+         * Gives a size class without pages or entries a page taken from the class with the most pages, evicting
+         * everything on it
+         * @param sizeClass - index into CHUNK_SIZES
+         */
+        private void stealPage(int sizeClass) {
+            int victim = -1;
+            for (int other = 0; other < CHUNK_SIZES.length; ++other) {
+                if (other != sizeClass && (victim < 0 || classPageCount[other] > classPageCount[victim])) {
+                    victim = other;
+                }
+            }
+            int page = classPages[victim][--classPageCount[victim]];
+            int size = CHUNK_SIZES[victim];
+            int start = page * PAGE_SIZE;
+            int end = start + PAGE_SIZE / size * size;
+            for (int chunk = start; chunk < end; chunk += size) {
+                if (memory.get(chunk + STATE) == LIVE) {
+                    remove(slotOf(chunk));
+                    evictions.increment();
+                }
+            }
+
+            int head = 0; // the victim's free list without the chunks of this page
+            int tail = -1;
+            for (int next = freeChunks[victim]; next != 0; ) {
+                int chunk = next - 1;
+                next = memory.getInt(chunk + HASH);
+                if (chunk < start || chunk >= end) {
+                    if (tail < 0) {
+                        head = chunk + 1;
+                    } else {
+                        memory.putInt(tail + HASH, chunk + 1);
+                    }
+                    tail = chunk;
+                }
+            }
+            if (tail >= 0) {
+                memory.putInt(tail + HASH, 0);
+            }
+            freeChunks[victim] = head;
+            if (handPage[victim] >= classPageCount[victim]) {
+                handPage[victim] = 0;
+                handChunk[victim] = 0;
+            }
+            carve(page, sizeClass);
+        }
+
+        /**
+         * Records a hit on a live entry
+         * @param chunk - offset of the entry's chunk
+         * @param now - current System.nanoTime()
+         * @return - whether the entry should now be refreshed in the background
+         */
+        private boolean onHit(int chunk, long now) {
+            byte flags = memory.get(chunk + FLAGS);
+            int hits = memory.getInt(chunk + HITS) + 1;
+            memory.putInt(chunk + HITS, hits);
+            if ((flags & PREFETCHED) != 0) {
+                prefetchHitCount.increment();
+            }
+            long retirement = memory.getLong(chunk + RETIREMENT);
+            long inserted = memory.getLong(chunk + INSERTED);
+            boolean refresh = refresher != null && (flags & REFRESHING) == 0 && hits >= prefetchHits
+                    && retirement - now < (retirement - inserted) * prefetchFraction;
+            memory.put(chunk + FLAGS, (byte) (flags | REFERENCED | (refresh ? REFRESHING : 0)));
+            return refresh;
+        }
+
+        /**
+         * Writes an entry's response with an ID and current TTLs
+         * @param chunk - offset of the entry's chunk
+         * @param out - buffer written at its position, which moves past the response
+         * @param id - transaction ID
+         * @param name - asked name as the client spelled it, or null to keep the cached spelling
+         * @param now - current System.nanoTime()
+         */
+        private void writeWire(int chunk, ByteBuffer out, int id, byte[] name, long now) {
+            int records = memory.getShort(chunk + RECORD_COUNT);
+            int recordsAt = chunk + HEADER + memory.getShort(chunk + NAME_LENGTH);
+            int wireAt = recordsAt + records * RECORD_BYTES;
+            int length = memory.getInt(chunk + WIRE_LENGTH);
+            int start = out.position();
+            out.put(start, memory, wireAt, length);
+            out.position(start + length);
+            out.putShort(start, (short) id);
+            if (name != null) {
+                out.put(start + 12, name); // the question always sits right after the header
+            }
+            for (int i = 0; i < records; ++i) {
+                int ttlOffset = memory.getShort(recordsAt + i * RECORD_BYTES) & 0xffff;
+                long retirement = memory.getLong(recordsAt + i * RECORD_BYTES + 2);
+                out.putInt(start + ttlOffset, (int) Math.max(0, (retirement - now) / 1_000_000_000L));
+            }
+        }
+
+        /**
+         * @param chunk - offset of the entry's chunk
+         * @param now - current System.nanoTime()
+         * @return - the entry's response with current TTLs, to decode once the lock is released
+         */
+        private byte[] copyWire(int chunk, long now) {
+            ByteBuffer copy = ByteBuffer.allocate(memory.getInt(chunk + WIRE_LENGTH));
+            writeWire(chunk, copy, 0, null, now);
+            return copy.array();
+        }
+
+        /**
+         * Removes every entry past its retirement and stale window from the next few pages
+         * @param fromPage - first page to sweep
+         * @param now - current System.nanoTime()
+         * @return - page to carry on from, or -1 once every carved page has been swept
+         */
+        private int sweep(int fromPage, long now) {
+            int toPage = Math.min(nextPage, fromPage + SWEEP_PAGES);
+            for (int page = fromPage; page < toPage; ++page) {
+                int size = CHUNK_SIZES[pageClass[page]];
+                int end = page * PAGE_SIZE + PAGE_SIZE / size * size;
+                for (int chunk = page * PAGE_SIZE; chunk < end; chunk += size) {
+                    if (memory.get(chunk + STATE) == LIVE && now - memory.getLong(chunk + RETIREMENT) >= staleNanos) {
+                        remove(slotOf(chunk));
+                        expirations.increment();
+                    }
+                }
+            }
+            return toPage < nextPage ? toPage : -1;
+        }
+    }
+
+    /**
+     * Allocates the cache's memory up front and starts the expiry sweep
+     * @param maxEntries - most entries the cache will hold before evicting
+     * @param capacityBytes - direct memory for the entries; the index takes about 16 bytes more per entry. The JVM
+     *                      must be allowed this much with -XX:MaxDirectMemorySize if it is more than the heap.
+     * @param prefetchHits - hits an entry needs before it is refreshed ahead of expiry
+     * @param prefetchFraction - share of its lifetime an entry has left when it is refreshed
+     */
+    public DNSOffHeapCache(int maxEntries, long capacityBytes, int prefetchHits, double prefetchFraction) {
+        this.prefetchHits = prefetchHits;
+        this.prefetchFraction = prefetchFraction;
+        long pages = Math.max(1, capacityBytes / PAGE_SIZE);
+        int segmentCount = Integer.highestOneBit((int) Math.max(1, Math.min(64, pages / 16)));
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        segments = new Segment[segmentCount];
+        int pagesPerSegment = (int) Math.min(Integer.MAX_VALUE / PAGE_SIZE, Math.max(1, pages / segmentCount));
+        for (int i = 0; i < segmentCount; ++i) {
+            segments[i] = new Segment(pagesPerSegment, Math.max(1, maxEntries / segmentCount));
+        }
+        expiryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread timer = new Thread(runnable, "dns-cache-expiry");
+            timer.setDaemon(true);
+            return timer;
+        });
+        expiryTimer.scheduleAtFixedRate(this::sweepSome, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void setRefresher(Predicate<DNSQuestion> refresher) {
+        this.refresher = refresher;
+    }
+
+    @Override
+    public void refreshFailed(DNSQuestion domain) {
+        int hash = hash(domain);
+        clearRefreshing(domain, hash, segmentOf(hash));
+    }
+
+    @Override
+    public void setServeStale(long staleSeconds, long staleTtl) {
+        this.staleNanos = TimeUnit.SECONDS.toNanos(staleSeconds);
+        this.staleTtl = staleTtl;
+    }
+
+    @Override
+    public void addAnswer(DNSQuestion domain, DNSAnswer answer, boolean prefetched) {
+        if (answer.isCacheable()) {
+            insert(domain, answer, prefetched, false);
+        }
+    }
+
+    @Override
+    public boolean restoreAnswer(DNSQuestion domain, DNSAnswer answer) {
+        return answer.isCacheable() && insert(domain, answer, false, true);
+    }
+
+    /**
+     * Encodes an entry and copies it into a chunk of its segment, evicting to make room
+     * @param domain - question the answer belongs to
+     * @param answer - cacheable answer
+     * @param prefetched - whether this is a background refresh
+     * @param onlyIfAbsent - leave an existing entry for the question alone
+     * @return - whether the entry was added
+     */
+    private boolean insert(DNSQuestion domain, DNSAnswer answer, boolean prefetched, boolean onlyIfAbsent) {
+        DNSWireResponse wire = DNSWireResponse.encode(domain, answer);
+        byte[] name = domain.getKey().getName();
+        int[] ttlOffsets = wire.getTtlOffsets();
+        long[] retirements = wire.getRetirements();
+        int sizeClass = sizeClassOf(HEADER + name.length + ttlOffsets.length * RECORD_BYTES + wire.length());
+        if (sizeClass < 0) {
+            rejected.increment();
+            return false;
+        }
+        long now = System.nanoTime();
+        int hash = hash(domain);
+        Segment segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            if (slot >= 0) {
+                if (onlyIfAbsent) {
+                    return false;
+                }
+                segment.remove(slot);
+            }
+            while (segment.entries >= segment.maxEntries) {
+                segment.evictAny(sizeClass, now);
+            }
+            int chunk = segment.allocate(sizeClass, now);
+            ByteBuffer memory = segment.memory;
+            memory.put(chunk + STATE, LIVE);
+            memory.put(chunk + FLAGS, (byte) (prefetched ? PREFETCHED : 0));
+            memory.putShort(chunk + NAME_LENGTH, (short) name.length);
+            memory.putInt(chunk + HASH, hash);
+            memory.putLong(chunk + RETIREMENT, answer.getRetirement());
+            memory.putLong(chunk + INSERTED, now);
+            memory.putLong(chunk + FAILED_AT, 0);
+            memory.putInt(chunk + HITS, 0);
+            memory.putInt(chunk + WIRE_LENGTH, wire.length());
+            memory.putInt(chunk + TYPE_AND_CLASS, domain.getKey().getTypeAndClass());
+            memory.putShort(chunk + RECORD_COUNT, (short) ttlOffsets.length);
+            memory.put(chunk + HEADER, name);
+            int position = chunk + HEADER + name.length;
+            for (int i = 0; i < ttlOffsets.length; ++i) {
+                memory.putShort(position, (short) ttlOffsets[i]);
+                memory.putLong(position + 2, retirements[i]);
+                position += RECORD_BYTES;
+            }
+            memory.put(position, wire.getEncoded());
+            segment.link(hash, chunk);
+            segment.classLive[sizeClass]++;
+            segment.entries++;
+        } finally {
+            segment.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Walks one segment at a time, copying its live entries out under the lock and decoding them after
+     */
+    @Override
+    public void forEachAnswer(BiConsumer<DNSQuestion, DNSAnswer> action) {
+        for (Segment segment : segments) {
+            ArrayList<byte[]> copies = new ArrayList<>();
+            long now = System.nanoTime();
+            segment.lock.lock();
+            try {
+                for (int page = 0; page < segment.nextPage; ++page) {
+                    int size = CHUNK_SIZES[segment.pageClass[page]];
+                    int end = page * PAGE_SIZE + PAGE_SIZE / size * size;
+                    for (int chunk = page * PAGE_SIZE; chunk < end; chunk += size) {
+                        if (segment.memory.get(chunk + STATE) == LIVE
+                                && segment.memory.getLong(chunk + RETIREMENT) - now > 0) {
+                            copies.add(segment.copyWire(chunk, now));
+                        }
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            for (byte[] copy : copies) {
+                DNSMessage response = decode(copy);
+                if (response != null) {
+                    action.accept(response.getQuestions()[0], DNSAnswer.fromResponse(response, Long.MAX_VALUE));
+                }
+            }
+        }
+    }
+
+    @Override
+    public DNSAnswer get(DNSQuestion domain) {
+        long now = System.nanoTime();
+        int hash = hash(domain);
+        Segment segment = segmentOf(hash);
+        byte[] copy;
+        boolean refresh;
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            int chunk = slot < 0 ? -1 : segment.chunkAt(slot);
+            if (chunk < 0 || !isLive(segment, slot, chunk, now)) {
+                return null;
+            }
+            refresh = segment.onHit(chunk, now);
+            copy = segment.copyWire(chunk, now);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (refresh) {
+            refresh(domain, hash, segment);
+        }
+        DNSMessage response = decode(copy);
+        return response == null ? null : DNSAnswer.fromResponse(response, Long.MAX_VALUE);
+    }
+
+    @Override
+    public int writeResponse(DNSQuestion domain, int id, ByteBuffer out) {
+        long now = System.nanoTime();
+        int hash = hash(domain);
+        Segment segment = segmentOf(hash);
+        int length;
+        boolean refresh;
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            int chunk = slot < 0 ? -1 : segment.chunkAt(slot);
+            if (chunk < 0 || !isLive(segment, slot, chunk, now)) {
+                return 0;
+            }
+            refresh = segment.onHit(chunk, now);
+            length = segment.memory.getInt(chunk + WIRE_LENGTH);
+            if (length > out.remaining()) {
+                length = -1;
+            } else {
+                segment.writeWire(chunk, out, id, domain.getWireName(), now);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        if (refresh) {
+            refresh(domain, hash, segment);
+        }
+        return length;
+    }
+
+    /**
+     * Checks an entry found by a lookup, removing it if it is past its stale window. Caller holds the lock.
+     * @param segment - segment of the entry
+     * @param slot - its index slot
+     * @param chunk - its chunk
+     * @param now - current System.nanoTime()
+     * @return - whether the entry is live, i.e. a hit
+     */
+    private boolean isLive(Segment segment, int slot, int chunk, long now) {
+        long retirement = segment.memory.getLong(chunk + RETIREMENT);
+        if (retirement - now > 0) {
+            return true;
+        }
+        if (now - retirement >= staleNanos) {
+            segment.remove(slot);
+            expirations.increment();
+        }
+        return false;
+    }
+
+    /**
+     * Asks the refresher to renew an entry, and lets a later hit try again if it declines
+     * @param domain - question of the entry
+     * @param hash - its hash
+     * @param segment - its segment
+     */
+    private void refresh(DNSQuestion domain, int hash, Segment segment) {
+        if (!refresher.test(domain)) {
+            clearRefreshing(domain, hash, segment);
+        }
+    }
+
+    /**
+     * Lets a later hit on an entry start a refresh again
+     * @param domain - question of the entry
+     * @param hash - its hash
+     * @param segment - its segment
+     */
+    private void clearRefreshing(DNSQuestion domain, int hash, Segment segment) {
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            if (slot >= 0) {
+                int chunk = segment.chunkAt(slot);
+                segment.memory.put(chunk + FLAGS, (byte) (segment.memory.get(chunk + FLAGS) & ~REFRESHING));
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public DNSAnswer getStale(DNSQuestion domain, boolean onlyAfterFailure) {
+        long now = System.nanoTime();
+        int hash = hash(domain);
+        Segment segment = segmentOf(hash);
+        byte[] copy;
+        boolean live;
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            if (slot < 0) {
+                return null;
+            }
+            int chunk = segment.chunkAt(slot);
+            long retirement = segment.memory.getLong(chunk + RETIREMENT);
+            if (now - retirement >= staleNanos) {
+                return null;
+            }
+            live = retirement - now > 0;
+            long failedAt = segment.memory.getLong(chunk + FAILED_AT);
+            if (!live && onlyAfterFailure && (failedAt == 0 || now - failedAt >= TimeUnit.SECONDS.toNanos(staleTtl))) {
+                return null;
+            }
+            copy = segment.copyWire(chunk, now);
+        } finally {
+            segment.lock.unlock();
+        }
+        DNSMessage response = decode(copy);
+        if (response == null) {
+            return null;
+        }
+        DNSAnswer answer = DNSAnswer.fromResponse(response, Long.MAX_VALUE);
+        if (live) {
+            return answer;
+        }
+        staleAnswers.increment();
+        return answer.withStaleTtl(staleTtl, now);
+    }
+
+    @Override
+    public boolean hasStale(DNSQuestion domain) {
+        long now = System.nanoTime();
+        int hash = hash(domain);
+        Segment segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            return slot >= 0 && now - segment.memory.getLong(segment.chunkAt(slot) + RETIREMENT) < staleNanos;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void resolutionFailed(DNSQuestion domain) {
+        int hash = hash(domain);
+        Segment segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, domain);
+            if (slot >= 0) {
+                segment.memory.putLong(segment.chunkAt(slot) + FAILED_AT, System.nanoTime());
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Expiry timer tick: sweeps an eighth of the segments, so every entry is looked at every 8 seconds. The lock
+     * is taken for SWEEP_PAGES pages at a time and released in between, so lookups queue behind a megabyte of
+     * scanning at most, however large the segment.
+     */
+    private void sweepSome() {
+        for (int i = 0; i < Math.max(1, segments.length / 8); ++i) {
+            Segment segment = segments[nextSweep];
+            nextSweep = (nextSweep + 1) % segments.length;
+            for (int page = 0; page >= 0; ) {
+                segment.lock.lock();
+                try {
+                    page = segment.sweep(page, System.nanoTime());
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param copy - response copied out of a chunk
+     * @return - the decoded response, or null if it can't be decoded, which only a bug would cause
+     */
+    private DNSMessage decode(byte[] copy) {
+        try {
+            return DNSMessage.decodeMessage(copy, copy.length);
+        } catch (IOException e) {
+            decodeErrors.report(e);
+            return null;
+        }
+    }
+
+    /**
+     * @param size - bytes an entry needs
+     * @return - index of the smallest chunk size that holds it, or -1 if none does
+     */
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < CHUNK_SIZES.length; ++i) {
+            if (CHUNK_SIZES[i] >= size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param domain - question
+     * @return - its hash, spread so both the segment (high bits) and the slot (low bits) are well mixed
+     */
+    private static int hash(DNSQuestion domain) {
+        int hash = domain.getKey().hashCode() * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param hash - hash of a question
+     * @return - the segment it belongs to
+     */
+    private Segment segmentOf(int hash) {
+        return segments[(int) ((hash & 0xffffffffL) >>> segmentShift)];
+    }
+
+    @Override
+    public void close() {
+        expiryTimer.shutdownNow();
+    }
+
+    @Override
+    public int size() {
+        int total = 0;
+        for (Segment segment : segments) {
+            total += segment.entries;
+        }
+        return total;
+    }
+
+    @Override
+    public long getPrefetchHits() {
+        return prefetchHitCount.sum();
+    }
+
+    @Override
+    public long getPrefetchMisses() {
+        return prefetchMissCount.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getStaleAnswers() {
+        return staleAnswers.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return decodeErrors.getCount();
+    }
+
+    /**
+     * @return - answers not cached because they are larger than the largest chunk
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
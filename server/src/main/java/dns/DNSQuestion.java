@@ -0,0 +1,141 @@
+package dns;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class DNSQuestion {
+
+    private byte[] domain; // uncompressed wire format
+
+    private int qType;
+
+    private int qClass;
+
+    private DNSKey key; // canonical form the caches and pending table are keyed by
+
+    /**
+     * Read a question at the message's read cursor. Due to compression, the parent is needed to resolve the name.
+     * @param message - message the question is being read from
+     * @return DNSQuestion object containing decoded question from the given request
+     */
+    static DNSQuestion decodeQuestion(DNSMessage message) throws IOException {
+        DNSQuestion newQ = new DNSQuestion();
+        newQ.domain = message.readName();
+        newQ.qType = message.readShort();
+        newQ.qClass = message.readShort();
+        newQ.key = DNSKey.of(newQ.domain, newQ.qType, newQ.qClass);
+        return newQ;
+    }
+
+    /**
+     * Builds a question we ask ourselves, such as the target of a CNAME
+     * @param domain - name in uncompressed wire format
+     * @param qType - question type
+     * @param qClass - question class
+     * @return - the question
+     */
+    static DNSQuestion forName(byte[] domain, int qType, int qClass) {
+        DNSQuestion newQ = new DNSQuestion();
+        newQ.domain = domain;
+        newQ.qType = qType;
+        newQ.qClass = qClass;
+        newQ.key = DNSKey.of(domain, qType, qClass);
+        return newQ;
+    }
+
+    /**
+     * Write the question bytes which will be sent to the client. The encoder compresses the name against the
+     * names already in the message.
+     * @param encoder - encoder for the message being built
+     */
+    void writeBytes(DNSEncoder encoder) {
+        encoder.writeName(this.domain);
+        encoder.writeShort(qType); // question type bytes
+        encoder.writeShort(qClass); // question class bytes
+    }
+
+    /**
+     * Writes the question to a cache snapshot
+     * @param out - snapshot being written
+     * @throws IOException
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeByte(domain.length);
+        out.write(domain);
+        out.writeShort(qType);
+        out.writeShort(qClass);
+    }
+
+    /**
+     * Reads back a question written by writeSnapshot
+     * @param in - snapshot being read
+     * @return - the question
+     */
+    static DNSQuestion readSnapshot(ByteBuffer in) {
+        DNSQuestion newQ = new DNSQuestion();
+        newQ.domain = new byte[in.get() & 0xff];
+        in.get(newQ.domain);
+        newQ.qType = in.getShort() & 0xffff;
+        newQ.qClass = in.getShort() & 0xffff;
+        newQ.key = DNSKey.of(newQ.domain, newQ.qType, newQ.qClass);
+        return newQ;
+    }
+
+    /**
+     * @return - the asked name in uncompressed wire format, not to be modified
+     */
+    byte[] getWireName() {
+        return domain;
+    }
+
+    /**
+     * @return - the question's canonical key, equal for questions that differ only in the case of the name
+     */
+    DNSKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return - the labels of the asked name, decoded on each call
+     */
+    public String[] getDomain() {
+        return DNSMessage.nameToLabels(domain);
+    }
+
+    public int getQType() {
+        return qType;
+    }
+
+    public int getQClass() {
+        return qClass;
+    }
+
+    @Override
+    public String toString() {
+        return "DNSQuestion{" +
+                "domain=" + DNSMessage.octetsToString(getDomain()) +
+                ", qType=" + qType +
+                ", qClass=" + qClass +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DNSQuestion that = (DNSQuestion) o;
+        return qType == that.qType &&
+                qClass == that.qClass &&
+                Arrays.equals(domain, that.domain);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(domain);
+        result = 31 * result + qType;
+        result = 31 * result + qClass;
+        return result;
+    }
+}
@@ -0,0 +1,425 @@
+package dns;
+
+/*
+ * Everything after the header and question parts of the DNS message are stored as records.
+ * This should have all the fields listed in the spec as well as a Date object storing when
+ * this record was created by your program (kept as the monotonic System.nanoTime() at which it retires).
+ */
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+public class DNSRecord {
+
+    static final int TYPE_A = 1;
+
+    static final int TYPE_NS = 2;
+
+    static final int TYPE_CNAME = 5;
+
+    static final int TYPE_SOA = 6;
+
+    static final int TYPE_PTR = 12;
+
+    static final int TYPE_MX = 15;
+
+    static final int TYPE_TXT = 16;
+
+    static final int TYPE_AAAA = 28;
+
+    static final int TYPE_SRV = 33;
+
+    static final int TYPE_OPT = 41;
+
+    private static final int SOA_NUMBERS = 20; // serial, refresh, retry, expire and minimum after an SOA's names
+
+    private long retirement; // System.nanoTime() at which the TTL runs out
+
+    private byte[] domainName; // uncompressed wire format
+
+    private int type;
+
+    private int mClass;
+
+    private long ttl;
+
+    private byte[] ipBytes; // RDATA, with any names in it uncompressed
+
+    /**
+     * Constructor for new record, read at the read cursor of a DNS request or response message
+     * @param dnsMessage - message being decoded, also used to resolve compressed names
+     * @return - A fully initialized DNSRecord object
+     */
+    static DNSRecord decodeRecord(DNSMessage dnsMessage) throws IOException {
+        DNSRecord newRecord = new DNSRecord();
+
+        newRecord.domainName = dnsMessage.readName();
+        newRecord.type = dnsMessage.readShort(); //get type of record
+        newRecord.mClass = dnsMessage.readShort(); //get record class
+        newRecord.ttl = dnsMessage.readInt(); // Pull the TLL
+
+        // RDLENGTH, then the IP Address (or whatever RDATA this type carries)
+        int RDval = dnsMessage.readShort();
+        int rdataEnd = dnsMessage.getPosition() + RDval;
+        newRecord.ipBytes = newRecord.readRData(dnsMessage, RDval);
+        dnsMessage.setPosition(rdataEnd);
+
+        // planned obsolescence
+        newRecord.retirement = System.nanoTime() + newRecord.ttl * 1_000_000_000L;
+
+        return newRecord;
+    }
+
+    /**
+     * Builds a record read from a zone file. Zone data doesn't expire, so it never retires and its TTL is sent as
+     * written.
+     * @param domainName - owner name in uncompressed wire format
+     * @param type - record type
+     * @param mClass - record class
+     * @param ttl - TTL in seconds
+     * @param rdata - RDATA, with any names in it uncompressed
+     * @return - the record
+     */
+    static DNSRecord buildLocal(byte[] domainName, int type, int mClass, long ttl, byte[] rdata) {
+        DNSRecord record = new DNSRecord();
+        record.domainName = domainName;
+        record.type = type;
+        record.mClass = mClass;
+        record.ttl = ttl;
+        record.ipBytes = rdata;
+        record.retirement = Long.MAX_VALUE;
+        return record;
+    }
+
+    /**
+     * Builds the EDNS0 OPT pseudo-record (RFC 6891) we put in our own queries and responses: root owner, the UDP
+     * payload size we accept in the class field, extended RCODE, version and flags all 0, and no options.
+     * @param udpPayloadSize - largest UDP message we can receive
+     * @return - the OPT record
+     */
+    static DNSRecord buildOpt(int udpPayloadSize) {
+        DNSRecord opt = new DNSRecord();
+        opt.domainName = new byte[1];
+        opt.type = TYPE_OPT;
+        opt.mClass = udpPayloadSize;
+        opt.ttl = 0;
+        opt.ipBytes = new byte[0];
+        opt.retirement = Long.MAX_VALUE;
+        return opt;
+    }
+
+    /**
+     * Reads the RDATA at the message's cursor. Names inside the RDATA of NS, CNAME, SOA, PTR, MX and SRV records
+     * may be compressed against the message they arrived in. Those pointers are meaningless once the record is
+     * cached and sent in another message, so the names are rewritten in full.
+     * @param dnsMessage - message the record is read from
+     * @param length - RDLENGTH of the record
+     * @return - the RDATA
+     */
+    private byte[] readRData(DNSMessage dnsMessage, int length) throws IOException {
+        int fixedBefore; // bytes ahead of the first name
+        int nameCount;
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                fixedBefore = 0;
+                nameCount = 1;
+                break;
+            case TYPE_MX:
+                fixedBefore = 2;
+                nameCount = 1;
+                break;
+            case TYPE_SRV:
+                fixedBefore = 6;
+                nameCount = 1;
+                break;
+            case TYPE_SOA:
+                fixedBefore = 0;
+                nameCount = 2;
+                break;
+            default:
+                return dnsMessage.readBytes(length);
+        }
+
+        int rdataEnd = dnsMessage.getPosition() + length;
+        byte[] before = dnsMessage.readBytes(fixedBefore);
+        byte[][] names = new byte[nameCount][];
+        int expandedLength = fixedBefore;
+        for (int n = 0; n < nameCount; ++n) {
+            names[n] = dnsMessage.readName();
+            expandedLength += names[n].length;
+        }
+        if (dnsMessage.getPosition() > rdataEnd) {
+            throw new IOException("RDATA name runs past RDLENGTH");
+        }
+        byte[] after = dnsMessage.readBytes(rdataEnd - dnsMessage.getPosition()); // SOA serial/refresh/retry/expire/minimum
+        if (type == TYPE_SOA && after.length < SOA_NUMBERS) {
+            throw new IOException("SOA RDATA is missing its serial, timers or minimum");
+        }
+        expandedLength += after.length;
+
+        byte[] expanded = new byte[expandedLength];
+        System.arraycopy(before, 0, expanded, 0, before.length);
+        int out = before.length;
+        for (byte[] name : names) {
+            System.arraycopy(name, 0, expanded, out, name.length);
+            out += name.length;
+        }
+        System.arraycopy(after, 0, expanded, out, after.length);
+        return expanded;
+    }
+
+    /**
+     * Copy of this record for a cached answer, with the TTL field rewritten to the time this record has left so
+     * clients expire it when we do.
+     * @param now - current System.nanoTime()
+     * @return - record sharing this one's data with an adjusted TTL
+     */
+    DNSRecord withRemainingTtl(long now) {
+        return withTtl(Math.max(0, (retirement - now) / 1_000_000_000L), retirement);
+    }
+
+    /**
+     * Copy of this record that lives for a different number of seconds, starting now
+     * @param lifeSpan - new TTL in seconds
+     * @param now - current System.nanoTime()
+     * @return - record sharing this one's data with the new TTL and retirement
+     */
+    DNSRecord withLifespan(long lifeSpan, long now) {
+        return withTtl(lifeSpan, now + lifeSpan * 1_000_000_000L);
+    }
+
+    /**
+     * Copy of this record under another owner name, for answers synthesized from a wildcard (RFC 4592)
+     * @param owner - name that was asked, in uncompressed wire format
+     * @return - record sharing this one's data
+     */
+    DNSRecord withOwner(byte[] owner) {
+        DNSRecord copy = withTtl(ttl, retirement);
+        copy.domainName = owner;
+        return copy;
+    }
+
+    /**
+     * @param seconds - value for the TTL field
+     * @param retirement - System.nanoTime() the copy retires at
+     * @return - copy of this record sharing its data
+     */
+    private DNSRecord withTtl(long seconds, long retirement) {
+        DNSRecord copy = new DNSRecord();
+        copy.retirement = retirement;
+        copy.domainName = domainName;
+        copy.type = type;
+        copy.mClass = mClass;
+        copy.ipBytes = ipBytes;
+        copy.ttl = seconds;
+        return copy;
+    }
+
+    /**
+     * Writes all of the record information to the encoder when building a message
+     * @param encoder - encoder for the message being built
+     */
+    void writeBytes(DNSEncoder encoder) {
+        encoder.writeName(domainName);
+        encoder.writeShort(type);
+        encoder.writeShort(mClass);
+        encoder.writeTtl(ttl);
+        int rdLengthAt = encoder.position();
+        encoder.writeShort(ipBytes.length);
+        writeRData(encoder);
+        encoder.patchShort(rdLengthAt, encoder.position() - rdLengthAt - 2);
+    }
+
+    /**
+     * Writes the RDATA. The names in NS, CNAME, SOA, PTR and MX records are compressed like any other name;
+     * RFC 3597 forbids it for every other type, SRV included, so those are written as they are.
+     * @param encoder - encoder for the message being built
+     */
+    private void writeRData(DNSEncoder encoder) {
+        int nameCount;
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                nameCount = 1;
+                break;
+            case TYPE_MX:
+                nameCount = 1;
+                encoder.writeShort(((ipBytes[0] & 0xff) << 8) | (ipBytes[1] & 0xff)); // preference
+                break;
+            case TYPE_SOA:
+                nameCount = 2;
+                break;
+            default:
+                encoder.writeBytes(ipBytes);
+                return;
+        }
+        int offset = type == TYPE_MX ? 2 : 0;
+        for (int n = 0; n < nameCount; ++n) {
+            offset = encoder.writeName(ipBytes, offset);
+        }
+        for (; offset < ipBytes.length; ++offset) {
+            encoder.writeByte(ipBytes[offset]); // SOA serial/refresh/retry/expire/minimum
+        }
+    }
+
+    /**
+     * Writes the record to a cache snapshot. The monotonic retirement means nothing to another process, so it is
+     * written as the wall clock time the record expires at. An owner name that is the question's name, as it
+     * usually is, is written as a single 0 byte, which no real name starts with.
+     * @param out - snapshot being written
+     * @param question - question the record answers
+     * @param now - current System.nanoTime()
+     * @param wallNow - current System.currentTimeMillis()
+     * @throws IOException
+     */
+    void writeSnapshot(DataOutput out, DNSQuestion question, long now, long wallNow) throws IOException {
+        if (Arrays.equals(domainName, question.getWireName())) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(domainName.length);
+            out.write(domainName);
+        }
+        out.writeShort(type);
+        out.writeShort(mClass);
+        out.writeLong(wallNow + (retirement - now) / 1_000_000L);
+        out.writeShort(ipBytes.length);
+        out.write(ipBytes);
+    }
+
+    /**
+     * Reads back a record written by writeSnapshot. Its TTL is the time it has left.
+     * @param in - snapshot being read
+     * @param question - question the record answers
+     * @param now - current System.nanoTime()
+     * @param wallNow - current System.currentTimeMillis()
+     * @return - the record, which may already have retired
+     */
+    static DNSRecord readSnapshot(ByteBuffer in, DNSQuestion question, long now, long wallNow) {
+        DNSRecord newRecord = new DNSRecord();
+        int nameLength = in.get() & 0xff;
+        if (nameLength == 0) {
+            newRecord.domainName = question.getWireName();
+        } else {
+            newRecord.domainName = new byte[nameLength];
+            in.get(newRecord.domainName);
+        }
+        newRecord.type = in.getShort() & 0xffff;
+        newRecord.mClass = in.getShort() & 0xffff;
+        long leftMillis = in.getLong() - wallNow;
+        newRecord.ttl = Math.max(0, leftMillis / 1000);
+        newRecord.retirement = now + leftMillis * 1_000_000L;
+        newRecord.ipBytes = new byte[in.getShort() & 0xffff];
+        in.get(newRecord.ipBytes);
+        return newRecord;
+    }
+
+    /**
+     * @return - owner name in uncompressed wire format, not to be modified
+     */
+    byte[] getWireName() {
+        return domainName;
+    }
+
+    public byte[] getIpBytes() {
+        return ipBytes;
+    }
+
+    /**
+     * @return - TTL field in seconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @param rdata - uncompressed SOA RDATA
+     * @return - whether it holds two well formed names followed by the five 32 bit numbers
+     */
+    static boolean isWellFormedSoa(byte[] rdata) {
+        int position = 0;
+        for (int name = 0; name < 2; ++name) {
+            while (position < rdata.length && rdata[position] != 0) {
+                if ((rdata[position] & 0xc0) != 0) {
+                    return false; // compressed or an extended label type
+                }
+                position += (rdata[position] & 0xff) + 1;
+            }
+            position++; // the root label
+        }
+        return rdata.length - position >= SOA_NUMBERS;
+    }
+
+    /**
+     * The MINIMUM field of an SOA record, which RFC 2308 uses as the upper bound for caching negative answers
+     * @return - last 32 bits of the RDATA, 0 if the RDATA is too short to hold it so the SOA is never cached
+     */
+    public long getSoaMinimum() {
+        if (ipBytes.length < SOA_NUMBERS) {
+            return 0;
+        }
+        long value = 0;
+        for (int t = ipBytes.length - 4; t < ipBytes.length; ++t) {
+            value <<= 8;
+            value |= ipBytes[t] & 0xff;
+        }
+        return value;
+    }
+
+    /**
+     * @return - record type (A = 1, CNAME = 5, AAAA = 28, ...)
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return - record class, or the UDP payload size for an OPT record
+     */
+    public int getRecordClass() {
+        return mClass;
+    }
+
+    /**
+     * @return - the labels of the owner name, decoded on each call
+     */
+    public String[] getDomainNames() {
+        return DNSMessage.nameToLabels(domainName);
+    }
+
+    /**
+     * @return - string representation of this object
+     */
+    @Override
+    public String toString() {
+        return "DNSRecord{" +
+                "retirement=" + retirement +
+                ", domainName=" + DNSMessage.octetsToString(getDomainNames()) +
+                ", type=" + type +
+                ", mClass=" + mClass +
+                ", ttl=" + ttl +
+                ", ipBytes=" + Arrays.toString(ipBytes) +
+                '}';
+    }
+
+    /**
+     * return whether the creation time + the time to live is after the current time.
+     * @param now - current System.nanoTime()
+     * @return - whether record has been retired or not
+     */
+    boolean timestampValid(long now) {
+        return retirement - now > 0;
+    }
+
+    /**
+     * @return - System.nanoTime() at which this record retires
+     */
+    long getRetirement() {
+        return retirement;
+    }
+}
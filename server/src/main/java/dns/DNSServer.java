@@ -0,0 +1,256 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DNSServer {
+
+    static DNSCacheStore serverCache;
+
+    private DNSShard[] shards; // one event loop per socket bound to the port
+
+    private DNSTcpListener tcpListener; // null when TCP is turned off
+
+    private DNSCacheSnapshot snapshot; // null when snapshots are turned off
+
+    private DNSZoneStore zones;
+
+    private DNSBlocklist blocklist;
+
+    private DNSMetrics metrics;
+
+    private int maxPrefetchPerSecond;
+
+    private AtomicLong prefetchWindow = new AtomicLong(); // current second in the high 32 bits, prefetches in the low
+
+    private LongAdder prefetchesIssued = new LongAdder();
+
+    /**
+     * Constructs DNSServer.
+     * Creates the cache, starts restoring it from the last snapshot, loads the local zones and the blocklists, and
+     * creates the shards, each of which opens its sockets and starts its miss workers. Metrics are published once
+     * everything is in place.
+     * @param config - server settings
+     * @throws IOException
+     */
+    public DNSServer(DNSConfig config) throws IOException {
+       if (config.getCacheStore().equals("offheap")) {
+           serverCache = new DNSOffHeapCache(config.getCacheMaxEntries(), config.getOffHeapCacheMegabytes() * 1024L * 1024,
+                   config.getPrefetchHits(), config.getPrefetchFraction());
+       } else {
+           serverCache = new DNSCache(config.getCacheMaxEntries(), config.getPrefetchHits(), config.getPrefetchFraction());
+       }
+       serverCache.setServeStale(config.getServeStaleSeconds(), config.getStaleTtl());
+       maxPrefetchPerSecond = config.getMaxPrefetchPerSecond();
+       if (maxPrefetchPerSecond > 0) {
+           serverCache.setRefresher(this::prefetch);
+       }
+       if (!config.getSnapshotFile().isEmpty()) {
+           snapshot = new DNSCacheSnapshot(Paths.get(config.getSnapshotFile()), serverCache);
+           snapshot.loadInBackground();
+           snapshot.saveOnSchedule(config.getSnapshotIntervalSeconds());
+       }
+       zones = new DNSZoneStore(config.getZoneFiles());
+       zones.load();
+       zones.reloadOnChange(config.getZoneReloadSeconds());
+       blocklist = new DNSBlocklist(config.getBlocklistFiles(), config.getBlockResponse());
+       blocklist.load();
+       blocklist.reloadOnChange(config.getBlocklistReloadSeconds());
+       metrics = new DNSMetrics();
+       shards = new DNSShard[Math.max(1, config.getShards())];
+       for (int i = 0; i < shards.length; ++i) {
+           shards[i] = new DNSShard(i, shards.length, config, serverCache, zones, blocklist, metrics);
+       }
+       if (config.getTcpMaxConnections() > 0) {
+           tcpListener = new DNSTcpListener(config.getPort(), config.getTcpMaxConnections(),
+                   config.getTcpIdleTimeoutMillis(), this::handleTcpRequest);
+       }
+       metrics.start(this, config.getMetricsAddress(), config.getMetricsPort());
+    }
+
+    /**
+     * Drives the server. Will perpetually listen for UDP DNS requests: every shard but the first gets a thread
+     * of its own, the first runs on the calling thread. TCP connections are served by one more thread.
+     * @throws IOException
+     */
+    private void runService() throws IOException {
+        if (tcpListener != null) {
+            Thread tcpLoop = new Thread(() -> {
+                try {
+                    tcpListener.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "dns-tcp");
+            tcpLoop.start();
+        }
+        for (int i = 1; i < shards.length; ++i) {
+            DNSShard shard = shards[i];
+            Thread loop = new Thread(() -> {
+                try {
+                    shard.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "dns-shard-" + i);
+            loop.start();
+        }
+        shards[0].run();
+    }
+
+    /**
+     * Handles one query read from a TCP connection by passing it to the shard its question hashes to, so it
+     * shares that shard's upstream and pending questions.
+     * @param request - query without its length prefix, reused once this returns
+     * @param connection - connection the query arrived on
+     * @throws IOException - if the query can't be decoded, the listener then stops waiting for an answer to it
+     */
+    private void handleTcpRequest(ByteBuffer request, DNSTcpListener.Connection connection) throws IOException {
+        DNSMessage reqMsg = DNSMessage.decodeMessage(request);
+        if (reqMsg.getQuestions().length == 0) {
+            throw new IOException("Query without a question");
+        }
+        DNSQuestion question = reqMsg.getQuestions()[0];
+        shards[(question.getKey().hashCode() & 0x7fffffff) % shards.length].handleStreamRequest(reqMsg, connection);
+    }
+
+    /**
+     * Called by the cache when a hot entry is close to expiring. Has the question's shard re-ask the upstream in the
+     * background, at most maxPrefetchPerSecond times a second across all shards. The second and the count of
+     * prefetches started in it share one word, so moving to a new second and taking a permit are a single
+     * compare-and-set that two shards can't both win.
+     * @param question - question of the entry to refresh
+     * @return - false if the refresh was not started
+     */
+    private boolean prefetch(DNSQuestion question) {
+        DNSShard shard = shards[(question.getKey().hashCode() & 0x7fffffff) % shards.length];
+        if (shard.isPending(question)) {
+            return false;
+        }
+        long second = (System.nanoTime() / 1_000_000_000L) << 32;
+        while (true) {
+            long window = prefetchWindow.get();
+            long next = (window & 0xffffffff00000000L) == second ? window + 1 : second + 1;
+            if ((next & 0xffffffffL) > maxPrefetchPerSecond) {
+                return false;
+            }
+            if (prefetchWindow.compareAndSet(window, next)) {
+                break;
+            }
+        }
+        prefetchesIssued.increment();
+        shard.refresh(question);
+        return true;
+    }
+
+    /**
+     * @return - cache misses answered SERVFAIL because the upstream was saturated or timed out and nothing stale
+     * was cached
+     */
+    public long getDroppedMisses() {
+        long total = 0;
+        for (DNSShard shard : shards) {
+            total += shard.getDroppedMisses();
+        }
+        return total;
+    }
+
+    /**
+     * @return - cache misses answered without asking the upstream because the miss workers were backed up
+     */
+    public long getShedMisses() {
+        long total = 0;
+        for (DNSShard shard : shards) {
+            total += shard.getShedMisses();
+        }
+        return total;
+    }
+
+    /**
+     * @return - cache misses that were answered by joining an identical question already waiting on the upstream
+     */
+    public long getCoalescedQueries() {
+        long total = 0;
+        for (DNSShard shard : shards) {
+            total += shard.getCoalescedQueries();
+        }
+        return total;
+    }
+
+    /**
+     * @return - the shards, for their per-socket counters
+     */
+    public DNSShard[] getShards() {
+        return shards;
+    }
+
+    /**
+     * @return - the cache shared by every shard
+     */
+    public DNSCacheStore getCache() {
+        return serverCache;
+    }
+
+    /**
+     * @return - the local zones
+     */
+    public DNSZoneStore getZones() {
+        return zones;
+    }
+
+    /**
+     * @return - requests answered from the local zones
+     */
+    public long getAuthoritativeAnswers() {
+        long total = 0;
+        for (DNSShard shard : shards) {
+            total += shard.getAuthoritativeAnswers();
+        }
+        return total;
+    }
+
+    /**
+     * @return - the blocked names
+     */
+    public DNSBlocklist getBlocklist() {
+        return blocklist;
+    }
+
+    /**
+     * @return - requests answered from the blocklist
+     */
+    public long getBlockedAnswers() {
+        long total = 0;
+        for (DNSShard shard : shards) {
+            total += shard.getBlockedAnswers();
+        }
+        return total;
+    }
+
+    /**
+     * @return - the TCP listener, or null when TCP is turned off
+     */
+    public DNSTcpListener getTcpListener() {
+        return tcpListener;
+    }
+
+    /**
+     * @return - background refreshes sent upstream for hot entries close to expiry
+     */
+    public long getPrefetchesIssued() {
+        return prefetchesIssued.sum();
+    }
+
+
+    public static void main(String [] args) {
+        try {
+           DNSServer server = new DNSServer(DNSConfig.load());
+            server.runService();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
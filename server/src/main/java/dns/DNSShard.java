@@ -0,0 +1,688 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One independent copy of the request path: a listener with its own socket and buffers, its own upstream socket,
+ * its own table of questions waiting on the upstream and its own miss workers. With several shards every socket is
+ * bound to the same port with SO_REUSEPORT and the kernel spreads clients across them; the shards share nothing
+ * but the cache.
+ */
+
+public class DNSShard {
+
+    private int index;
+
+    private DNSCacheStore cache;
+
+    private DNSZoneStore zones; // answered before the cache
+
+    private DNSBlocklist blocklist; // sinkholed after the zones, before the cache
+
+    private WireSource zoneResponses; // the hit fast path's sources, bound once rather than per request
+
+    private WireSource blockedResponses;
+
+    private WireSource cachedResponses;
+
+    private DNSUdpListener listener; // event loop reading client requests and sending responses
+
+    private DNSUpstream upstream; // multiplexed client for the upstream resolvers, ranked by SRTT
+
+    private ThreadPoolExecutor missWorkers; // builds and sends responses once the upstream has answered
+
+    private int maxPendingMisses;
+
+    private long negativeTtlCap;
+
+    private long staleAnswerMillis; // how long a miss with a stale entry waits upstream before being answered stale
+
+    private int maxUdpPayload; // largest UDP message we send or accept
+
+    private DNSRecord opt; // our OPT record, advertising maxUdpPayload
+
+    private byte[] optBytes; // the same, encoded for the hit fast path
+
+    private ConcurrentHashMap<DNSKey, CompletableFuture<DNSAnswer>> pendingQuestions; // questions waiting upstream
+
+    private LongAdder droppedMisses = new LongAdder();
+
+    private LongAdder shedMisses = new LongAdder();
+
+    private LongAdder coalescedQueries = new LongAdder();
+
+    private LongAdder hits = new LongAdder(); // UDP hits on the loop thread, TCP hits on the TCP thread
+
+    private LongAdder authoritative = new LongAdder(); // answered from the local zones
+
+    private LongAdder blocked = new LongAdder(); // answered from the blocklist
+
+    private LongAdder misses = new LongAdder();
+
+    private LongAdder truncated = new LongAdder();
+
+    private LongAdder malformedRequests = new LongAdder();
+
+    private DNSErrorLog sendErrors = new DNSErrorLog("Sending a response");
+
+    private DNSErrorLog replyErrors = new DNSErrorLog("Caching an upstream reply");
+
+    private DNSHistogram hitLatency; // from the datagram being read to its answer being queued, answered locally
+
+    private DNSHistogram missLatency; // the same, for requests that had to wait on the upstream
+
+    /**
+     * How an answer to a miss gets back to the client that asked
+     */
+    private interface MissReply {
+        /**
+         * @param answer - answer for the client, from the upstream, the stale cache or a SERVFAIL
+         * @throws IOException
+         */
+        void send(DNSAnswer answer) throws IOException;
+    }
+
+    /**
+     * Where the hit fast path finds pre-encoded responses: the zones, the blocklist or the cache
+     */
+    private interface WireSource {
+        /**
+         * @param question - question asked
+         * @param id - transaction ID of the request
+         * @param out - buffer to write the response into
+         * @return - bytes written, 0 if there is no response ready, -1 if it doesn't fit
+         */
+        int writeResponse(DNSQuestion question, int id, ByteBuffer out);
+    }
+
+    /**
+     * Opens the shard's sockets and starts its miss workers. Threads, pending misses and buffers from the config
+     * are divided evenly between the shards.
+     * @param index - number of this shard, from 0
+     * @param shardCount - number of shards sharing the port
+     * @param config - server settings
+     * @param cache - cache shared by every shard
+     * @param zones - local zones shared by every shard
+     * @param blocklist - blocked names shared by every shard
+     * @param metrics - latency histograms shared by every shard
+     * @throws IOException
+     */
+    public DNSShard(int index, int shardCount, DNSConfig config, DNSCacheStore cache, DNSZoneStore zones,
+                    DNSBlocklist blocklist, DNSMetrics metrics) throws IOException {
+        this.index = index;
+        this.cache = cache;
+        this.zones = zones;
+        this.blocklist = blocklist;
+        zoneResponses = zones::writeResponse;
+        blockedResponses = blocklist::writeResponse;
+        cachedResponses = cache::writeResponse;
+        this.hitLatency = metrics.getHitLatencyHistogram();
+        this.missLatency = metrics.getMissLatencyHistogram();
+        maxPendingMisses = Math.max(1, config.getMaxPendingMisses() / shardCount);
+        negativeTtlCap = config.getNegativeTtlMax();
+        staleAnswerMillis = config.getServeStaleSeconds() > 0 ? config.getStaleAnswerMillis() : 0;
+        pendingQuestions = new ConcurrentHashMap<>();
+        maxUdpPayload = Math.max(512, Math.min(config.getEdnsMaxPayload(), DNSEncoder.MAX_MESSAGE_SIZE));
+        opt = DNSRecord.buildOpt(maxUdpPayload);
+        DNSEncoder encoder = DNSEncoder.forThread();
+        opt.writeBytes(encoder);
+        optBytes = encoder.toByteArray();
+
+        DNSBufferPool pool = new DNSBufferPool(Math.max(64, config.getUdpBuffers() / shardCount), maxUdpPayload);
+        listener = new DNSUdpListener(config.getPort(), shardCount > 1, pool, this::handleRequest);
+
+        String[] upstreams = config.getUpstreams();
+        DNSUpstreamServer[] servers = new DNSUpstreamServer[upstreams.length];
+        for (int i = 0; i < upstreams.length; ++i) {
+            InetSocketAddress address = DNSUpstreamServer.parseAddress(upstreams[i], config.getUpstreamPort());
+            servers[i] = new DNSUpstreamServer(address, config.getHedgePercentile());
+        }
+        int localPort = config.getUpstreamLocalPort() == 0 ? 0 : config.getUpstreamLocalPort() + index;
+        upstream = new DNSUpstream(servers, localPort, config.getUpstreamTimeoutMillis(), config.getUpstreamRetries(),
+                maxPendingMisses, maxUdpPayload, config.getHedgePercentile() > 0, config.getHedgeMinMillis(),
+                metrics.getUpstreamRttHistogram());
+
+        int workers = Math.max(1, config.getWorkerThreads() / shardCount);
+        missWorkers = new ThreadPoolExecutor(workers, workers,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxPendingMisses), runnable -> {
+                    Thread worker = new Thread(runnable, "dns-miss-worker-" + index);
+                    worker.setDaemon(true);
+                    return worker;
+                });
+    }
+
+    /**
+     * Runs the shard's event loop on the calling thread
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        listener.run();
+    }
+
+    /**
+     * Stops the event loop, closes the upstream and stops the miss workers
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        listener.close();
+        upstream.close();
+        missWorkers.shutdownNow();
+    }
+
+    /**
+     * Handles one client request on the event loop. Names in the local zones, blocked names and cache hits are
+     * answered right here; misses are forwarded to the upstream without waiting for the reply, so the rest of the batch
+     * can be handled straight away.
+     * @param request - datagram received from the client, returned to the pool once this returns
+     * @throws IOException
+     */
+    private void handleRequest(DNSBufferPool.Datagram request) throws IOException {
+        DNSMessage reqMsg;
+        try {
+            reqMsg = DNSMessage.decodeMessage(request.data);
+        } catch (IOException e) {
+            malformedRequests.increment();
+            return; // truncated or malformed, nothing sensible to answer
+        }
+        if (reqMsg.getQuestions().length == 0) {
+            malformedRequests.increment();
+            return;
+        }
+
+        boolean simple = isSimpleQuery(reqMsg);
+        if (simple && answerFromWire(request, reqMsg, zoneResponses, authoritative)) {
+            return;
+        }
+        DNSAnswer local = zones.get(reqMsg.getQuestions()[0]);
+        if (local != null) {
+            SocketAddress client = request.peer;
+            long receivedAt = request.receivedAt;
+            answerFromZone(reqMsg, local, answer -> {
+                sendToClient(reqMsg, answer, client);
+                (local.getChaseName() == null ? hitLatency : missLatency).record(System.nanoTime() - receivedAt);
+            });
+            return;
+        }
+        if (simple) {
+            if (!answerFromWire(request, reqMsg, blockedResponses, blocked)
+                    && !answerFromWire(request, reqMsg, cachedResponses, hits)) {
+                forwardUpstream(request, reqMsg);
+            }
+            return;
+        }
+
+        DNSAnswer sinkhole = blocklist.get(reqMsg.getQuestions()[0]);
+        if (sinkhole != null) {
+            blocked.increment();
+            sendToClient(reqMsg, sinkhole, request.peer);
+            hitLatency.record(System.nanoTime() - request.receivedAt);
+            return;
+        }
+        DNSAnswer cached = cache.get(reqMsg.getQuestions()[0]);
+        if (cached == null) {
+            forwardUpstream(request, reqMsg);
+        } else {
+            hits.increment();
+            sendToClient(reqMsg, cached, request.peer);
+            hitLatency.record(System.nanoTime() - request.receivedAt);
+        }
+    }
+
+    /**
+     * @param reqMsg - decoded client request
+     * @return - whether the request is a single question with nothing but additional records after it, which is
+     * what the pre-encoded cache responses can answer
+     */
+    private boolean isSimpleQuery(DNSMessage reqMsg) {
+        return reqMsg.getQuestions().length == 1 && reqMsg.getAnswers().length == 0 && reqMsg.getAuthorities().length == 0;
+    }
+
+    /**
+     * Hit fast path. Copies the pre-encoded response from the zones, the blocklist or the cache into a pooled buffer
+     * with the client's ID, adds our OPT record if the client sent one and queues it, all without building a
+     * response message. A response larger than the client's UDP payload size is replaced by an empty one with TC set.
+     * @param request - datagram received from the client
+     * @param reqMsg - decoded client request
+     * @param source - where to look for the response
+     * @param answered - counts the requests it answers
+     * @return - false if there was no response ready, nothing was sent
+     */
+    private boolean answerFromWire(DNSBufferPool.Datagram request, DNSMessage reqMsg, WireSource source,
+                                   LongAdder answered) {
+        DNSBufferPool.Datagram response = listener.acquire();
+        if (response == null) {
+            return true; // out of buffers, drop it like a full socket would
+        }
+        ByteBuffer out = response.data;
+        int room = Math.min(reqMsg.getUdpPayloadSize(), maxUdpPayload) - (reqMsg.hasEdns() ? optBytes.length : 0);
+        out.limit(Math.min(room, out.capacity()));
+        DNSQuestion question = reqMsg.getQuestions()[0];
+        int id = reqMsg.getHeader().getRequestID();
+        int written = source.writeResponse(question, id, out);
+        if (written == 0) {
+            listener.release(response);
+            return false;
+        }
+        answered.increment();
+        out.limit(out.capacity());
+        if (written < 0) {
+            truncated.increment();
+            listener.release(response);
+            sendMessage(DNSMessage.buildTruncated(reqMsg, DNSAnswer.RCODE_NOERROR, opt), request.peer);
+        } else {
+            if (reqMsg.hasEdns()) {
+                out.put(optBytes);
+                out.putShort(10, (short) 1);
+            }
+            out.flip();
+            response.peer = request.peer;
+            listener.send(response);
+        }
+        hitLatency.record(System.nanoTime() - request.receivedAt);
+        return true;
+    }
+
+    /**
+     * Forwards the request to the upstream and, once the answer arrives, has a worker relay it to the client with the
+     * client's own transaction ID.
+     * @param request - datagram received from the client, only used until this returns
+     * @param reqMsg - decoded client request
+     */
+    private void forwardUpstream(DNSBufferPool.Datagram request, DNSMessage reqMsg) {
+        misses.increment();
+        SocketAddress client = request.peer;
+        long receivedAt = request.receivedAt;
+        answerMiss(reqMsg.getQuestions()[0], answer -> {
+            sendToClient(reqMsg, answer, client);
+            missLatency.record(System.nanoTime() - receivedAt);
+        });
+    }
+
+    /**
+     * Sends an answer from the local zones. A CNAME chain that leaves the zones is finished from the cache or, on
+     * a miss, by asking the upstream for its target like any other miss.
+     * @param reqMsg - decoded client request
+     * @param local - answer from the zones
+     * @param reply - sends the answer to the client
+     */
+    private void answerFromZone(DNSMessage reqMsg, DNSAnswer local, MissReply reply) {
+        authoritative.increment();
+        if (local.getChaseName() == null) {
+            send(reply, local);
+            return;
+        }
+        DNSQuestion question = reqMsg.getQuestions()[0];
+        DNSQuestion target = DNSQuestion.forName(local.getChaseName(), question.getQType(), question.getQClass());
+        DNSAnswer cached = cache.get(target);
+        if (cached != null) {
+            hits.increment();
+            send(reply, local.followedBy(cached));
+            return;
+        }
+        misses.increment();
+        answerMiss(target, answer -> reply.send(local.followedBy(answer)));
+    }
+
+    /**
+     * Resolves a cache miss and sends the answer. When the upstream can't give a timely answer the client gets a stale
+     * one (RFC 8767) if the cache still holds the expired entry, and SERVFAIL otherwise, rather than silence. That
+     * happens straight away if the upstream failed on the question in the last staleTtl seconds, or if the miss workers
+     * are backed up, so excess load is shed instead of queueing; after staleAnswerMillis if there is a stale entry
+     * to give, in which case the upstream's answer still refreshes the cache when it comes; and once the upstream has
+     * timed out, is saturated, or answered SERVFAIL or REFUSED.
+     * @param question - question to resolve
+     * @param reply - sends the answer to the client
+     */
+    private void answerMiss(DNSQuestion question, MissReply reply) {
+        DNSAnswer stale = cache.getStale(question, true);
+        if (stale != null) {
+            send(reply, stale);
+            return;
+        }
+        if (missWorkers.getQueue().remainingCapacity() == 0) {
+            shedMisses.increment();
+            answerWithoutUpstream(question, null, reply);
+            return;
+        }
+        CompletableFuture<DNSAnswer> answer = resolve(question, false).copy(); // a deadline only this miss waits on
+        if (staleAnswerMillis > 0 && cache.hasStale(question)) {
+            answer.completeOnTimeout(null, staleAnswerMillis, TimeUnit.MILLISECONDS); // null: past the deadline
+        }
+        answer.handleAsync((upstreamAnswer, e) -> {
+            if (upstreamAnswer != null && !upstreamAnswer.isServerFailure()) {
+                send(reply, upstreamAnswer);
+            } else {
+                answerWithoutUpstream(question, upstreamAnswer, reply);
+            }
+            return null;
+        }, missWorkers).exceptionally(e -> {
+            shedMisses.increment(); // no worker could take it
+            answerWithoutUpstream(question, null, reply);
+            return null;
+        });
+    }
+
+    /**
+     * Answers a miss the upstream couldn't answer in time: from the stale cache if possible, otherwise with
+     * the upstream's own error or SERVFAIL
+     * @param question - question being answered
+     * @param upstreamAnswer - the upstream's SERVFAIL or REFUSED, or null if there was no reply
+     * @param reply - sends the answer to the client
+     */
+    private void answerWithoutUpstream(DNSQuestion question, DNSAnswer upstreamAnswer, MissReply reply) {
+        DNSAnswer stale = cache.getStale(question, false);
+        if (stale != null) {
+            send(reply, stale);
+        } else if (upstreamAnswer != null) {
+            send(reply, upstreamAnswer);
+        } else {
+            droppedMisses.increment();
+            send(reply, DNSAnswer.failure(DNSAnswer.RCODE_SERVFAIL));
+        }
+    }
+
+    /**
+     * @param reply - sends the answer to the client
+     * @param answer - answer to send
+     */
+    private void send(MissReply reply, DNSAnswer answer) {
+        try {
+            reply.send(answer);
+        } catch (IOException e) {
+            sendErrors.report(e);
+        }
+    }
+
+    /**
+     * Asks the upstream a question. Identical questions that are already waiting upstream join that query instead of
+     * sending their own. When the reply arrives it is turned into an answer and cached once, and every waiter is
+     * completed with that answer; the question always leaves the pending table, even if that fails. The query is
+     * our own, advertising our UDP payload size, rather than the client's, so the answer we cache doesn't depend
+     * on what the first client to ask happened to support.
+     * @param question - question being asked
+     * @param prefetch - whether this is a background refresh of a cached entry
+     * @return - future completed with the upstream's answer, shared by everyone waiting on the question
+     */
+    private CompletableFuture<DNSAnswer> resolve(DNSQuestion question, boolean prefetch) {
+        boolean[] leader = new boolean[1];
+        CompletableFuture<DNSAnswer> reply = pendingQuestions.computeIfAbsent(question.getKey(), q -> {
+            leader[0] = true;
+            return new CompletableFuture<>();
+        });
+
+        if (!leader[0]) {
+            coalescedQueries.increment();
+        } else if (upstream.getInFlight() >= maxPendingMisses) {
+            pendingQuestions.remove(question.getKey(), reply);
+            reply.completeExceptionally(new IOException("Upstream saturated")); // the client will retry
+        } else {
+            ByteBuffer query = ByteBuffer.wrap(DNSMessage.buildQuery(question, opt));
+            upstream.query(query, question).whenComplete((upstreamMsg, e) -> {
+                DNSAnswer answer = null;
+                Throwable failure = e;
+                try {
+                    if (e == null) {
+                        answer = DNSAnswer.fromResponse(upstreamMsg, negativeTtlCap);
+                        cache.addAnswer(question, answer, prefetch);
+                        if (answer.isServerFailure()) {
+                            cache.resolutionFailed(question);
+                        }
+                    } else {
+                        cache.resolutionFailed(question);
+                    }
+                } catch (RuntimeException thrown) {
+                    failure = thrown; // a reply we can't make sense of, or couldn't cache
+                    replyErrors.report(thrown);
+                } finally {
+                    pendingQuestions.remove(question.getKey(), reply);
+                    if (answer != null) {
+                        reply.complete(answer); // even if caching it failed, the waiters can still have it
+                    } else {
+                        reply.completeExceptionally(failure != null ? failure : new IOException("Resolution aborted"));
+                    }
+                }
+            });
+        }
+        return reply;
+    }
+
+    /**
+     * Answers a query that arrived over TCP. It goes through the same zones, blocklist, cache and single-flight
+     * table as this shard's UDP queries; the answer is written back to the connection whenever it is ready. An
+     * answer that is still truncated, because the upstream couldn't be asked over TCP either, gets SERVFAIL: TC
+     * on a TCP response would leave the client nowhere to retry.
+     * @param reqMsg - decoded query
+     * @param connection - connection to answer on
+     */
+    void handleStreamRequest(DNSMessage reqMsg, DNSTcpListener.Connection connection) {
+        MissReply reply = answer -> sendToConnection(DNSMessage.buildResponse(reqMsg,
+                answer.isTruncated() ? DNSAnswer.failure(DNSAnswer.RCODE_SERVFAIL) : answer, opt), connection);
+        DNSAnswer local = zones.get(reqMsg.getQuestions()[0]);
+        if (local != null) {
+            answerFromZone(reqMsg, local, reply);
+            return;
+        }
+        DNSAnswer sinkhole = blocklist.get(reqMsg.getQuestions()[0]);
+        if (sinkhole != null) {
+            blocked.increment();
+            sendToConnection(DNSMessage.buildResponse(reqMsg, sinkhole, opt), connection);
+            return;
+        }
+        DNSAnswer cached = cache.get(reqMsg.getQuestions()[0]);
+        if (cached != null) {
+            hits.increment();
+            sendToConnection(DNSMessage.buildResponse(reqMsg, cached, opt), connection);
+            return;
+        }
+        misses.increment();
+        answerMiss(reqMsg.getQuestions()[0], reply);
+    }
+
+    /**
+     * Encodes the response and queues it on the connection the query came in on
+     * @param responseToClient - response message
+     * @param connection - connection to answer on
+     */
+    private void sendToConnection(DNSMessage responseToClient, DNSTcpListener.Connection connection) {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        responseToClient.writeTo(encoder);
+        connection.send(encoder.getBuffer().array(), encoder.position());
+    }
+
+    /**
+     * @param question - question to check
+     * @return - whether the question is already waiting on the upstream from this shard
+     */
+    boolean isPending(DNSQuestion question) {
+        return pendingQuestions.containsKey(question.getKey());
+    }
+
+    /**
+     * Re-asks the upstream for a cached question in the background. If that doesn't end with a new entry, because the
+     * upstream failed or gave an answer that can't be cached, the cache is told so a later hit can try again.
+     * @param question - question of the entry to refresh
+     */
+    void refresh(DNSQuestion question) {
+        resolve(question, true).whenComplete((answer, e) -> {
+            if (e != null || !answer.isCacheable()) {
+                cache.refreshFailed(question);
+            }
+        });
+    }
+
+    /**
+     * Builds the response to a request and queues it back to where the request came from. If it comes out larger
+     * than the client's UDP payload size, an empty response with TC set is sent instead.
+     * @param reqMsg - decoded client request
+     * @param answer - answer to send
+     * @param client - address the request came from
+     * @throws IOException
+     */
+    private void sendToClient(DNSMessage reqMsg, DNSAnswer answer, SocketAddress client) throws IOException {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        DNSMessage.buildResponse(reqMsg, answer, opt).writeTo(encoder);
+        if (encoder.position() > Math.min(reqMsg.getUdpPayloadSize(), maxUdpPayload)) {
+            truncated.increment();
+            sendMessage(DNSMessage.buildTruncated(reqMsg, answer.getRcode(), opt), client);
+            return;
+        }
+        sendEncoded(encoder, client);
+    }
+
+    /**
+     * Encodes a message and queues it to a client as it is
+     * @param message - message to send
+     * @param client - where to send it
+     */
+    private void sendMessage(DNSMessage message, SocketAddress client) {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        message.writeTo(encoder);
+        try {
+            sendEncoded(encoder, client);
+        } catch (IOException e) {
+            sendErrors.report(e);
+        }
+    }
+
+    /**
+     * Copies what the encoder holds into a pooled buffer and queues it
+     * @param encoder - encoder holding the message
+     * @param client - where to send it
+     * @throws IOException - if there is no buffer for it
+     */
+    private void sendEncoded(DNSEncoder encoder, SocketAddress client) throws IOException {
+        DNSBufferPool.Datagram response = listener.acquire();
+        if (response == null || encoder.position() > response.data.capacity()) {
+            if (response != null) {
+                listener.release(response);
+            }
+            throw new IOException("No room to send a " + encoder.position() + " byte response");
+        }
+        response.data.put(encoder.getBuffer().array(), 0, encoder.position()).flip();
+        response.peer = client;
+        listener.send(response);
+    }
+
+    /**
+     * @return - this shard's upstream client, for its per-upstream statistics
+     */
+    public DNSUpstream getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * @return - number of this shard
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return - datagrams this shard's socket received, which shows how evenly the kernel spreads clients
+     */
+    public long getReceived() {
+        return listener.getReceived();
+    }
+
+    /**
+     * @return - requests answered from the cache, over UDP and TCP
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return - requests answered from the local zones, over UDP and TCP
+     */
+    public long getAuthoritativeAnswers() {
+        return authoritative.sum();
+    }
+
+    /**
+     * @return - requests answered from the blocklist, over UDP and TCP
+     */
+    public long getBlockedAnswers() {
+        return blocked.sum();
+    }
+
+    /**
+     * @return - requests forwarded upstream, over UDP and TCP
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return - UDP responses replaced by an empty one with TC set because they didn't fit the client's payload size
+     */
+    public long getTruncated() {
+        return truncated.sum();
+    }
+
+    /**
+     * @return - UDP requests dropped because they couldn't be decoded or had no question
+     */
+    public long getMalformedRequests() {
+        return malformedRequests.sum();
+    }
+
+    /**
+     * @return - responses that failed to send and upstream replies that failed to cache, including the ones the
+     * listener's handler threw on
+     */
+    public long getErrors() {
+        return sendErrors.getCount() + replyErrors.getCount() + listener.getHandlerErrors();
+    }
+
+    /**
+     * @return - cache misses answered SERVFAIL because the upstream was saturated or timed out and nothing stale
+     * was cached
+     */
+    public long getDroppedMisses() {
+        return droppedMisses.sum();
+    }
+
+    /**
+     * @return - cache misses answered without asking the upstream because the miss workers were backed up
+     */
+    public long getShedMisses() {
+        return shedMisses.sum();
+    }
+
+    /**
+     * @return - the shard's UDP listener, for its socket and buffer counters
+     */
+    public DNSUdpListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return - cache misses that were answered by joining an identical question already waiting on the upstream
+     */
+    public long getCoalescedQueries() {
+        return coalescedQueries.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "DNSShard{" +
+                "index=" + index +
+                ", received=" + getReceived() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", truncated=" + getTruncated() +
+                ", coalesced=" + getCoalescedQueries() +
+                ", droppedMisses=" + getDroppedMisses() +
+                ", shedMisses=" + getShedMisses() +
+                '}';
+    }
+}
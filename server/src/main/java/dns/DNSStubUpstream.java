@@ -0,0 +1,226 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the upstream resolver when load testing without network access. It answers every question
+ * itself, as if it were authoritative for everything: A and AAAA questions get addresses derived from the name,
+ * names whose first label starts with "nx" get NXDOMAIN, and any other type gets NODATA; negative answers carry
+ * an SOA. Every answer can be delayed and some can be dropped, to stand in for a distant or lossy upstream. It
+ * ships with the server, rather than the benchmarks, so the upstream client's tests can run against it too.
+ *
+ * java -cp benchmarks/target/benchmarks.jar dns.DNSStubUpstream --port 5300 --latency-ms 20 --jitter-ms 5
+ *     --loss 0.01 --ttl 300
+ */
+
+public class DNSStubUpstream {
+
+    private static final byte[] SOA_RDATA = {
+            2, 'n', 's', 4, 's', 't', 'u', 'b', 0,
+            4, 'r', 'o', 'o', 't', 4, 's', 't', 'u', 'b', 0,
+            0, 0, 0, 1, 0, 0, 0x0e, 0x10, 0, 0, 0x03, (byte) 0x84, 0, 0x09, 0x3a, (byte) 0x80, 0, 0, 0, 60};
+
+    private DatagramChannel channel;
+
+    private ScheduledExecutorService delayer; // null when answers aren't delayed
+
+    private long latencyMicros;
+
+    private long jitterMicros;
+
+    private double loss;
+
+    private int ttl;
+
+    private SplittableRandom random = new SplittableRandom();
+
+    private AtomicLong queries = new AtomicLong();
+
+    private AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param port - UDP port to answer on, 0 for any free one
+     * @param latencyMillis - how long each answer is held back
+     * @param jitterMillis - answers are held back up to this much more or less than the latency
+     * @param loss - share of queries dropped without an answer, 0 to 1
+     * @param ttl - TTL of every record, in seconds
+     * @throws IOException
+     */
+    public DNSStubUpstream(int port, double latencyMillis, double jitterMillis, double loss, int ttl) throws IOException {
+        this.latencyMicros = (long) (latencyMillis * 1000);
+        this.jitterMicros = (long) (jitterMillis * 1000);
+        this.loss = loss;
+        this.ttl = ttl;
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        if (latencyMicros > 0 || jitterMicros > 0) {
+            delayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-stub-delay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Answers queries on the calling thread until the channel is closed
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        while (channel.isOpen()) {
+            in.clear();
+            SocketAddress client = channel.receive(in);
+            in.flip();
+            queries.incrementAndGet();
+            if (loss > 0 && random.nextDouble() < loss) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            ByteBuffer answer = answer(in);
+            if (answer == null) {
+                continue;
+            }
+            long delay = latencyMicros + (jitterMicros > 0 ? random.nextLong(-jitterMicros, jitterMicros + 1) : 0);
+            if (delayer == null || delay <= 0) {
+                channel.send(answer, client);
+            } else {
+                delayer.schedule(() -> {
+                    try {
+                        channel.send(answer, client);
+                    } catch (IOException e) {
+                        // the client gives up like it would on a lost answer
+                    }
+                }, delay, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Builds the answer to a query. The question is echoed as it was asked, and the answer records point back
+     * at it with a compression pointer.
+     * @param query - query as received
+     * @return - the answer, or null if the query is too broken to answer
+     */
+    private ByteBuffer answer(ByteBuffer query) {
+        if (query.remaining() < 12 || query.getShort(4) != 1) {
+            return null;
+        }
+        int nameEnd = 12;
+        while (nameEnd < query.limit() && query.get(nameEnd) != 0) {
+            nameEnd += 1 + (query.get(nameEnd) & 0xff);
+        }
+        int questionEnd = nameEnd + 5;
+        if (questionEnd > query.limit()) {
+            return null;
+        }
+        int type = query.getShort(nameEnd + 1) & 0xffff;
+        boolean edns = query.getShort(10) != 0;
+        boolean nxdomain = query.get(12) >= 2 && query.get(13) == 'n' && query.get(14) == 'x';
+        int hash = 0;
+        for (int i = 12; i < nameEnd; ++i) {
+            hash = 31 * hash + query.get(i);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(questionEnd + 2 * 28 + 12 + SOA_RDATA.length + 11);
+        out.putShort(query.getShort(0));
+        out.putShort((short) (0x8400 | (query.getShort(2) & 0x0100) | (nxdomain ? 3 : 0))); // QR, AA, copy RD
+        out.putShort((short) 1);
+        int answers = nxdomain ? 0 : type == DNSRecord.TYPE_A ? 2 : type == DNSRecord.TYPE_AAAA ? 1 : 0;
+        out.putShort((short) answers);
+        out.putShort((short) (answers == 0 ? 1 : 0));
+        out.putShort((short) (edns ? 1 : 0));
+        out.put(query.duplicate().position(12).limit(questionEnd));
+        for (int i = 0; i < answers; ++i) {
+            out.putShort((short) 0xc00c).putShort((short) type).putShort((short) 1).putInt(ttl);
+            if (type == DNSRecord.TYPE_A) {
+                out.putShort((short) 4).put((byte) 10).put((byte) (hash >> 16)).put((byte) (hash >> 8)).put((byte) i);
+            } else {
+                out.putShort((short) 16).putLong(0x20010db800000000L).putInt(hash).putInt(i);
+            }
+        }
+        if (answers == 0) {
+            out.putShort((short) 0xc00c).putShort((short) DNSRecord.TYPE_SOA).putShort((short) 1).putInt(ttl);
+            out.putShort((short) SOA_RDATA.length).put(SOA_RDATA);
+        }
+        if (edns) {
+            out.put((byte) 0).putShort((short) DNSRecord.TYPE_OPT).putShort((short) 1232).putInt(0).putShort((short) 0);
+        }
+        return out.flip();
+    }
+
+    /**
+     * Stops answering
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+        if (delayer != null) {
+            delayer.shutdownNow();
+        }
+    }
+
+    /**
+     * @return - UDP port the stub answers on
+     * @throws IOException
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * @return - queries received
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * @return - queries dropped on purpose
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Reads "--name value" pairs from the command line
+     * @param args - command line
+     * @return - value by name, without the dashes
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args);
+        DNSStubUpstream stub = new DNSStubUpstream(
+                Integer.parseInt(options.getOrDefault("port", "5300")),
+                Double.parseDouble(options.getOrDefault("latency-ms", "0")),
+                Double.parseDouble(options.getOrDefault("jitter-ms", "0")),
+                Double.parseDouble(options.getOrDefault("loss", "0")),
+                Integer.parseInt(options.getOrDefault("ttl", "300")));
+        System.out.println("Stub upstream answering on port " + options.getOrDefault("port", "5300"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                System.out.println("Stub upstream received " + stub.getQueries() + " queries, dropped "
+                        + stub.getDropped())));
+        stub.run();
+    }
+}
@@ -0,0 +1,346 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DNS over TCP (RFC 7766). Every message on a connection is preceded by its length as 2 bytes. A client may
+ * pipeline any number of queries on one connection without waiting; each is handed to the handler as soon as it
+ * has fully arrived and its answer is written back whenever it is ready, so answers can come back in a different
+ * order than the queries went out. Clients match them up by ID.
+ *
+ * One thread runs the event loop for every connection. Connections that have been quiet for the idle timeout
+ * with nothing outstanding are closed, and connections past the limit are closed as soon as they are accepted.
+ */
+
+public class DNSTcpListener {
+
+    private static final int MAX_PIPELINED = 64; // queries a connection may have outstanding before we stop reading
+
+    private static final int INITIAL_READ_BUFFER = 514; // a 512 byte message and its length
+
+    private ServerSocketChannel serverChannel;
+
+    private Selector selector;
+
+    private RequestHandler handler;
+
+    private ArrayList<Connection> connections = new ArrayList<>();
+
+    private ConcurrentLinkedQueue<Connection> readyToWrite = new ConcurrentLinkedQueue<>();
+
+    private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private int maxConnections;
+
+    private long idleTimeoutNanos;
+
+    private AtomicLong queries = new AtomicLong();
+
+    private AtomicLong rejectedConnections = new AtomicLong();
+
+    private AtomicLong idleClosed = new AtomicLong();
+
+    /**
+     * What the listener calls for each query
+     */
+    interface RequestHandler {
+        /**
+         * Handles one query. The buffer is reused once this returns, so anything needed later must be copied out of
+         * it. The answer, if there is one, is handed to connection.send() from any thread.
+         * @param request - the message without its length prefix, position 0 and limit at its end
+         * @param connection - connection the query arrived on
+         * @throws IOException
+         */
+        void onRequest(ByteBuffer request, Connection connection) throws IOException;
+    }
+
+    /**
+     * One client connection
+     */
+    class Connection {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private AtomicInteger outstanding = new AtomicInteger(); // queries read but not yet fully written back
+        private long lastActive; // System.nanoTime() of the last read or write
+        private boolean inputClosed;
+
+        /**
+         * Queues an answer to be written back. Safe to call from any thread.
+         * @param message - response bytes, without the length prefix
+         * @param length - number of bytes in message to send
+         */
+        void send(byte[] message, int length) {
+            ByteBuffer framed = ByteBuffer.allocate(2 + length);
+            framed.putShort((short) length).put(message, 0, length).flip();
+            writeQueue.add(framed);
+            readyToWrite.add(this);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Opens and binds the listening socket
+     * @param port - TCP port to listen on
+     * @param maxConnections - most connections open at once
+     * @param idleTimeoutMillis - how long a connection with nothing outstanding may stay quiet
+     * @param handler - called for each query on the loop thread
+     * @throws IOException
+     */
+    public DNSTcpListener(int port, int maxConnections, int idleTimeoutMillis, RequestHandler handler) throws IOException {
+        this.handler = handler;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 128);
+        serverChannel.configureBlocking(false);
+        this.selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the event loop on the calling thread until close() is called
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        long nextIdleCheck = System.nanoTime() + 1_000_000_000L;
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select(1000);
+                wakeupPending.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    }
+                }
+                Connection connection;
+                while ((connection = readyToWrite.poll()) != null) {
+                    write(connection);
+                }
+                long now = System.nanoTime();
+                if (now - nextIdleCheck >= 0) {
+                    closeIdle(now);
+                    nextIdleCheck = now + 1_000_000_000L;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // closed from another thread
+        }
+    }
+
+    /**
+     * Accepts every pending connection, closing those past the limit straight away
+     * @throws IOException
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections.size() >= maxConnections) {
+                rejectedConnections.incrementAndGet();
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection();
+            connection.channel = channel;
+            connection.lastActive = System.nanoTime();
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+
+    /**
+     * Reads what has arrived and hands every complete message to the handler
+     * @param connection - readable connection
+     */
+    private void read(Connection connection) {
+        int count;
+        try {
+            count = connection.channel.read(connection.readBuffer);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (count < 0) {
+            connection.inputClosed = true; // answer what was asked, then close
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            closeIfDone(connection);
+            return;
+        }
+        connection.lastActive = System.nanoTime();
+
+        ByteBuffer buffer = connection.readBuffer;
+        buffer.flip();
+        while (buffer.remaining() >= 2) {
+            int length = buffer.getShort(buffer.position()) & 0xffff;
+            if (buffer.remaining() < 2 + length) {
+                break;
+            }
+            ByteBuffer message = buffer.slice(buffer.position() + 2, length);
+            buffer.position(buffer.position() + 2 + length);
+            queries.incrementAndGet();
+            connection.outstanding.incrementAndGet();
+            try {
+                handler.onRequest(message, connection);
+            } catch (IOException | RuntimeException e) {
+                connection.outstanding.decrementAndGet();
+            }
+        }
+        if (buffer.remaining() >= 2) {
+            int needed = 2 + (buffer.getShort(buffer.position()) & 0xffff);
+            if (needed > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                larger.put(buffer);
+                connection.readBuffer = larger;
+                updateReadInterest(connection);
+                return;
+            }
+        }
+        buffer.compact();
+        updateReadInterest(connection);
+    }
+
+    /**
+     * Writes queued answers until they are all out or the socket is full
+     * @param connection - connection with answers to write
+     */
+    private void write(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        ByteBuffer next;
+        try {
+            while ((next = connection.writeQueue.peek()) != null) {
+                connection.channel.write(next);
+                if (next.hasRemaining()) {
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.writeQueue.poll();
+                connection.outstanding.decrementAndGet();
+                connection.lastActive = System.nanoTime();
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        updateReadInterest(connection);
+        closeIfDone(connection);
+    }
+
+    /**
+     * Stops reading from a connection that has too many queries outstanding, and starts again once it has caught up
+     * @param connection - connection to update
+     */
+    private void updateReadInterest(Connection connection) {
+        if (connection.inputClosed || !connection.key.isValid()) {
+            return;
+        }
+        if (connection.outstanding.get() >= MAX_PIPELINED) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        } else {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Closes a connection whose client has stopped sending once everything it asked has been answered
+     * @param connection - connection to check
+     */
+    private void closeIfDone(Connection connection) {
+        if (connection.inputClosed && connection.outstanding.get() <= 0 && connection.writeQueue.isEmpty()) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Closes connections that have nothing outstanding and have been quiet for the idle timeout
+     * @param now - current System.nanoTime()
+     */
+    private void closeIdle(long now) {
+        for (int i = connections.size() - 1; i >= 0; --i) {
+            Connection connection = connections.get(i);
+            if (connection.outstanding.get() <= 0 && now - connection.lastActive >= idleTimeoutNanos) {
+                idleClosed.incrementAndGet();
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * @param connection - connection to close and forget
+     */
+    private void close(Connection connection) {
+        connections.remove(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Stops the event loop and closes every connection
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        serverChannel.close();
+        selector.close();
+        for (Connection connection : connections) {
+            connection.channel.close();
+        }
+    }
+
+    /**
+     * @return - queries read from all connections
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * @return - connections closed on accept because the limit was reached
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * @return - connections closed for being idle
+     */
+    public long getIdleClosed() {
+        return idleClosed.get();
+    }
+}
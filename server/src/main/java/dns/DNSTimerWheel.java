@@ -0,0 +1,108 @@
+package dns;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Two level hierarchical timer wheel used to retire cache entries in the background. Deadlines are
+ * System.nanoTime() values. The inner wheel has one slot per tick, the outer wheel one slot per full turn of the
+ * inner wheel. Entries too far out for the inner wheel wait in the outer wheel and are moved down when their
+ * outer slot comes round, so scheduling and expiring an entry are both O(1).
+ *
+ * Entries are never cancelled; the expire callback is expected to ignore entries that are no longer live.
+ * @param <E> - type of entry being timed
+ */
+
+public class DNSTimerWheel<E> {
+
+    private static final int SLOTS = 256;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final int SLOT_BITS = 8;
+
+    private ArrayList<E>[] inner;
+
+    private ArrayList<E>[] outer;
+
+    private long tickNanos;
+
+    private long startNanos;
+
+    private long currentTick; // ticks elapsed since startNanos that have been processed
+
+    private ToLongFunction<E> deadlineOf;
+
+    private Consumer<E> onExpire;
+
+    /**
+     * Creates an empty wheel
+     * @param tickNanos - width of one inner slot, expiry happens up to one tick late
+     * @param deadlineOf - reads an entry's nanoTime deadline
+     * @param onExpire - called outside the wheel lock for every entry whose deadline has passed
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DNSTimerWheel(long tickNanos, ToLongFunction<E> deadlineOf, Consumer<E> onExpire) {
+        this.tickNanos = tickNanos;
+        this.deadlineOf = deadlineOf;
+        this.onExpire = onExpire;
+        this.startNanos = System.nanoTime();
+        this.inner = new ArrayList[SLOTS];
+        this.outer = new ArrayList[SLOTS];
+        for (int i = 0; i < SLOTS; ++i) {
+            inner[i] = new ArrayList<>();
+            outer[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Files an entry under its deadline
+     * @param entry - entry to expire later
+     */
+    public synchronized void schedule(E entry) {
+        long deadline = deadlineOf.applyAsLong(entry);
+        long tick = Math.max(currentTick + 1, Math.floorDiv(deadline - startNanos + tickNanos - 1, tickNanos));
+        if (tick - currentTick < SLOTS) {
+            inner[(int) (tick & SLOT_MASK)].add(entry);
+        } else {
+            long turn = Math.min(tick >>> SLOT_BITS, (currentTick >>> SLOT_BITS) + SLOT_MASK);
+            outer[(int) (turn & SLOT_MASK)].add(entry);
+        }
+    }
+
+    /**
+     * Processes every tick up to the given time and hands expired entries to the expire callback
+     * @param now - current System.nanoTime()
+     */
+    public void advance(long now) {
+        ArrayList<E> expired = new ArrayList<>();
+        synchronized (this) {
+            long target = (now - startNanos) / tickNanos;
+            while (currentTick < target) {
+                currentTick++;
+                if ((currentTick & SLOT_MASK) == 0) {
+                    ArrayList<E> cascading = outer[(int) ((currentTick >>> SLOT_BITS) & SLOT_MASK)];
+                    outer[(int) ((currentTick >>> SLOT_BITS) & SLOT_MASK)] = new ArrayList<>();
+                    for (E entry : cascading) {
+                        schedule(entry);
+                    }
+                }
+                ArrayList<E> slot = inner[(int) (currentTick & SLOT_MASK)];
+                if (!slot.isEmpty()) {
+                    inner[(int) (currentTick & SLOT_MASK)] = new ArrayList<>();
+                    for (E entry : slot) {
+                        if (deadlineOf.applyAsLong(entry) - now <= 0) {
+                            expired.add(entry);
+                        } else {
+                            schedule(entry);
+                        }
+                    }
+                }
+            }
+        }
+        for (E entry : expired) {
+            onExpire.accept(entry);
+        }
+    }
+}
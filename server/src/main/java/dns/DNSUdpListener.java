@@ -0,0 +1,248 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking UDP transport for client requests. One thread runs the event loop: when the channel is readable it
+ * drains every datagram that is waiting (up to a batch) into pooled buffers, hands the batch to the handler, and
+ * then flushes every response queued meanwhile in one go. Responses produced on other threads are queued and the
+ * loop is woken to send them, so the channel only ever has one thread reading and writing it.
+ */
+
+public class DNSUdpListener {
+
+    private static final int BATCH_SIZE = 64;
+
+    private DatagramChannel channel;
+
+    private Selector selector;
+
+    private SelectionKey key;
+
+    private DNSBufferPool pool;
+
+    private RequestHandler handler;
+
+    private ArrayBlockingQueue<DNSBufferPool.Datagram> outgoing;
+
+    private DNSBufferPool.Datagram[] batch = new DNSBufferPool.Datagram[BATCH_SIZE];
+
+    private DNSBufferPool.Datagram unsent; // response the socket had no room for, sent first once it is writable
+
+    private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private AtomicLong received = new AtomicLong();
+
+    private AtomicLong sent = new AtomicLong();
+
+    private AtomicLong droppedResponses = new AtomicLong();
+
+    private DNSErrorLog handlerErrors = new DNSErrorLog("Handling a request");
+
+    /**
+     * What the listener calls for each request
+     */
+    interface RequestHandler {
+        /**
+         * Handles one request. The buffer goes back to the pool once this returns, so anything needed later must
+         * be copied out of it.
+         * @param request - the datagram, position 0 and limit at its end, peer set to the client and receivedAt
+         *                to when it was read
+         * @throws IOException
+         */
+        void onRequest(DNSBufferPool.Datagram request) throws IOException;
+    }
+
+    /**
+     * Opens and binds the channel
+     * @param port - UDP port to listen on
+     * @param reusePort - whether other listeners may bind the same port (SO_REUSEPORT)
+     * @param pool - buffers for requests and responses
+     * @param handler - called for each request on the loop thread
+     * @throws IOException - if the port can't be bound, or SO_REUSEPORT is asked for but not supported
+     */
+    public DNSUdpListener(int port, boolean reusePort, DNSBufferPool pool, RequestHandler handler) throws IOException {
+        this.pool = pool;
+        this.handler = handler;
+        this.outgoing = new ArrayBlockingQueue<>(pool.getAvailable());
+        this.channel = DatagramChannel.open();
+        if (reusePort) {
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.close();
+                throw new IOException("SO_REUSEPORT is not supported here, run with dns.shards=1");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Runs the event loop on the calling thread until close() is called
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        try {
+            while (channel.isOpen()) {
+                selector.select();
+                wakeupPending.set(false);
+                selector.selectedKeys().clear();
+                if (key.isValid() && key.isReadable()) {
+                    readBatch();
+                }
+                flush();
+            }
+        } catch (ClosedSelectorException e) {
+            // closed from another thread
+        }
+    }
+
+    /**
+     * Receives every datagram waiting on the channel, up to a batch, then handles them one after the other
+     * @throws IOException
+     */
+    private void readBatch() throws IOException {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            DNSBufferPool.Datagram datagram = pool.acquire();
+            if (datagram == null) {
+                break; // leave the rest in the socket buffer until responses free some buffers
+            }
+            SocketAddress client = channel.receive(datagram.data);
+            if (client == null) {
+                pool.release(datagram);
+                break;
+            }
+            datagram.data.flip();
+            datagram.peer = client;
+            batch[count++] = datagram;
+        }
+        received.addAndGet(count);
+
+        long now = System.nanoTime(); // one clock read for the batch, they all sat in the socket together
+        for (int i = 0; i < count; ++i) {
+            batch[i].receivedAt = now;
+        }
+        for (int i = 0; i < count; ++i) {
+            try {
+                handler.onRequest(batch[i]);
+            } catch (IOException | RuntimeException e) {
+                handlerErrors.report(e);
+            }
+            pool.release(batch[i]);
+            batch[i] = null;
+        }
+    }
+
+    /**
+     * Queues a response. Safe to call from any thread; the listener owns the datagram from here on.
+     * @param response - datagram to send, position 0 and limit at its end, peer set to the client
+     */
+    void send(DNSBufferPool.Datagram response) {
+        if (!outgoing.offer(response)) {
+            droppedResponses.incrementAndGet();
+            pool.release(response);
+            return;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Sends queued responses until the queue is empty or the socket buffer is full, in which case the loop waits
+     * for the channel to become writable before trying again.
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        DNSBufferPool.Datagram response = unsent != null ? unsent : outgoing.poll();
+        while (response != null) {
+            int written;
+            try {
+                written = channel.send(response.data, response.peer);
+            } catch (IOException e) {
+                written = -1; // unreachable client and the like, the response is lost either way
+            }
+            if (written == 0) {
+                unsent = response;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (written > 0) {
+                sent.incrementAndGet();
+            } else {
+                droppedResponses.incrementAndGet();
+            }
+            pool.release(response);
+            response = outgoing.poll();
+        }
+        unsent = null;
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * @return - a buffer for a response, or null if the pool is exhausted
+     */
+    DNSBufferPool.Datagram acquire() {
+        return pool.acquire();
+    }
+
+    /**
+     * Returns a response buffer that ended up not being sent
+     * @param response - datagram from acquire()
+     */
+    void release(DNSBufferPool.Datagram response) {
+        pool.release(response);
+    }
+
+    /**
+     * Stops the event loop and closes the channel
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+        selector.close();
+    }
+
+    /**
+     * @return - datagrams received from clients
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return - responses handed to the socket
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return - responses lost because the send queue was full or the send failed
+     */
+    public long getDroppedResponses() {
+        return droppedResponses.get();
+    }
+
+    /**
+     * @return - requests the handler threw on
+     */
+    public long getHandlerErrors() {
+        return handlerErrors.getCount();
+    }
+}
@@ -0,0 +1,520 @@
+package dns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the upstream resolvers. A single socket carries every outstanding query: each one is sent with a
+ * random transaction ID and parked in the in-flight table under that ID. A background thread reads replies,
+ * matches them by ID, sender and question, and completes the waiting future. Replies that don't match anything in
+ * the table (late, duplicate, spoofed, not marked as a response or from an upstream that wasn't asked) are
+ * dropped. Random IDs sent from a random source port leave an off-path attacker billions of combinations to guess
+ * before a forged reply lands in the cache.
+ *
+ * Each attempt goes to the healthy upstream with the lowest smoothed round trip time; a retry goes to a different
+ * one when there is one. With hedging on, a query that hasn't been answered within the chosen upstream's usual
+ * round trip (a percentile of its recent ones) is also sent, with the same ID, to the next best upstream, and
+ * whichever answers first wins.
+ *
+ * A reply with TC set is too big for our UDP payload size, so the query is asked again over TCP of the upstream
+ * that sent it (RFC 7766) and the query completes with that reply instead.
+ */
+
+public class DNSUpstream {
+
+    private static final DNSUpstreamServer[] NO_SERVERS = new DNSUpstreamServer[0];
+
+    private DatagramChannel upstreamChannel;
+
+    private DNSUpstreamServer[] servers;
+
+    private ConcurrentHashMap<Integer, PendingQuery> inFlight;
+
+    private ScheduledExecutorService retryTimer;
+
+    private ExecutorService tcpRetries; // blocking TCP exchanges for replies that came back truncated
+
+    private SecureRandom idSource;
+
+    private int timeoutMillis;
+
+    private int retries;
+
+    private int maxInFlight;
+
+    private int bufferSize;
+
+    private boolean hedging;
+
+    private long hedgeMinNanos;
+
+    private AtomicLong timeouts = new AtomicLong();
+
+    private AtomicLong droppedReplies = new AtomicLong();
+
+    private AtomicLong hedgesSent = new AtomicLong();
+
+    private AtomicLong hedgesWon = new AtomicLong();
+
+    private AtomicLong errorReplies = new AtomicLong(); // SERVFAIL and REFUSED
+
+    private AtomicLong tcpRetriesSent = new AtomicLong();
+
+    private AtomicLong tcpRetriesFailed = new AtomicLong();
+
+    private DNSHistogram rtt; // round trip of every reply matched to the attempt it answers
+
+    /**
+     * One query waiting on the upstream
+     */
+    private static class PendingQuery {
+        private DNSQuestion question;
+        private byte[] packet; // request bytes with the rewritten ID
+        private CompletableFuture<DNSMessage> reply = new CompletableFuture<>();
+        private int attemptsLeft;
+        private volatile ScheduledFuture<?> timeout;
+        private volatile ScheduledFuture<?> hedgeTimer;
+        private volatile DNSUpstreamServer primary; // where the current attempt went
+        private volatile long primarySentAt;
+        private volatile DNSUpstreamServer hedge; // where the current attempt was hedged to, if it was
+        private volatile long hedgeSentAt;
+        private volatile DNSUpstreamServer[] asked = NO_SERVERS; // every upstream an attempt has gone to
+    }
+
+    /**
+     * Opens the upstream socket and starts the reply reader
+     * @param servers - the resolvers queries are forwarded to
+     * @param localPort - local port to send from (0 picks any free port)
+     * @param timeoutMillis - how long to wait for each attempt before resending
+     * @param retries - how many times a query is resent before it fails
+     * @param maxInFlight - most queries that may be outstanding at once
+     * @param bufferSize - largest reply that can be received, the UDP payload size our queries advertise
+     * @param hedging - whether slow attempts are also sent to a second upstream
+     * @param hedgeMinMillis - shortest wait before hedging, however fast the upstream usually is
+     * @param rtt - histogram every measured round trip is recorded in
+     * @throws IOException
+     */
+    public DNSUpstream(DNSUpstreamServer[] servers, int localPort, int timeoutMillis, int retries, int maxInFlight,
+                       int bufferSize, boolean hedging, int hedgeMinMillis, DNSHistogram rtt) throws IOException {
+        this.bufferSize = bufferSize;
+        this.rtt = rtt;
+        this.upstreamChannel = DatagramChannel.open();
+        upstreamChannel.bind(new InetSocketAddress(localPort));
+        this.servers = servers;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.maxInFlight = Math.min(maxInFlight, 0x10000);
+        this.hedging = hedging && servers.length > 1;
+        this.hedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinMillis);
+        this.inFlight = new ConcurrentHashMap<>();
+        this.idSource = new SecureRandom();
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread timer = new Thread(runnable, "dns-upstream-timer");
+            timer.setDaemon(true);
+            return timer;
+        });
+        this.tcpRetries = Executors.newCachedThreadPool(runnable -> {
+            Thread tcp = new Thread(runnable, "dns-upstream-tcp");
+            tcp.setDaemon(true);
+            return tcp;
+        });
+
+        Thread reader = new Thread(this::receiveReplies, "dns-upstream-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Forward a request upstream. The caller's bytes are copied, so the buffer may be reused once this returns.
+     * @param request - raw request as received from the client, from position to limit
+     * @param question - question being asked, used to validate the reply
+     * @return - future completed with the upstream reply, or exceptionally on timeout
+     */
+    public CompletableFuture<DNSMessage> query(ByteBuffer request, DNSQuestion question) {
+        PendingQuery pending = new PendingQuery();
+        pending.question = question;
+        pending.attemptsLeft = retries + 1;
+        pending.packet = new byte[request.remaining()];
+        request.get(request.position(), pending.packet);
+
+        if (inFlight.size() >= maxInFlight) {
+            pending.reply.completeExceptionally(new IOException("Upstream in-flight table is full"));
+            return pending.reply;
+        }
+
+        int id;
+        do {
+            id = idSource.nextInt(0x10000);
+        } while (inFlight.putIfAbsent(id, pending) != null);
+        pending.packet[0] = (byte) (id >> 8);
+        pending.packet[1] = (byte) id;
+
+        send(id, pending, choose(null, System.nanoTime()));
+        return pending.reply;
+    }
+
+    /**
+     * Picks the healthy upstream with the lowest SRTT, other than the one to avoid. If none is healthy, the one
+     * that comes back soonest is used rather than failing outright. The SRTTs compared are decayed by how long
+     * each server has gone unmeasured, so one that was slow once gets probed again after a while, and picking
+     * changes nothing, however often it happens.
+     * @param avoid - server to skip if there is any other, may be null
+     * @param now - current System.nanoTime()
+     * @return - server to send to
+     */
+    private DNSUpstreamServer choose(DNSUpstreamServer avoid, long now) {
+        DNSUpstreamServer best = null;
+        DNSUpstreamServer soonest = null;
+        for (DNSUpstreamServer server : servers) {
+            if (server == avoid) {
+                continue;
+            }
+            if (server.isHealthy(now)) {
+                if (best == null || server.getSrttMillis(now) < best.getSrttMillis(now)) {
+                    best = server;
+                }
+            } else if (soonest == null || server.getDownUntil() - soonest.getDownUntil() < 0) {
+                soonest = server;
+            }
+        }
+        return best != null ? best : soonest != null ? soonest : avoid;
+    }
+
+    /**
+     * Sends one attempt of a pending query, arms its timeout and, with hedging on, the hedge
+     * @param id - rewritten transaction ID of the query
+     * @param pending - query to send
+     * @param server - upstream to send the attempt to
+     */
+    private void send(int id, PendingQuery pending, DNSUpstreamServer server) {
+        pending.attemptsLeft--;
+        pending.primary = server;
+        pending.hedge = null;
+        pending.primarySentAt = System.nanoTime();
+        pending.timeout = retryTimer.schedule(() -> onTimeout(id, pending), timeoutMillis, TimeUnit.MILLISECONDS);
+        if (hedging) {
+            long delay = server.hedgeDelayNanos(TimeUnit.MILLISECONDS.toNanos(timeoutMillis) / 2, hedgeMinNanos);
+            if (delay < TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+                pending.hedgeTimer = retryTimer.schedule(() -> hedge(pending, server), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+        transmit(pending, server);
+    }
+
+    /**
+     * Sends the current attempt again, to the next best upstream, if it still hasn't been answered
+     * @param pending - query to hedge
+     * @param primary - server the attempt went to
+     */
+    private void hedge(PendingQuery pending, DNSUpstreamServer primary) {
+        if (pending.reply.isDone() || pending.primary != primary) {
+            return;
+        }
+        DNSUpstreamServer second = choose(primary, System.nanoTime());
+        if (second == primary) {
+            return;
+        }
+        hedgesSent.incrementAndGet();
+        pending.hedge = second;
+        pending.hedgeSentAt = System.nanoTime();
+        transmit(pending, second);
+    }
+
+    /**
+     * @param pending - query to send
+     * @param server - where to send it
+     */
+    private void transmit(PendingQuery pending, DNSUpstreamServer server) {
+        server.onSent(System.nanoTime());
+        synchronized (pending) { // the first attempt and its hedge can be sent from different threads
+            if (!wasAsked(pending, server)) {
+                DNSUpstreamServer[] asked = Arrays.copyOf(pending.asked, pending.asked.length + 1);
+                asked[asked.length - 1] = server;
+                pending.asked = asked;
+            }
+        }
+        try {
+            upstreamChannel.send(ByteBuffer.wrap(pending.packet), server.getAddress());
+        } catch (IOException e) {
+            // treat like a lost packet, the timeout will retry it
+        }
+    }
+
+    /**
+     * Resends a query that hasn't been answered in time, or fails it once it is out of attempts. Every upstream
+     * that was asked is charged with the failure, and the retry goes to a different one if there is one.
+     * @param id - rewritten transaction ID of the query
+     * @param pending - query that timed out
+     */
+    private void onTimeout(int id, PendingQuery pending) {
+        if (pending.reply.isDone()) {
+            return;
+        }
+        long now = System.nanoTime();
+        DNSUpstreamServer failed = pending.primary;
+        failed.onTimeout(timeoutMillis, now);
+        if (pending.hedge != null) {
+            pending.hedge.onTimeout(timeoutMillis, now);
+        }
+        if (pending.attemptsLeft > 0) {
+            send(id, pending, choose(failed, now));
+        } else if (inFlight.remove(id, pending)) {
+            timeouts.incrementAndGet();
+            pending.reply.completeExceptionally(new SocketTimeoutException("No upstream reply for " + pending.question));
+        }
+    }
+
+    /**
+     * @param address - where a reply came from
+     * @return - the configured upstream at that address, or null
+     */
+    private DNSUpstreamServer serverAt(SocketAddress address) {
+        for (DNSUpstreamServer server : servers) {
+            if (server.getAddress().equals(address)) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param pending - query a reply claims to answer
+     * @param server - upstream the reply came from
+     * @return - whether any attempt of the query was sent to that upstream
+     */
+    private static boolean wasAsked(PendingQuery pending, DNSUpstreamServer server) {
+        for (DNSUpstreamServer asked : pending.asked) {
+            if (asked == server) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reply reader loop. Matches each datagram to its pending query by ID, sender and question.
+     */
+    private void receiveReplies() {
+        ByteBuffer reply = ByteBuffer.allocateDirect(bufferSize);
+        while (upstreamChannel.isOpen()) {
+            try {
+                reply.clear();
+                SocketAddress from = upstreamChannel.receive(reply);
+                reply.flip();
+                DNSUpstreamServer server = serverAt(from);
+                if (reply.limit() < 12 || server == null || (reply.get(2) & 0x80) == 0) {
+                    droppedReplies.incrementAndGet();
+                    continue;
+                }
+                int id = reply.getShort(0) & 0xffff;
+                PendingQuery pending = inFlight.get(id);
+                if (pending == null) {
+                    droppedReplies.incrementAndGet(); // late reply for a query we've already given up on
+                    continue;
+                }
+                if (!wasAsked(pending, server)) {
+                    droppedReplies.incrementAndGet(); // right ID from an upstream this query never went to
+                    continue;
+                }
+                DNSMessage msg = DNSMessage.decodeMessage(reply);
+                if (msg.getQuestions().length == 0 || !pending.question.equals(msg.getQuestions()[0])) {
+                    droppedReplies.incrementAndGet();
+                    continue;
+                }
+                if (inFlight.remove(id, pending)) {
+                    long now = System.nanoTime();
+                    if (server == pending.primary) {
+                        server.onReply(now - pending.primarySentAt, now);
+                        rtt.record(now - pending.primarySentAt);
+                    } else if (server == pending.hedge) {
+                        hedgesWon.incrementAndGet();
+                        server.onReply(now - pending.hedgeSentAt, now);
+                        rtt.record(now - pending.hedgeSentAt);
+                        pending.primary.onOvertaken(now - pending.primarySentAt, now);
+                    } else {
+                        server.onReply(-1, now); // answer to an earlier attempt, its round trip is unknown
+                    }
+                    pending.timeout.cancel(false);
+                    if (pending.hedgeTimer != null) {
+                        pending.hedgeTimer.cancel(false);
+                    }
+                    if (msg.getHeader().isTruncated()) {
+                        retryOverTcp(pending, server, msg);
+                    } else {
+                        complete(pending, msg);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (upstreamChannel.isOpen()) {
+                    droppedReplies.incrementAndGet(); // malformed reply
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes a query with the reply that answers it
+     * @param pending - query that was answered
+     * @param msg - the reply
+     */
+    private void complete(PendingQuery pending, DNSMessage msg) {
+        int rcode = msg.getHeader().getRcode();
+        if (rcode == DNSAnswer.RCODE_SERVFAIL || rcode == DNSAnswer.RCODE_REFUSED) {
+            errorReplies.incrementAndGet();
+        }
+        pending.reply.complete(msg);
+    }
+
+    /**
+     * Asks the upstream that sent a truncated reply the same query over TCP, off the reader thread. If that fails
+     * the truncated reply is what the query completes with.
+     * @param pending - query whose UDP reply was truncated, already out of the in-flight table
+     * @param server - upstream that sent the truncated reply
+     * @param truncated - the truncated reply
+     */
+    private void retryOverTcp(PendingQuery pending, DNSUpstreamServer server, DNSMessage truncated) {
+        tcpRetriesSent.incrementAndGet();
+        try {
+            tcpRetries.execute(() -> {
+                DNSMessage msg = truncated;
+                try {
+                    msg = exchangeOverTcp(pending, server);
+                } catch (IOException | RuntimeException e) {
+                    tcpRetriesFailed.incrementAndGet();
+                }
+                complete(pending, msg);
+            });
+        } catch (RuntimeException e) {
+            tcpRetriesFailed.incrementAndGet(); // shut down
+            complete(pending, truncated);
+        }
+    }
+
+    /**
+     * One query and its reply over a fresh TCP connection, both with the two byte length prefix
+     * @param pending - query to send, with the ID it was sent over UDP with
+     * @param server - upstream to ask
+     * @return - the reply
+     * @throws IOException - if the connection fails, times out or the reply doesn't answer the query
+     */
+    private DNSMessage exchangeOverTcp(PendingQuery pending, DNSUpstreamServer server) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(server.getAddress(), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(pending.packet.length);
+            out.write(pending.packet);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] reply = new byte[in.readUnsignedShort()];
+            in.readFully(reply);
+            if (reply.length < 12 || reply[0] != pending.packet[0] || reply[1] != pending.packet[1]
+                    || (reply[2] & 0x80) == 0) {
+                throw new IOException("TCP reply doesn't answer the query");
+            }
+            DNSMessage msg = DNSMessage.decodeMessage(reply, reply.length);
+            if (msg.getQuestions().length == 0 || !pending.question.equals(msg.getQuestions()[0])) {
+                throw new IOException("TCP reply is for another question");
+            }
+            return msg;
+        }
+    }
+
+    /**
+     * Stops the reply reader and fails anything still waiting
+     */
+    public void close() {
+        try {
+            upstreamChannel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        retryTimer.shutdownNow();
+        tcpRetries.shutdownNow();
+        for (PendingQuery pending : inFlight.values()) {
+            pending.reply.completeExceptionally(new SocketException("Upstream closed"));
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * @return - number of queries currently waiting on the upstream
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return - queries that ran out of retries without an answer
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return - replies thrown away because they were late, mismatched or malformed
+     */
+    public long getDroppedReplies() {
+        return droppedReplies.get();
+    }
+
+    /**
+     * @return - attempts that were also sent to a second upstream for being slow
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * @return - hedged attempts where the second upstream answered first
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * @return - replies that answered SERVFAIL or REFUSED
+     */
+    public long getErrorReplies() {
+        return errorReplies.get();
+    }
+
+    /**
+     * @return - queries asked again over TCP because their UDP reply was truncated
+     */
+    public long getTcpRetries() {
+        return tcpRetriesSent.get();
+    }
+
+    /**
+     * @return - TCP retries that failed, leaving the query with its truncated reply
+     */
+    public long getTcpRetriesFailed() {
+        return tcpRetriesFailed.get();
+    }
+
+    /**
+     * @return - the upstreams with their round trip and failure statistics
+     */
+    public DNSUpstreamServer[] getServers() {
+        return servers;
+    }
+}
@@ -0,0 +1,283 @@
+package dns;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * One upstream resolver and what we have learned about it: a smoothed round trip time in the style of TCP's SRTT
+ * (each reply moves it 1/8 of the way towards the new sample), the recent round trips themselves for percentile
+ * based hedging, and how many queries in a row it has failed to answer. After three failures in a row it is
+ * treated as down for a while, twice as long for every further failure, up to a minute.
+ *
+ * A server that goes unmeasured for DECAY_HALF_LIFE_NANOS has its SRTT halved for every DECAY_HALF_LIFE_NANOS
+ * after that, so one that was slow once is tried again after a while however many queries go elsewhere. The
+ * query that tries it is a probe: until the probe is answered the server counts at its undecayed SRTT, so only
+ * one query at a time finds out whether it has got any faster.
+ */
+
+public class DNSUpstreamServer {
+
+    private static final int SAMPLES = 256; // round trips kept for the percentile, must be a power of 2
+
+    private static final int FAILURES_BEFORE_BACKOFF = 3;
+
+    private static final long BASE_BACKOFF_NANOS = 1_000_000_000L;
+
+    private static final long MAX_BACKOFF_NANOS = 60_000_000_000L;
+
+    private static final long DECAY_HALF_LIFE_NANOS = 5_000_000_000L; // how fast an idle server's SRTT fades
+
+    private InetSocketAddress address;
+
+    private AtomicLong srttBits = new AtomicLong(); // SRTT in ms as double bits, 0 until the first reply so it's tried
+
+    private volatile long sampledAt = System.nanoTime(); // System.nanoTime() of the last sample, decay runs from here
+
+    private volatile long probeSentAt; // System.nanoTime() a probe of the decayed SRTT went out, 0 if none is out
+
+    private AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long downUntil; // System.nanoTime() the server may be used again after failing
+
+    private double percentile;
+
+    private int[] rttMicros = new int[SAMPLES];
+
+    private int sampleCount;
+
+    private volatile long percentileNanos; // recomputed with each of the first 64 samples, then every 64
+
+    private AtomicLong queries = new AtomicLong();
+
+    private AtomicLong replies = new AtomicLong();
+
+    private AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param address - address of the resolver
+     * @param percentile - which round trip percentile hedging waits for, e.g. 0.9
+     */
+    public DNSUpstreamServer(InetSocketAddress address, double percentile) {
+        this.address = address;
+        this.percentile = percentile;
+    }
+
+    /**
+     * Parses "host", "host:port" or "[v6 address]:port"
+     * @param spec - the address as written in the configuration
+     * @param defaultPort - port to use when none is given
+     * @return - resolved address
+     * @throws UnknownHostException
+     */
+    static InetSocketAddress parseAddress(String spec, int defaultPort) throws UnknownHostException {
+        String host = spec.trim();
+        int port = defaultPort;
+        if (host.startsWith("[")) {
+            int close = host.indexOf(']');
+            if (close + 1 < host.length() && host.charAt(close + 1) == ':') {
+                port = Integer.parseInt(host.substring(close + 2));
+            }
+            host = host.substring(1, close);
+        } else if (host.indexOf(':') >= 0 && host.indexOf(':') == host.lastIndexOf(':')) {
+            port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
+            host = host.substring(0, host.indexOf(':'));
+        }
+        return new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
+    /**
+     * Records that a query was sent here. If the server hasn't been measured for a half-life, the query is sent
+     * as a probe.
+     * @param now - current System.nanoTime()
+     */
+    void onSent(long now) {
+        queries.incrementAndGet();
+        if (now - sampledAt >= DECAY_HALF_LIFE_NANOS && !isProbing(now)) {
+            probeSentAt = now;
+        }
+    }
+
+    /**
+     * Records a reply, clearing any run of failures
+     * @param rttNanos - time from sending to the reply, or a negative number if it isn't known
+     * @param now - current System.nanoTime()
+     */
+    void onReply(long rttNanos, long now) {
+        replies.incrementAndGet();
+        consecutiveFailures.set(0);
+        downUntil = 0;
+        if (rttNanos < 0) {
+            return;
+        }
+        smooth(rttNanos, now);
+        synchronized (rttMicros) {
+            rttMicros[sampleCount++ & (SAMPLES - 1)] = (int) Math.min(Integer.MAX_VALUE, rttNanos / 1000);
+            if (sampleCount <= 64 || (sampleCount & 63) == 0) {
+                int[] sorted = Arrays.copyOf(rttMicros, Math.min(sampleCount, SAMPLES));
+                Arrays.sort(sorted);
+                percentileNanos = sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] * 1000L;
+            }
+        }
+    }
+
+    /**
+     * Records that a hedge to another upstream answered before this one did. This one took at least as long as
+     * has passed, which counts against its SRTT like a reply that slow would.
+     * @param elapsedNanos - time since the query was sent here
+     * @param now - current System.nanoTime()
+     */
+    void onOvertaken(long elapsedNanos, long now) {
+        smooth(elapsedNanos, now);
+    }
+
+    /**
+     * Moves the SRTT 1/8 of the way from where it has decayed to towards the new sample
+     * @param rttNanos - new round trip sample
+     * @param now - current System.nanoTime()
+     */
+    private void smooth(long rttNanos, long now) {
+        double sample = rttNanos / 1_000_000.0;
+        updateSrtt(srtt -> srtt == 0 ? sample : srtt + (sample - srtt) / 8, now);
+    }
+
+    /**
+     * Replaces the SRTT in a compare and set loop, so samples from the reply reader and timeouts from the timer
+     * never overwrite each other. The update starts from the decayed SRTT and puts off the decay. The SRTT and
+     * the time of its sample are two writes, so a decay computed in between can use the previous sample's time;
+     * that is off by at most one sample's worth of decay, which selection can live with.
+     * @param update - new SRTT from the current one, both in milliseconds
+     * @param now - current System.nanoTime()
+     */
+    private void updateSrtt(DoubleUnaryOperator update, long now) {
+        long bits;
+        long updated;
+        do {
+            bits = srttBits.get();
+            updated = Double.doubleToRawLongBits(update.applyAsDouble(decayed(Double.longBitsToDouble(bits), now)));
+        } while (!srttBits.compareAndSet(bits, updated));
+        sampledAt = now;
+        probeSentAt = 0;
+    }
+
+    /**
+     * @param srtt - SRTT as of the last sample, in milliseconds
+     * @param now - current System.nanoTime()
+     * @return - the SRTT halved for every half-life it has gone unmeasured past the first, so a server in steady
+     * use keeps the SRTT its replies give it
+     */
+    private double decayed(double srtt, long now) {
+        long idle = now - sampledAt - DECAY_HALF_LIFE_NANOS;
+        return idle <= 0 ? srtt : srtt * Math.pow(0.5, (double) idle / DECAY_HALF_LIFE_NANOS);
+    }
+
+    /**
+     * @param now - current System.nanoTime()
+     * @return - whether a probe is out that hasn't been answered or given up on, counted as given up on after a
+     * half-life in case its query was settled by another server
+     */
+    private boolean isProbing(long now) {
+        long sent = probeSentAt;
+        return sent != 0 && now - sent < DECAY_HALF_LIFE_NANOS;
+    }
+
+    /**
+     * Records a query that got no reply in time. The SRTT is pushed up to at least the timeout so the server
+     * stops being preferred, and after a few failures in a row it is taken out of rotation for a while.
+     * @param timeoutMillis - how long we waited
+     * @param now - current System.nanoTime()
+     */
+    void onTimeout(int timeoutMillis, long now) {
+        failures.incrementAndGet();
+        updateSrtt(srtt -> Math.max(srtt * 2, timeoutMillis), now);
+        int inARow = consecutiveFailures.incrementAndGet();
+        if (inARow >= FAILURES_BEFORE_BACKOFF) {
+            int doublings = Math.min(inARow - FAILURES_BEFORE_BACKOFF, 16);
+            downUntil = now + Math.min(BASE_BACKOFF_NANOS << doublings, MAX_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * @param now - current System.nanoTime()
+     * @return - whether the server is not backing off after failures
+     */
+    boolean isHealthy(long now) {
+        return downUntil == 0 || now - downUntil >= 0;
+    }
+
+    /**
+     * @param fallbackNanos - what to wait before enough round trips have been seen
+     * @param minNanos - shortest wait
+     * @return - how long to wait for this server before hedging to another one
+     */
+    long hedgeDelayNanos(long fallbackNanos, long minNanos) {
+        long observed = percentileNanos;
+        return Math.max(minNanos, observed == 0 ? fallbackNanos : observed);
+    }
+
+    /**
+     * @return - System.nanoTime() the server comes back from backing off, 0 if it isn't
+     */
+    long getDownUntil() {
+        return downUntil;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @param now - current System.nanoTime()
+     * @return - smoothed round trip time in milliseconds to rank the server by: decayed for the time it has gone
+     * unmeasured, or as last measured while a probe is out
+     */
+    double getSrttMillis(long now) {
+        double srtt = Double.longBitsToDouble(srttBits.get());
+        return isProbing(now) ? srtt : decayed(srtt, now);
+    }
+
+    /**
+     * @return - smoothed round trip time in milliseconds as of the last sample
+     */
+    public double getSrttMillis() {
+        return Double.longBitsToDouble(srttBits.get());
+    }
+
+    /**
+     * @return - queries sent to this server, hedges included
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * @return - replies received from this server
+     */
+    public long getReplies() {
+        return replies.get();
+    }
+
+    /**
+     * @return - queries this server didn't answer in time
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DNSUpstreamServer{" +
+                "address=" + address +
+                ", srttMillis=" + String.format("%.2f", getSrttMillis()) +
+                ", percentileMillis=" + percentileNanos / 1_000_000.0 +
+                ", queries=" + queries +
+                ", replies=" + replies +
+                ", failures=" + failures +
+                ", healthy=" + isHealthy(System.nanoTime()) +
+                '}';
+    }
+}
@@ -0,0 +1,92 @@
+package dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cached answer already encoded as a complete response: header, the question, the answer and authority
+ * sections, with a zero transaction ID and no additional records. Serving a hit is then a copy into the outgoing
+ * buffer, a 2-byte ID patch and rewriting each record's TTL field in place with the time it has left. No objects
+ * are created on that path.
+ */
+
+public class DNSWireResponse {
+
+    private byte[] encoded;
+
+    private int[] ttlOffsets; // offset of each record's TTL field in encoded
+
+    private long[] retirements; // System.nanoTime() each record retires at, same order as ttlOffsets
+
+    /**
+     * Encodes the response for a cached answer
+     * @param question - question the answer belongs to
+     * @param answer - cached answer
+     * @return - encoded response ready to be stamped with an ID
+     */
+    static DNSWireResponse encode(DNSQuestion question, DNSAnswer answer) {
+        DNSWireResponse response = new DNSWireResponse();
+        DNSEncoder encoder = DNSEncoder.forThread();
+        DNSMessage.buildTemplate(question, answer).writeTo(encoder);
+        response.encoded = encoder.toByteArray();
+        response.ttlOffsets = encoder.getTtlOffsets(); // a template has no additional records
+
+        int records = response.ttlOffsets.length;
+        response.retirements = new long[records];
+        for (int i = 0; i < records; ++i) {
+            response.retirements[i] = i < answer.getAnswers().length
+                    ? answer.getAnswers()[i].getRetirement()
+                    : answer.getAuthorities()[i - answer.getAnswers().length].getRetirement();
+        }
+        return response;
+    }
+
+    /**
+     * Writes the response at the buffer's position with the client's transaction ID, the client's spelling of the
+     * name and current TTLs
+     * @param out - buffer the response is written to, its position moves past the response
+     * @param id - transaction ID of the request being answered
+     * @param name - asked name in wire format as the client sent it; the cache matches names whatever their case,
+     *             and the question is echoed back as asked
+     * @param now - current System.nanoTime()
+     */
+    void writeTo(ByteBuffer out, int id, byte[] name, long now) {
+        int start = out.position();
+        out.put(encoded);
+        out.putShort(start, (short) id);
+        out.position(start + 12);
+        out.put(name); // same length as the cached spelling, the question always sits right after the header
+        out.position(start + encoded.length);
+        for (int i = 0; i < ttlOffsets.length; ++i) {
+            long remaining = Math.max(0, (retirements[i] - now) / 1_000_000_000L);
+            out.putInt(start + ttlOffsets[i], (int) remaining);
+        }
+    }
+
+    /**
+     * @return - size of the encoded response in bytes
+     */
+    public int length() {
+        return encoded.length;
+    }
+
+    /**
+     * @return - the encoded response, zero ID, not to be modified
+     */
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return - offset of each record's TTL field in the encoded response
+     */
+    int[] getTtlOffsets() {
+        return ttlOffsets;
+    }
+
+    /**
+     * @return - System.nanoTime() each record retires at, same order as the TTL offsets
+     */
+    long[] getRetirements() {
+        return retirements;
+    }
+}
@@ -0,0 +1,645 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the records of a zone from a master file in the format of RFC 1035 section 5: $ORIGIN, $TTL and $INCLUDE,
+ * relative names and @, a blank owner meaning the previous one, TTL and class in either order, ( ) spanning
+ * lines and ; comments. TTLs may be written with units (1h30m). A, AAAA, NS, CNAME, SOA, PTR, MX, TXT and SRV have
+ * their usual text forms; any type, known or not, can be written in the generic form of RFC 3597
+ * (TYPE99 \# 4 0a000001). Owner names are folded to lower case as DNSKey does; names inside RDATA are kept as
+ * written.
+ */
+
+public class DNSZoneFile {
+
+    private static final int MAX_INCLUDE_DEPTH = 8;
+
+    private static final long[] TTL_UNITS = {1, 60, 3600, 86400, 604800}; // seconds in s, m, h, d, w
+
+    private List<DNSRecord> records = new ArrayList<>();
+
+    private List<Path> files = new ArrayList<>(); // every file read, includes too
+
+    private Path file; // file being read
+
+    private int line; // line the entry being read starts on
+
+    private byte[] origin; // completes relative names, null until $ORIGIN
+
+    private long defaultTtl = -1; // from $TTL, else the last TTL written
+
+    private boolean ttlDirective; // whether $TTL has been seen
+
+    private byte[] lastOwner; // owner of the previous record, for entries that leave it blank
+
+    private int lastClass = 1; // IN until a record says otherwise
+
+    private int parens; // ( not yet closed
+
+    private List<String> tokens; // tokens of the entry being read
+
+    private int cursor; // next token to read
+
+    private ByteBuffer rdata = ByteBuffer.allocate(65535); // RDATA of the record being read
+
+    /**
+     * Reads a zone file and everything it includes
+     * @param file - master file
+     * @return - the parser, holding the records and the files read
+     * @throws IOException - if a file can't be read, or on the first entry that can't be parsed, naming its file
+     * and line
+     */
+    static DNSZoneFile read(Path file) throws IOException {
+        DNSZoneFile zone = new DNSZoneFile();
+        zone.include(file, null, 0);
+        return zone;
+    }
+
+    /**
+     * @return - the records in the order they were written
+     */
+    List<DNSRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return - every file that was read, the zone file first
+     */
+    List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * Reads a file into the records. The origin, file and line are put back afterwards, as RFC 1035 has it for
+     * $INCLUDE.
+     * @param path - file to read
+     * @param includeOrigin - origin the file starts with, null to keep the current one
+     * @param depth - how many $INCLUDEs deep this file is
+     * @throws IOException
+     */
+    private void include(Path path, byte[] includeOrigin, int depth) throws IOException {
+        if (depth > MAX_INCLUDE_DEPTH) {
+            throw error("$INCLUDE nested more than " + MAX_INCLUDE_DEPTH + " deep");
+        }
+        Path outerFile = file;
+        int outerLine = line;
+        byte[] outerOrigin = origin;
+        file = path;
+        files.add(path);
+        if (includeOrigin != null) {
+            origin = includeOrigin;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)) {
+            List<String> entry = new ArrayList<>();
+            boolean blankOwner = false;
+            int number = 0;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                number++;
+                if (parens == 0) {
+                    entry.clear();
+                    blankOwner = !text.isEmpty() && (text.charAt(0) == ' ' || text.charAt(0) == '\t');
+                    line = number;
+                }
+                tokenize(text, entry);
+                if (parens == 0 && !entry.isEmpty()) {
+                    readEntry(entry, blankOwner, depth);
+                }
+            }
+            if (parens != 0) {
+                throw error("( is never closed");
+            }
+        }
+        file = outerFile;
+        line = outerLine;
+        origin = outerOrigin;
+    }
+
+    /**
+     * Splits one line into tokens, dropping its comment. Quoted strings are kept whole, quotes included, and
+     * escapes are left for whoever reads the token.
+     * @param text - the line
+     * @param entry - tokens of the entry so far
+     * @throws IOException
+     */
+    private void tokenize(String text, List<String> entry) throws IOException {
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == ';') {
+                break;
+            } else if (c == ' ' || c == '\t') {
+                i++;
+            } else if (c == '(') {
+                parens++;
+                i++;
+            } else if (c == ')') {
+                if (--parens < 0) {
+                    throw error(") without (");
+                }
+                i++;
+            } else {
+                int start = i;
+                if (c == '"') {
+                    for (i++; i < text.length() && text.charAt(i) != '"'; ++i) {
+                        if (text.charAt(i) == '\\') {
+                            i++;
+                        }
+                    }
+                    if (i >= text.length()) {
+                        throw error("quoted string is never closed");
+                    }
+                    i++;
+                } else {
+                    for (; i < text.length() && " \t;()\"".indexOf(text.charAt(i)) < 0; ++i) {
+                        if (text.charAt(i) == '\\') {
+                            i++;
+                        }
+                    }
+                }
+                entry.add(text.substring(start, Math.min(i, text.length())));
+            }
+        }
+    }
+
+    /**
+     * Reads a directive or a record
+     * @param entry - its tokens
+     * @param blankOwner - whether the entry started with white space, so the owner is the previous one
+     * @param depth - how many $INCLUDEs deep the file is
+     * @throws IOException
+     */
+    private void readEntry(List<String> entry, boolean blankOwner, int depth) throws IOException {
+        tokens = entry;
+        cursor = 0;
+        String first = entry.get(0);
+        if (!blankOwner && first.startsWith("$")) {
+            readDirective(first.toUpperCase(), depth);
+            return;
+        }
+
+        byte[] owner;
+        if (blankOwner) {
+            if (lastOwner == null) {
+                throw error("no owner name and no previous record to take it from");
+            }
+            owner = lastOwner;
+        } else {
+            owner = DNSKey.canonical(parseName(next()));
+            lastOwner = owner;
+        }
+
+        long ttl = -1;
+        int mClass = -1;
+        while (cursor < tokens.size()) {
+            String token = tokens.get(cursor);
+            if (ttl < 0 && Character.isDigit(token.charAt(0))) {
+                ttl = parseTtl(token);
+            } else if (mClass < 0 && parseClass(token) >= 0) {
+                mClass = parseClass(token);
+            } else {
+                break;
+            }
+            cursor++;
+        }
+        int type = parseType(next());
+        if (mClass < 0) {
+            mClass = lastClass;
+        }
+        lastClass = mClass;
+        if (ttl < 0) {
+            ttl = defaultTtl;
+            if (ttl < 0) {
+                throw error("no TTL and no $TTL before it");
+            }
+        } else if (!ttlDirective) {
+            defaultTtl = ttl; // RFC 1035: a missing TTL is the last one written
+        }
+        records.add(DNSRecord.buildLocal(owner, type, mClass, ttl, parseRData(type)));
+    }
+
+    /**
+     * @param directive - $ORIGIN, $TTL or $INCLUDE, upper case
+     * @param depth - how many $INCLUDEs deep the file is
+     * @throws IOException
+     */
+    private void readDirective(String directive, int depth) throws IOException {
+        cursor = 1;
+        switch (directive) {
+            case "$ORIGIN":
+                origin = parseName(next());
+                break;
+            case "$TTL":
+                defaultTtl = parseTtl(next());
+                ttlDirective = true;
+                break;
+            case "$INCLUDE":
+                Path included = file.resolveSibling(next());
+                byte[] includeOrigin = cursor < tokens.size() ? parseName(next()) : null;
+                expectEnd();
+                include(included, includeOrigin, depth + 1);
+                return;
+            default:
+                throw error("unknown directive " + directive);
+        }
+        expectEnd();
+    }
+
+    /**
+     * Reads the RDATA of a record from the remaining tokens
+     * @param type - record type
+     * @return - the RDATA with any names uncompressed
+     * @throws IOException
+     */
+    private byte[] parseRData(int type) throws IOException {
+        rdata.clear();
+        if (cursor < tokens.size() && tokens.get(cursor).equals("\\#")) {
+            cursor++;
+            parseGeneric();
+            byte[] generic = Arrays.copyOf(rdata.array(), rdata.position());
+            if (type == DNSRecord.TYPE_SOA && !DNSRecord.isWellFormedSoa(generic)) {
+                throw error("SOA RDATA needs two uncompressed names then 20 bytes of serial, timers and minimum");
+            }
+        } else {
+            switch (type) {
+                case DNSRecord.TYPE_A:
+                    rdata.put(parseIpv4(next()));
+                    break;
+                case DNSRecord.TYPE_AAAA:
+                    rdata.put(parseIpv6(next()));
+                    break;
+                case DNSRecord.TYPE_NS:
+                case DNSRecord.TYPE_CNAME:
+                case DNSRecord.TYPE_PTR:
+                    rdata.put(parseName(next()));
+                    break;
+                case DNSRecord.TYPE_MX:
+                    rdata.putShort((short) parseNumber(next(), 0xffff));
+                    rdata.put(parseName(next()));
+                    break;
+                case DNSRecord.TYPE_SRV:
+                    rdata.putShort((short) parseNumber(next(), 0xffff)); // priority
+                    rdata.putShort((short) parseNumber(next(), 0xffff)); // weight
+                    rdata.putShort((short) parseNumber(next(), 0xffff)); // port
+                    rdata.put(parseName(next()));
+                    break;
+                case DNSRecord.TYPE_SOA:
+                    rdata.put(parseName(next())); // primary name server
+                    rdata.put(parseName(next())); // mailbox of whoever runs the zone
+                    rdata.putInt((int) parseNumber(next(), 0xffffffffL)); // serial
+                    for (int field = 0; field < 4; ++field) {
+                        rdata.putInt((int) parseTtl(next())); // refresh, retry, expire, minimum
+                    }
+                    break;
+                case DNSRecord.TYPE_TXT:
+                    do {
+                        parseCharacterString(next());
+                    } while (cursor < tokens.size());
+                    break;
+                default:
+                    throw error("no text form for type " + type + ", write it as TYPE" + type + " \\# <length> <hex>");
+            }
+        }
+        expectEnd();
+        return Arrays.copyOf(rdata.array(), rdata.position());
+    }
+
+    /**
+     * Reads RDATA in the RFC 3597 form: its length, then the bytes in hex, in as many tokens as it takes
+     * @throws IOException
+     */
+    private void parseGeneric() throws IOException {
+        long length = parseNumber(next(), 65535);
+        StringBuilder hex = new StringBuilder();
+        while (cursor < tokens.size()) {
+            hex.append(next());
+        }
+        if (hex.length() != length * 2) {
+            throw error("\\# says " + length + " bytes but " + hex.length() / 2.0 + " are given");
+        }
+        for (int i = 0; i < hex.length(); i += 2) {
+            int high = Character.digit(hex.charAt(i), 16);
+            int low = Character.digit(hex.charAt(i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw error("bad hex in " + hex);
+            }
+            rdata.put((byte) (high << 4 | low));
+        }
+    }
+
+    /**
+     * Appends a character-string, quoted or not, with its length byte
+     * @param token - the token
+     * @throws IOException
+     */
+    private void parseCharacterString(String token) throws IOException {
+        if (token.startsWith("\"")) {
+            token = token.substring(1, token.length() - 1);
+        }
+        int lengthAt = rdata.position();
+        rdata.put((byte) 0);
+        for (int i = 0; i < token.length(); ++i) {
+            int value = token.charAt(i);
+            if (value == '\\') {
+                value = escapeAt(token, i);
+                i += escapeLength(token, i) - 1;
+            }
+            if (value > 0xff) {
+                throw error("character outside Latin-1 in " + token);
+            }
+            if (rdata.position() - lengthAt > 255) {
+                throw error("character-string longer than 255 bytes");
+            }
+            rdata.put((byte) value);
+        }
+        rdata.put(lengthAt, (byte) (rdata.position() - lengthAt - 1));
+    }
+
+    /**
+     * Turns a name as written into uncompressed wire format. @ is the origin, and a name without a trailing dot
+     * is relative to it.
+     * @param token - the name
+     * @return - the name in wire format
+     * @throws IOException
+     */
+    private byte[] parseName(String token) throws IOException {
+        if (token.equals("@")) {
+            return origin();
+        }
+        if (token.equals(".")) {
+            return new byte[1];
+        }
+        byte[] name = new byte[255];
+        int labelAt = 0; // length byte of the label being written
+        int length = 1;
+        boolean absolute = false;
+        for (int i = 0; i < token.length(); ++i) {
+            int value = token.charAt(i);
+            if (value == '.') {
+                if (length - labelAt == 1) {
+                    throw error("empty label in " + token);
+                }
+                name[labelAt] = (byte) (length - labelAt - 1);
+                if (i == token.length() - 1) {
+                    absolute = true;
+                    break;
+                }
+                labelAt = length++;
+                continue;
+            }
+            if (value == '\\') {
+                value = escapeAt(token, i);
+                i += escapeLength(token, i) - 1;
+            }
+            if (value > 0xff || length - labelAt > 63 || length >= 254) {
+                throw error("bad label or name too long in " + token);
+            }
+            name[length++] = (byte) value;
+        }
+        if (absolute) {
+            name[length++] = 0;
+            return Arrays.copyOf(name, length);
+        }
+        name[labelAt] = (byte) (length - labelAt - 1);
+        byte[] suffix = origin();
+        if (length + suffix.length > 255) {
+            throw error("name longer than 255 bytes: " + token);
+        }
+        byte[] full = Arrays.copyOf(name, length + suffix.length);
+        System.arraycopy(suffix, 0, full, length, suffix.length);
+        return full;
+    }
+
+    /**
+     * @param text - text holding an escape
+     * @param i - offset of its backslash
+     * @return - the byte it stands for: \DDD is a decimal value, \X is X itself
+     * @throws IOException
+     */
+    private int escapeAt(String text, int i) throws IOException {
+        if (escapeLength(text, i) == 4) {
+            return Integer.parseInt(text.substring(i + 1, i + 4));
+        }
+        if (i + 1 >= text.length()) {
+            throw error("\\ at the end of " + text);
+        }
+        return text.charAt(i + 1);
+    }
+
+    /**
+     * @param text - text holding an escape
+     * @param i - offset of its backslash
+     * @return - characters the escape takes up, backslash included
+     */
+    private static int escapeLength(String text, int i) {
+        if (i + 3 < text.length() && Character.isDigit(text.charAt(i + 1)) && Character.isDigit(text.charAt(i + 2))
+                && Character.isDigit(text.charAt(i + 3))) {
+            return 4;
+        }
+        return 2;
+    }
+
+    /**
+     * @return - the origin
+     * @throws IOException - if there is no $ORIGIN yet
+     */
+    private byte[] origin() throws IOException {
+        if (origin == null) {
+            throw error("relative name before any $ORIGIN");
+        }
+        return origin;
+    }
+
+    /**
+     * @param token - dotted quad
+     * @return - the 4 address bytes
+     * @throws IOException
+     */
+    private byte[] parseIpv4(String token) throws IOException {
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 4) {
+            throw error("bad IPv4 address " + token);
+        }
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; ++i) {
+            address[i] = (byte) parseNumber(parts[i], 255);
+        }
+        return address;
+    }
+
+    /**
+     * @param token - IPv6 address in any of its text forms
+     * @return - the 16 address bytes
+     * @throws IOException
+     */
+    private byte[] parseIpv6(String token) throws IOException {
+        if (token.indexOf(':') < 0 || !token.matches("[0-9A-Fa-f:.]+")) {
+            throw error("bad IPv6 address " + token); // anything else would have InetAddress look the name up
+        }
+        InetAddress address = InetAddress.getByName(token);
+        if (address instanceof Inet4Address) { // ::ffff:a.b.c.d comes back as IPv4
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            System.arraycopy(address.getAddress(), 0, mapped, 12, 4);
+            return mapped;
+        }
+        return address.getAddress();
+    }
+
+    /**
+     * @param token - decimal number
+     * @param max - largest value allowed
+     * @return - its value
+     * @throws IOException
+     */
+    private long parseNumber(String token, long max) throws IOException {
+        if (token.isEmpty() || token.length() > 10 || !token.chars().allMatch(Character::isDigit)) {
+            throw error("expected a number, not " + token);
+        }
+        long value = Long.parseLong(token);
+        if (value > max) {
+            throw error(token + " is larger than " + max);
+        }
+        return value;
+    }
+
+    /**
+     * @param token - seconds, or a duration with units such as 1h30m (s, m, h, d, w)
+     * @return - the TTL in seconds
+     * @throws IOException
+     */
+    private long parseTtl(String token) throws IOException {
+        long total = 0;
+        long value = 0;
+        boolean digits = false;
+        for (int i = 0; i < token.length(); ++i) {
+            char c = token.charAt(i);
+            if (Character.isDigit(c)) {
+                value = value * 10 + (c - '0');
+                digits = true;
+                if (value > Integer.MAX_VALUE) {
+                    break;
+                }
+                continue;
+            }
+            int unit = "smhdw".indexOf(Character.toLowerCase(c));
+            if (unit < 0 || !digits) {
+                throw error("bad TTL " + token);
+            }
+            total += value * TTL_UNITS[unit];
+            value = 0;
+            digits = false;
+        }
+        total += value;
+        if (total > Integer.MAX_VALUE) {
+            throw error("TTL " + token + " is larger than 2^31 - 1 seconds");
+        }
+        return total;
+    }
+
+    /**
+     * @param token - IN, CH, HS or CLASSnn, any case
+     * @return - the class, or -1 if the token isn't one
+     */
+    private static int parseClass(String token) {
+        switch (token.toUpperCase()) {
+            case "IN":
+                return 1;
+            case "CH":
+                return 3;
+            case "HS":
+                return 4;
+            default:
+                return numbered(token, "CLASS");
+        }
+    }
+
+    /**
+     * @param token - type mnemonic or TYPEnn, any case
+     * @return - the type
+     * @throws IOException - if it isn't a type
+     */
+    private int parseType(String token) throws IOException {
+        switch (token.toUpperCase()) {
+            case "A":
+                return DNSRecord.TYPE_A;
+            case "NS":
+                return DNSRecord.TYPE_NS;
+            case "CNAME":
+                return DNSRecord.TYPE_CNAME;
+            case "SOA":
+                return DNSRecord.TYPE_SOA;
+            case "PTR":
+                return DNSRecord.TYPE_PTR;
+            case "MX":
+                return DNSRecord.TYPE_MX;
+            case "TXT":
+                return DNSRecord.TYPE_TXT;
+            case "AAAA":
+                return DNSRecord.TYPE_AAAA;
+            case "SRV":
+                return DNSRecord.TYPE_SRV;
+            default:
+                int type = numbered(token, "TYPE");
+                if (type < 0) {
+                    throw error("unknown record type " + token + ", write it as TYPEnn \\# <length> <hex>");
+                }
+                return type;
+        }
+    }
+
+    /**
+     * @param token - token such as TYPE65 or CLASS255
+     * @param prefix - TYPE or CLASS
+     * @return - the number after the prefix, or -1 if the token isn't of that form
+     */
+    private static int numbered(String token, String prefix) {
+        if (token.length() <= prefix.length() || token.length() > prefix.length() + 5
+                || !token.regionMatches(true, 0, prefix, 0, prefix.length())
+                || !token.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        int value = Integer.parseInt(token.substring(prefix.length()));
+        return value > 0xffff ? -1 : value;
+    }
+
+    /**
+     * @return - the next token of the entry
+     * @throws IOException - if there are none left
+     */
+    private String next() throws IOException {
+        if (cursor >= tokens.size()) {
+            throw error("entry ends early");
+        }
+        return tokens.get(cursor++);
+    }
+
+    /**
+     * @throws IOException - if the entry has tokens left over
+     */
+    private void expectEnd() throws IOException {
+        if (cursor < tokens.size()) {
+            throw error("unexpected " + tokens.get(cursor));
+        }
+    }
+
+    /**
+     * @param message - what is wrong
+     * @return - exception naming the file and line of the entry being read
+     */
+    private IOException error(String message) {
+        return new IOException(file + ":" + line + ": " + message);
+    }
+}
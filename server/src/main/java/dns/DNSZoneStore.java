@@ -0,0 +1,657 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zones we answer for ourselves, with AA set, before the cache or the upstream is asked. Each zone is read from a
+ * master file (DNSZoneFile) whose SOA record names its apex.
+ *
+ * The zones live in an index that is never changed once built. Reloading builds a new index beside the old one
+ * and swaps a volatile reference, so queries never wait on a reload and always see one whole version of the
+ * zones. The index is an open addressing table of every name in the zones, empty non-terminals included, keyed by
+ * a hash of the canonical name, with no key objects or map entries around the names:
+ *
+ * - each name holds the encoded response for every type it can answer, the same kind of template the cache
+ *   keeps, with CNAME chains inside the zones already followed. A hit is one probe and a copy with the ID and the
+ *   client's spelling of the name patched in, just like a cache hit.
+ * - everything else (wildcards, NXDOMAIN, NODATA, CNAMEs to other types or out of the zones) is worked out by
+ *   finding the closest enclosing name, probing with each suffix of the question's name in turn. A small second
+ *   table holds just the apexes and is checked first, so a name under none of the zones is turned away without
+ *   touching the big table and without allocating.
+ *
+ * There are no zone cuts: NS records below an apex are served as ordinary data rather than as referrals.
+ */
+
+public class DNSZoneStore {
+
+    private static final int MAX_CHAIN = 8; // CNAMEs followed before the answer is given up as a loop
+
+    private static final int TYPE_ANY = 255;
+
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    private static final int[] NO_TYPES = new int[0];
+
+    private String[] files; // zone files as configured
+
+    private Map<Path, Long> modified = new HashMap<>(); // every file read, includes too, and its time when read
+
+    private volatile Index index = new Index(); // swapped whole on reload, never changed
+
+    private ScheduledExecutorService reloadTimer; // null unless reloads are scheduled
+
+    /**
+     * A name in the zones and the records it owns
+     */
+    private static class Node {
+
+        private byte[] name; // canonical wire format
+
+        private int hash; // hash(name, 0)
+
+        private DNSRecord[] negative; // SOA of the node's zone with its negative TTL, for NXDOMAIN and NODATA
+
+        private DNSRecord[][] rrsets = new DNSRecord[0][]; // one per type and class, none for an empty non-terminal
+
+        private Node wildcard; // the *. name right below this one, or null
+
+        private List<DNSRecord> pending = new ArrayList<>(); // records gathered while the index is built
+
+        private int[] typesAndClasses = NO_TYPES; // type << 16 | class of each ready response
+
+        private byte[][] responses; // encoded responses with a zero ID, same order as typesAndClasses
+
+        /**
+         * @param type - record type, or TYPE_ANY for every record
+         * @param mClass - record class
+         * @return - the records of that type and class, or null if there are none
+         */
+        private DNSRecord[] rrset(int type, int mClass) {
+            if (type == TYPE_ANY && rrsets.length > 0) {
+                return Arrays.stream(rrsets).flatMap(Arrays::stream).toArray(DNSRecord[]::new);
+            }
+            for (DNSRecord[] rrset : rrsets) {
+                if (rrset[0].getType() == type && rrset[0].getRecordClass() == mClass) {
+                    return rrset;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param typeAndClass - qType << 16 | qClass
+         * @return - the encoded response for it, or null if there is none ready
+         */
+        private byte[] response(int typeAndClass) {
+            for (int i = 0; i < typesAndClasses.length; ++i) {
+                if (typesAndClasses[i] == typeAndClass) {
+                    return responses[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param typeAndClass - qType << 16 | qClass
+         * @param encoded - response to it with a zero ID
+         */
+        private void addResponse(int typeAndClass, byte[] encoded) {
+            int count = typesAndClasses.length;
+            typesAndClasses = Arrays.copyOf(typesAndClasses, count + 1);
+            responses = responses == null ? new byte[1][] : Arrays.copyOf(responses, count + 1);
+            typesAndClasses[count] = typeAndClass;
+            responses[count] = encoded;
+        }
+    }
+
+    /**
+     * One complete version of the zones
+     */
+    private static class Index {
+
+        private Node[] nodes = new Node[1]; // open addressing by Node.hash, null slots are free
+
+        private int size; // names in nodes
+
+        private Node[] apexes = new Node[1]; // the apex nodes alone, the same way
+
+        private int zoneCount;
+
+        private int recordCount;
+
+        /**
+         * @param name - canonical name in wire format
+         * @param from - offset in name of the suffix to look for
+         * @return - the node for that suffix, or null
+         */
+        private Node find(byte[] name, int from) {
+            return probe(nodes, name, from, hash(name, from));
+        }
+
+        /**
+         * @param name - canonical name in wire format
+         * @return - the node for the name or, failing that, for its longest suffix in the zones; null if the name
+         * is under none of them
+         */
+        private Node findClosest(byte[] name) {
+            int apex = 0;
+            while (probe(apexes, name, apex, hash(name, apex)) == null) {
+                if (name[apex] == 0) {
+                    return null;
+                }
+                apex += (name[apex] & 0xff) + 1;
+            }
+            for (int from = 0; from < apex; from += (name[from] & 0xff) + 1) {
+                Node node = find(name, from);
+                if (node != null) {
+                    return node;
+                }
+            }
+            return find(name, apex); // the innermost zone's apex
+        }
+
+        /**
+         * Adds a node, or replaces the one with the same name
+         * @param node - node with its name set
+         */
+        private void put(Node node) {
+            if ((size + 1) * 2 > nodes.length) {
+                Node[] old = nodes;
+                nodes = new Node[old.length * 2];
+                for (Node moved : old) {
+                    if (moved != null) {
+                        nodes[free(nodes, moved.hash)] = moved;
+                    }
+                }
+            }
+            node.hash = hash(node.name, 0);
+            int slot = node.hash & (nodes.length - 1);
+            for (; nodes[slot] != null; slot = (slot + 1) & (nodes.length - 1)) {
+                if (nodes[slot].hash == node.hash && Arrays.equals(nodes[slot].name, node.name)) {
+                    nodes[slot] = node;
+                    return;
+                }
+            }
+            nodes[slot] = node;
+            size++;
+        }
+
+        /**
+         * Answers a question from the zones, following CNAMEs and wildcards
+         * @param asked - name as the client spelled it
+         * @param type - question type
+         * @param mClass - question class
+         * @return - the answer, or null if the name is under none of the zones
+         */
+        private DNSAnswer answer(byte[] asked, int type, int mClass) {
+            List<DNSRecord> chain = null;
+            byte[] name = asked;
+            for (int hop = 0; ; ++hop) {
+                byte[] canonical = DNSKey.canonical(name);
+                Node closest = findClosest(canonical);
+                if (closest == null) { // the chain has left the zones, the rest is up to the upstream
+                    return chain == null ? null
+                            : DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, toArray(chain), NO_RECORDS, name);
+                }
+                boolean exact = closest.name.length == canonical.length;
+                Node owner = exact ? closest : closest.wildcard;
+                if (owner == null) {
+                    return DNSAnswer.authoritative(DNSAnswer.RCODE_NXDOMAIN, toArray(chain), closest.negative, null);
+                }
+                DNSRecord[] rrset = owner.rrset(type, mClass);
+                if (rrset != null) {
+                    if (chain == null && exact) {
+                        return DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, rrset, NO_RECORDS, null);
+                    }
+                    chain = chain == null ? new ArrayList<>() : chain;
+                    for (DNSRecord record : rrset) {
+                        chain.add(exact ? record : record.withOwner(name));
+                    }
+                    return DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, toArray(chain), NO_RECORDS, null);
+                }
+                DNSRecord[] cname = type == DNSRecord.TYPE_CNAME ? null : owner.rrset(DNSRecord.TYPE_CNAME, mClass);
+                if (cname == null) {
+                    return DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, toArray(chain), closest.negative, null);
+                }
+                chain = chain == null ? new ArrayList<>() : chain;
+                if (hop == MAX_CHAIN) {
+                    return DNSAnswer.authoritative(DNSAnswer.RCODE_SERVFAIL, toArray(chain), NO_RECORDS, null);
+                }
+                DNSRecord link = exact ? cname[0] : cname[0].withOwner(name);
+                chain.add(link);
+                name = link.getIpBytes();
+            }
+        }
+    }
+
+    /**
+     * @param table - open addressing table of nodes, a power of two long
+     * @param name - canonical name in wire format
+     * @param from - offset in name of the suffix to look for
+     * @param hash - hash(name, from)
+     * @return - the node for that suffix, or null
+     */
+    private static Node probe(Node[] table, byte[] name, int from, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            Node node = table[slot];
+            if (node.hash == hash && Arrays.equals(node.name, 0, node.name.length, name, from, name.length)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param table - open addressing table of nodes with at least one free slot
+     * @param hash - hash of the name to go in
+     * @return - the free slot it goes in
+     */
+    private static int free(Node[] table, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param files - zone files, none for no local zones
+     */
+    public DNSZoneStore(String[] files) {
+        this.files = files;
+    }
+
+    /**
+     * Reads every zone file and swaps the new zones in
+     * @throws IOException - if a file can't be read or parsed, or the zones don't make sense; the zones already
+     * loaded are kept
+     */
+    public void load() throws IOException {
+        long started = System.nanoTime();
+        Map<Path, Long> seen = new HashMap<>();
+        for (String file : files) {
+            seen.put(Paths.get(file), lastModified(Paths.get(file)));
+        }
+        for (Path path : modified.keySet()) {
+            seen.put(path, lastModified(path));
+        }
+        modified = seen; // taken before reading, so a file that fails is only read again once it changes
+
+        List<List<DNSRecord>> zones = new ArrayList<>();
+        for (String file : files) {
+            DNSZoneFile zone = DNSZoneFile.read(Paths.get(file));
+            zones.add(zone.getRecords());
+            for (Path path : zone.getFiles()) {
+                seen.putIfAbsent(path, lastModified(path));
+            }
+        }
+        install(zones);
+        System.out.println("Loaded " + index.recordCount + " records in " + index.zoneCount + " zones in "
+                + (System.nanoTime() - started) / 1_000_000 + "ms");
+    }
+
+    /**
+     * Checks the zone files every few seconds and reloads them all when any of them has changed. A reload that
+     * fails is logged and the zones already loaded stay in service.
+     * @param intervalSeconds - seconds between checks, 0 never to reload
+     */
+    public void reloadOnChange(int intervalSeconds) {
+        if (intervalSeconds <= 0 || files.length == 0) {
+            return;
+        }
+        reloadTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread timer = new Thread(runnable, "dns-zone-reload");
+            timer.setDaemon(true);
+            return timer;
+        });
+        reloadTimer.scheduleWithFixedDelay(() -> {
+            try {
+                if (changed()) {
+                    load();
+                }
+            } catch (IOException e) {
+                System.out.println("Zone reload failed, still serving the zones loaded before: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // caught too, or the executor would quietly cancel every later reload
+                System.out.println("Zone reload failed, still serving the zones loaded before: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return - whether a zone file, or a file one includes, has changed since it was read
+     */
+    private boolean changed() {
+        for (Map.Entry<Path, Long> file : modified.entrySet()) {
+            if (lastModified(file.getKey()) != file.getValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param path - a file
+     * @return - when it was last modified, in milliseconds, or -1 if it can't be read
+     */
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Builds an index from parsed zones and swaps it in
+     * @param zones - each zone's records, in any order
+     * @throws IOException - if a zone has no SOA or more than one, or records outside its apex
+     */
+    void install(List<List<DNSRecord>> zones) throws IOException {
+        index = build(zones);
+    }
+
+    /**
+     * @param zones - each zone's records
+     * @return - the index for them
+     * @throws IOException - if a zone doesn't make sense
+     */
+    private static Index build(List<List<DNSRecord>> zones) throws IOException {
+        Index built = new Index();
+        DNSRecord[] soas = new DNSRecord[zones.size()];
+        List<Integer> byDepth = new ArrayList<>();
+        for (int z = 0; z < soas.length; ++z) {
+            soas[z] = apex(zones.get(z));
+            byDepth.add(z);
+        }
+        byDepth.sort(Comparator.comparingInt(z -> soas[z].getWireName().length)); // inner zones win a shared name
+
+        List<Node> apexes = new ArrayList<>();
+        for (int z : byDepth) {
+            List<DNSRecord> zone = zones.get(z);
+            DNSRecord soa = soas[z];
+            byte[] apex = soa.getWireName();
+            long negativeTtl = Math.min(soa.getTtl(), soa.getSoaMinimum());
+            DNSRecord[] negative = {
+                    DNSRecord.buildLocal(apex, DNSRecord.TYPE_SOA, soa.getRecordClass(), negativeTtl, soa.getIpBytes())};
+            Node apexNode = new Node();
+            apexNode.name = apex;
+            apexNode.negative = negative;
+            built.put(apexNode); // replaces what an outer zone had here
+            apexes.add(apexNode);
+            for (DNSRecord record : zone) {
+                byte[] owner = record.getWireName();
+                if (!isUnder(owner, apex)) {
+                    throw new IOException(DNSMessage.octetsToString(record.getDomainNames()) + " is outside its zone "
+                            + DNSMessage.octetsToString(soa.getDomainNames()));
+                }
+                Node node = built.find(owner, 0);
+                if (node == null || node.negative != negative) {
+                    node = addName(built, owner, apex, negative);
+                }
+                node.pending.add(record);
+            }
+            built.zoneCount++;
+            built.recordCount += zone.size();
+        }
+
+        built.apexes = new Node[Integer.highestOneBit(Math.max(1, apexes.size()) * 2) * 2];
+        for (Node apex : apexes) {
+            built.apexes[free(built.apexes, apex.hash)] = apex;
+        }
+        for (Node node : built.nodes) {
+            if (node == null) {
+                continue;
+            }
+            node.rrsets = group(node.pending);
+            node.pending = null;
+            Node parent = node.name[0] == 1 && node.name[1] == '*' ? built.find(node.name, 2) : null;
+            if (parent != null) {
+                parent.wildcard = node;
+            }
+        }
+
+        for (Node node : built.nodes) {
+            if (node == null) {
+                continue;
+            }
+            for (DNSRecord[] rrset : node.rrsets) {
+                int type = rrset[0].getType();
+                int mClass = rrset[0].getRecordClass();
+                node.addResponse(type << 16 | mClass, encode(node.name, type, mClass,
+                        DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, rrset, NO_RECORDS, null)));
+            }
+            for (DNSRecord[] cname : node.rrsets) {
+                Node target = cname[0].getType() == DNSRecord.TYPE_CNAME ? chainEnd(built, cname[0]) : null;
+                if (target == null) {
+                    continue;
+                }
+                for (DNSRecord[] rrset : target.rrsets) {
+                    int type = rrset[0].getType();
+                    int mClass = rrset[0].getRecordClass();
+                    DNSAnswer followed = built.answer(node.name, type, mClass);
+                    if (type != DNSRecord.TYPE_CNAME && followed.getChaseName() == null && !followed.isNegative()) {
+                        node.addResponse(type << 16 | mClass, encode(node.name, type, mClass, followed));
+                    }
+                }
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Adds a node for a name, and for every name between it and the apex that has none yet
+     * @param index - index being built
+     * @param owner - name to add
+     * @param apex - apex of its zone
+     * @param negative - the zone's negative SOA, which also marks the nodes that belong to it
+     * @return - the node for owner
+     */
+    private static Node addName(Index index, byte[] owner, byte[] apex, DNSRecord[] negative) {
+        Node node = new Node();
+        node.name = owner;
+        node.negative = negative;
+        index.put(node);
+        for (int from = (owner[0] & 0xff) + 1; owner.length - from > apex.length; from += (owner[from] & 0xff) + 1) {
+            Node existing = index.find(owner, from);
+            if (existing != null && existing.negative == negative) {
+                break;
+            }
+            Node between = new Node();
+            between.name = Arrays.copyOfRange(owner, from, owner.length);
+            between.negative = negative;
+            index.put(between);
+        }
+        return node;
+    }
+
+    /**
+     * @param records - records of one name
+     * @return - the records grouped by type and class
+     */
+    private static DNSRecord[][] group(List<DNSRecord> records) {
+        if (records.size() == 1) { // most names, no need for the map
+            return new DNSRecord[][]{{records.get(0)}};
+        }
+        Map<Integer, List<DNSRecord>> byType = new LinkedHashMap<>();
+        for (DNSRecord record : records) {
+            int typeAndClass = record.getType() << 16 | record.getRecordClass();
+            byType.computeIfAbsent(typeAndClass, t -> new ArrayList<>()).add(record);
+        }
+        DNSRecord[][] rrsets = new DNSRecord[byType.size()][];
+        int i = 0;
+        for (List<DNSRecord> rrset : byType.values()) {
+            rrsets[i++] = toArray(rrset);
+        }
+        return rrsets;
+    }
+
+    /**
+     * @param index - index being built, its name table already filled
+     * @param cname - first CNAME of a chain
+     * @return - node the chain ends at, or null if it leaves the zones, goes through a wildcard or loops
+     */
+    private static Node chainEnd(Index index, DNSRecord cname) {
+        for (int hop = 0; hop < MAX_CHAIN; ++hop) {
+            Node target = index.find(DNSKey.canonical(cname.getIpBytes()), 0);
+            if (target == null) {
+                return null;
+            }
+            DNSRecord[] next = target.rrset(DNSRecord.TYPE_CNAME, cname.getRecordClass());
+            if (next == null) {
+                return target;
+            }
+            cname = next[0];
+        }
+        return null;
+    }
+
+    /**
+     * @param zone - records of a zone
+     * @return - its SOA record
+     * @throws IOException - if it doesn't have exactly one
+     */
+    private static DNSRecord apex(List<DNSRecord> zone) throws IOException {
+        DNSRecord soa = null;
+        for (DNSRecord record : zone) {
+            if (record.getType() == DNSRecord.TYPE_SOA) {
+                if (soa != null) {
+                    throw new IOException("Zone " + DNSMessage.octetsToString(soa.getDomainNames())
+                            + " has more than one SOA record");
+                }
+                soa = record;
+            }
+        }
+        if (soa == null) {
+            throw new IOException("Zone without an SOA record");
+        }
+        return soa;
+    }
+
+    /**
+     * @param name - canonical name
+     * @param apex - canonical apex
+     * @return - whether name is apex or below it
+     */
+    private static boolean isUnder(byte[] name, byte[] apex) {
+        int from = 0;
+        while (name.length - from > apex.length) {
+            from += (name[from] & 0xff) + 1;
+        }
+        return name.length - from == apex.length && Arrays.equals(name, from, name.length, apex, 0, apex.length);
+    }
+
+    /**
+     * @param name - canonical owner name
+     * @param type - question type
+     * @param mClass - question class
+     * @param answer - answer to it
+     * @return - the response with a zero ID
+     */
+    private static byte[] encode(byte[] name, int type, int mClass, DNSAnswer answer) {
+        DNSEncoder encoder = DNSEncoder.forThread();
+        DNSMessage.buildTemplate(DNSQuestion.forName(name, type, mClass), answer).writeTo(encoder);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * @param name - bytes holding a canonical name in wire format
+     * @param from - where the name starts, it runs to the end
+     * @return - hash of the name, spread over the low bits the table is indexed by
+     */
+    private static int hash(byte[] name, int from) {
+        int hash = 1;
+        for (int i = from; i < name.length; ++i) {
+            hash = 31 * hash + name[i];
+        }
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param records - records, or null
+     * @return - them as an array
+     */
+    private static DNSRecord[] toArray(List<DNSRecord> records) {
+        return records == null ? NO_RECORDS : records.toArray(NO_RECORDS);
+    }
+
+    /**
+     * Fast path: writes the response for a name and type the zones hold into the buffer, with the client's ID and
+     * spelling of the name
+     * @param question - question asked
+     * @param id - transaction ID of the request
+     * @param out - buffer the response is written to, its position moves past the response
+     * @return - bytes written; 0 if there is no ready response for it, or -1 if it doesn't fit in what is left
+     * of out. Nothing is written in either case.
+     */
+    int writeResponse(DNSQuestion question, int id, ByteBuffer out) {
+        DNSKey key = question.getKey();
+        Node node = index.find(key.getName(), 0);
+        byte[] encoded = node == null ? null : node.response(key.getTypeAndClass());
+        if (encoded == null) {
+            return 0;
+        }
+        if (encoded.length > out.remaining()) {
+            return -1;
+        }
+        int start = out.position();
+        out.put(encoded);
+        out.putShort(start, (short) id);
+        out.put(start + 12, question.getWireName());
+        return encoded.length;
+    }
+
+    /**
+     * Answers a question from the zones: a name and type they hold, a wildcard match, a CNAME chain, NODATA or
+     * NXDOMAIN. A chain that leaves the zones is returned as far as it goes, with its target to be resolved.
+     * @param question - question asked
+     * @return - the answer, with AA set, or null if the name is under none of the zones
+     */
+    DNSAnswer get(DNSQuestion question) {
+        Index current = index;
+        if (current.recordCount == 0) {
+            return null;
+        }
+        return current.answer(question.getWireName(), question.getQType(), question.getQClass());
+    }
+
+    /**
+     * Stops checking the files for changes
+     */
+    public void close() {
+        if (reloadTimer != null) {
+            reloadTimer.shutdownNow();
+        }
+    }
+
+    /**
+     * @return - records in the zones being served
+     */
+    public int getRecordCount() {
+        return index.recordCount;
+    }
+
+    /**
+     * @return - zones being served
+     */
+    public int getZoneCount() {
+        return index.zoneCount;
+    }
+}
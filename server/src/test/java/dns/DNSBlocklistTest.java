@@ -0,0 +1,136 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Reading lists in their different syntaxes and matching questions against them, the names below a blocked
+ * suffix included.
+ */
+
+class DNSBlocklistTest {
+
+    @TempDir
+    Path dir;
+
+    private DNSBlocklist blocklist;
+
+    @AfterEach
+    void tearDown() {
+        if (blocklist != null) {
+            blocklist.close();
+        }
+    }
+
+    @Test
+    void blocksNamesBelowASuffixEntryOnly() throws IOException {
+        blocklist = load("nxdomain", "||blocked.example^", "*.wild.example", "alone.example");
+
+        assertBlocked("blocked.example", "sub.blocked.example", "a.b.blocked.example", "BLOCKED.Example",
+                "wild.example", "x.wild.example", "alone.example");
+        assertNotBlocked("notblocked.example", "blocked.example.com", "example", "sub.alone.example",
+                "lone.example");
+    }
+
+    @Test
+    void readsHostsFilesAndSkipsTheMachinesOwnNames() throws IOException {
+        blocklist = load("nxdomain", "0.0.0.0 ads.example tracker.example", "127.0.0.1 localhost",
+                "::1 ip6-localhost", "0.0.0.0 1.2.3.4");
+
+        assertBlocked("ads.example", "tracker.example");
+        assertNotBlocked("localhost", "ip6-localhost", "sub.ads.example");
+        assertEquals(2, blocklist.getEntryCount());
+    }
+
+    @Test
+    void treatsHashAsACommentOnlyAtTheStartOrAfterWhitespace() throws IOException {
+        blocklist = load("nxdomain", "# a comment line", "commented.example # trailing comment",
+                "0.0.0.0 hosts.example#not-a-comment", "! adblock comment", "example.com##.banner",
+                "tab.example\t#comment", "bare#hash.example");
+
+        assertBlocked("commented.example", "tab.example");
+        assertNotBlocked("hosts.example", "example.com", "bare", "hash.example");
+        assertEquals(2, blocklist.getEntryCount());
+    }
+
+    @Test
+    void answersWithNxdomainOrAddressesThatGoNowhere() throws IOException {
+        blocklist = load("zero", "||blocked.example^");
+
+        DNSAnswer a = blocklist.get(question("www.blocked.example", DNSRecord.TYPE_A));
+        assertEquals(DNSAnswer.RCODE_NOERROR, a.getRcode());
+        assertArrayEquals(new byte[4], a.getAnswers()[0].getIpBytes());
+        DNSAnswer aaaa = blocklist.get(question("www.blocked.example", DNSRecord.TYPE_AAAA));
+        assertArrayEquals(new byte[16], aaaa.getAnswers()[0].getIpBytes());
+        assertEquals(0, blocklist.get(question("www.blocked.example", DNSRecord.TYPE_MX)).getAnswers().length);
+
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DNSQuestion question = question("Www.Blocked.Example", DNSRecord.TYPE_A);
+        int written = blocklist.writeResponse(question, 0x3c1a, out);
+        DNSMessage response = DNSMessage.decodeMessage(out.array(), written);
+        assertEquals(0x3c1a, out.getShort(0));
+        assertEquals(question, response.getQuestions()[0]);
+        assertArrayEquals(question.getWireName(), response.getQuestions()[0].getWireName());
+        assertArrayEquals(new byte[4], response.getAnswers()[0].getIpBytes());
+
+        blocklist.close();
+        blocklist = load("nxdomain", "||blocked.example^");
+        assertEquals(DNSAnswer.RCODE_NXDOMAIN, blocklist.get(question("www.blocked.example", DNSRecord.TYPE_A))
+                .getRcode());
+    }
+
+    /**
+     * @param response - "nxdomain" or "zero"
+     * @param lines - the list
+     * @return - a blocklist with the list loaded
+     * @throws IOException
+     */
+    private DNSBlocklist load(String response, String... lines) throws IOException {
+        Path file = Files.createTempFile(dir, "block", ".txt");
+        Files.writeString(file, String.join("\n", lines) + "\n");
+        DNSBlocklist loaded = new DNSBlocklist(new String[] {file.toString()}, response);
+        loaded.load();
+        return loaded;
+    }
+
+    private void assertBlocked(String... names) {
+        for (String name : names) {
+            DNSQuestion question = question(name, DNSRecord.TYPE_A);
+            assertNotNull(blocklist.get(question), name);
+            assertTrue(blocklist.writeResponse(question, 1, ByteBuffer.allocate(512)) > 0, name);
+        }
+    }
+
+    private void assertNotBlocked(String... names) {
+        for (String name : names) {
+            DNSQuestion question = question(name, DNSRecord.TYPE_A);
+            assertNull(blocklist.get(question), name);
+            assertEquals(0, blocklist.writeResponse(question, 1, ByteBuffer.allocate(512)), name);
+        }
+    }
+
+    /**
+     * @param name - dotted name
+     * @param type - question type
+     * @return - an IN question for the name
+     */
+    private static DNSQuestion question(String name, int type) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return DNSQuestion.forName(wire.array(), type, 1);
+    }
+}
@@ -0,0 +1,137 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The on-heap cache: entries that leave it, by eviction or by being replaced, must not keep their answers alive
+ * while they wait out the stale window in the expiry wheel.
+ */
+
+class DNSCacheTest {
+
+    private static final int MAX_ENTRIES = 10;
+
+    private DNSCache cache;
+
+    @AfterEach
+    void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    void releasesEvictedAnswers() throws Exception {
+        cache = cache();
+        List<WeakReference<DNSAnswer>> answers = new ArrayList<>();
+        for (int i = 0; i < MAX_ENTRIES * 10; ++i) {
+            DNSAnswer answer = answer(question("host" + i + ".example"), 300);
+            answers.add(new WeakReference<>(answer));
+            cache.addAnswer(question("host" + i + ".example"), answer, false);
+        }
+        assertEquals(MAX_ENTRIES, cache.size());
+        assertEquals(MAX_ENTRIES * 9, cache.getEvictions());
+
+        awaitCollected(answers.subList(0, MAX_ENTRIES * 9));
+        for (int i = MAX_ENTRIES * 9; i < MAX_ENTRIES * 10; ++i) {
+            assertNotNull(answers.get(i).get());
+            assertNotNull(cache.get(question("host" + i + ".example")));
+        }
+    }
+
+    @Test
+    void releasesReplacedAnswers() throws Exception {
+        cache = cache();
+        DNSQuestion question = question("www.example");
+        DNSAnswer first = answer(question, 300);
+        WeakReference<DNSAnswer> replaced = new WeakReference<>(first);
+        cache.addAnswer(question, first, false);
+        first = null;
+        cache.addAnswer(question, answer(question, 300), true);
+
+        awaitCollected(List.of(replaced));
+        ByteBuffer out = ByteBuffer.allocate(512);
+        assertTrue(cache.writeResponse(question, 0x3c1a, out) > 0); // the replacement still serves the fast path
+        assertNotNull(cache.get(question));
+        assertEquals(1, cache.getStale(question, false).getAnswers().length); // a live entry, answered as a hit
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void servesStaleFromRetiredEntries() throws Exception {
+        cache = cache();
+        DNSQuestion question = question("stale.example");
+        cache.addAnswer(question, answer(question, 1), false);
+        Thread.sleep(1100);
+
+        assertNull(cache.get(question));
+        DNSAnswer stale = cache.getStale(question, false);
+        assertNotNull(stale);
+        assertEquals(30, stale.getAnswers()[0].getTtl());
+    }
+
+    /**
+     * @return - a cache of MAX_ENTRIES that keeps retired entries for a day, as the server does by default
+     */
+    private static DNSCache cache() {
+        DNSCache cache = new DNSCache(MAX_ENTRIES, 3, 0.1);
+        cache.setServeStale(86400, 30);
+        return cache;
+    }
+
+    /**
+     * Runs the collector until every referent is gone
+     * @param references - answers that nothing should be holding on to any more
+     * @throws InterruptedException
+     */
+    private static void awaitCollected(List<WeakReference<DNSAnswer>> references) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; ++attempt) {
+            System.gc();
+            if (references.stream().allMatch(reference -> reference.get() == null)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        long held = references.stream().filter(reference -> reference.get() != null).count();
+        assertEquals(0, held, "answers still held after leaving the cache");
+    }
+
+    /**
+     * @param question - question to answer
+     * @param ttl - TTL of the one A record, in seconds
+     * @return - a cacheable answer, as if it had come from upstream
+     * @throws IOException
+     */
+    static DNSAnswer answer(DNSQuestion question, long ttl) throws IOException {
+        DNSRecord address = DNSRecord.buildLocal(question.getWireName(), DNSRecord.TYPE_A, 1, ttl,
+                new byte[] {10, 0, 0, 1});
+        DNSAnswer local = DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, new DNSRecord[] {address},
+                new DNSRecord[0], null);
+        byte[] wire = DNSMessage.buildTemplate(question, local).toBytes();
+        return DNSAnswer.fromResponse(DNSMessage.decodeMessage(wire, wire.length), 300);
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - an A/IN question for the name
+     */
+    static DNSQuestion question(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return DNSQuestion.forName(wire.array(), DNSRecord.TYPE_A, 1);
+    }
+}
@@ -0,0 +1,116 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Suffix compression: where the encoder puts pointers, and that what it writes decodes back to the same names.
+ */
+
+class DNSEncoderTest {
+
+    @Test
+    void pointsAtTheLongestSuffixAlreadyWritten() throws IOException {
+        DNSEncoder encoder = new DNSEncoder(ByteBuffer.allocate(512));
+        encoder.begin();
+        encoder.writeBytes(new byte[12]); // header
+        encoder.writeName(name("www.example.com"));
+        int mail = encoder.position();
+        encoder.writeName(name("mail.example.com"));
+        int bare = encoder.position();
+        encoder.writeName(name("example.com"));
+        int again = encoder.position();
+        encoder.writeName(name("www.example.com"));
+        int other = encoder.position();
+        encoder.writeName(name("other.org"));
+        int end = encoder.position();
+
+        byte[] wire = encoder.toByteArray();
+        assertEquals(12 + 17, mail); // written in full
+        assertArrayEquals(new byte[] {4, 'm', 'a', 'i', 'l', (byte) 0xc0, 16}, Arrays.copyOfRange(wire, mail, bare));
+        assertArrayEquals(new byte[] {(byte) 0xc0, 16}, Arrays.copyOfRange(wire, bare, again));
+        assertArrayEquals(new byte[] {(byte) 0xc0, 12}, Arrays.copyOfRange(wire, again, other));
+        assertArrayEquals(name("other.org"), Arrays.copyOfRange(wire, other, end));
+
+        DNSMessage decoded = DNSMessage.wrap(ByteBuffer.wrap(wire));
+        String[] expected = {"www.example.com", "mail.example.com", "example.com", "www.example.com", "other.org"};
+        decoded.setPosition(12);
+        for (String name : expected) {
+            assertArrayEquals(name(name), decoded.readName(), name);
+        }
+        assertEquals(end, decoded.getPosition());
+    }
+
+    @Test
+    void compressesNamesInsideRdataAndDecodesBack() throws IOException {
+        DNSQuestion question = DNSQuestion.forName(name("www.example.com"), DNSRecord.TYPE_A, 1);
+        DNSRecord[] answers = {
+                DNSRecord.buildLocal(name("www.example.com"), DNSRecord.TYPE_CNAME, 1, 300, name("cdn.example.com")),
+                DNSRecord.buildLocal(name("cdn.example.com"), DNSRecord.TYPE_A, 1, 60, new byte[] {10, 0, 0, 1})};
+        DNSAnswer answer = DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, answers, new DNSRecord[0], null);
+        DNSEncoder encoder = DNSEncoder.forThread();
+        DNSMessage.buildTemplate(question, answer).writeTo(encoder);
+        byte[] wire = encoder.toByteArray();
+
+        // the question's name at 12, then the CNAME's owner is a pointer to it and its target "cdn" plus a pointer
+        int cname = 12 + 17 + 4;
+        assertArrayEquals(new byte[] {(byte) 0xc0, 12}, Arrays.copyOfRange(wire, cname, cname + 2));
+        int target = cname + 2 + 10;
+        assertArrayEquals(new byte[] {3, 'c', 'd', 'n', (byte) 0xc0, 16}, Arrays.copyOfRange(wire, target, target + 6));
+        assertArrayEquals(new byte[] {(byte) 0xc0, (byte) target}, Arrays.copyOfRange(wire, target + 6, target + 8));
+        assertEquals(6, ((wire[target - 2] & 0xff) << 8) | (wire[target - 1] & 0xff)); // RDLENGTH as compressed
+
+        DNSMessage decoded = DNSMessage.decodeMessage(wire, wire.length);
+        assertEquals(question, decoded.getQuestions()[0]);
+        assertArrayEquals(name("www.example.com"), decoded.getAnswers()[0].getWireName());
+        assertArrayEquals(name("cdn.example.com"), decoded.getAnswers()[0].getIpBytes());
+        assertArrayEquals(name("cdn.example.com"), decoded.getAnswers()[1].getWireName());
+        assertArrayEquals(new int[] {cname + 6, target + 6 + 2 + 4}, encoder.getTtlOffsets());
+    }
+
+    @Test
+    void writesNamesInFullWherePointersCannotReach() throws IOException {
+        DNSEncoder encoder = new DNSEncoder(ByteBuffer.allocate(0x8000));
+        encoder.begin();
+        encoder.writeBytes(new byte[0x4000]); // past what a 14 bit pointer can address
+        int first = encoder.position();
+        encoder.writeName(name("far.example"));
+        int second = encoder.position();
+        encoder.writeName(name("far.example"));
+        assertEquals(second - first, encoder.position() - second); // no pointer to the first copy
+    }
+
+    @Test
+    void keepsNamesCorrectOnceTheTableIsFull() throws IOException {
+        DNSEncoder encoder = new DNSEncoder(ByteBuffer.allocate(4096));
+        encoder.begin();
+        encoder.writeBytes(new byte[12]);
+        for (int i = 0; i < 100; ++i) { // three suffixes each, far more than the table remembers
+            encoder.writeName(name("host" + i + ".zone" + i + ".example"));
+        }
+        DNSMessage decoded = DNSMessage.wrap(ByteBuffer.wrap(encoder.toByteArray()));
+        decoded.setPosition(12);
+        for (int i = 0; i < 100; ++i) {
+            assertArrayEquals(name("host" + i + ".zone" + i + ".example"), decoded.readName());
+        }
+        assertEquals(encoder.position(), decoded.getPosition());
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - the name in uncompressed wire format
+     */
+    private static byte[] name(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return wire.array();
+    }
+}
@@ -0,0 +1,109 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decoding messages off the wire, mostly the ones a client or an upstream shouldn't be sending: counts the message
+ * can't hold, compression pointers that loop, and messages cut short.
+ */
+
+class DNSMessageTest {
+
+    private static final byte[] RESPONSE = {
+            0x3c, 0x1a, (byte) 0x81, (byte) 0x80, 0, 1, 0, 2, 0, 0, 0, 0,
+            3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0, 0, 1, 0, 1, // www.example A IN
+            (byte) 0xc0, 12, 0, 1, 0, 1, 0, 0, 1, 44, 0, 4, 10, 0, 0, 1, // -> www.example 300 A 10.0.0.1
+            (byte) 0xc0, 16, 0, 1, 0, 1, 0, 0, 1, 44, 0, 4, 10, 0, 0, 2}; // -> example 300 A 10.0.0.2
+
+    @Test
+    void decodesCompressedNames() throws IOException {
+        DNSMessage msg = DNSMessage.decodeMessage(RESPONSE, RESPONSE.length);
+        assertEquals(1, msg.getQuestions().length);
+        assertEquals(2, msg.getAnswers().length);
+        assertArrayEquals(name("www.example"), msg.getAnswers()[0].getWireName());
+        assertArrayEquals(name("example"), msg.getAnswers()[1].getWireName());
+        assertArrayEquals(new byte[] {10, 0, 0, 2}, msg.getAnswers()[1].getIpBytes());
+    }
+
+    @Test
+    void rejectsCountsTheMessageCannotHold() {
+        byte[] header = {0, 1, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff};
+        assertThrows(EOFException.class, () -> DNSMessage.decodeMessage(header, header.length));
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        assertThrows(EOFException.class, () -> DNSMessage.decodeMessage(header, header.length));
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(allocated < 16 * 1024, "rejected before allocating, but allocated " + allocated);
+
+        byte[] oneTooMany = RESPONSE.clone();
+        oneTooMany[7] = 3; // a third answer with no bytes left for it
+        assertThrows(EOFException.class, () -> DNSMessage.decodeMessage(oneTooMany, oneTooMany.length));
+
+        byte[] records = RESPONSE.clone();
+        records[11] = 0x7f; // additional records claimed in the space the answers take up
+        assertThrows(EOFException.class, () -> DNSMessage.decodeMessage(records, records.length));
+    }
+
+    @Test
+    void rejectsCompressionPointerLoops() {
+        byte[] self = {0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, (byte) 0xc0, 12, 0, 1, 0, 1};
+        IOException loop = assertThrows(IOException.class, () -> DNSMessage.decodeMessage(self, self.length));
+        assertTrue(loop.getMessage().contains("loop"));
+
+        byte[] forward = {0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 'a', (byte) 0xc0, 18, 0, 1, 0, 1,
+                (byte) 0xc0, 12};
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(forward, forward.length));
+
+        byte[] pingPong = RESPONSE.clone();
+        pingPong[29] = (byte) 0xc0;
+        pingPong[30] = 45; // the first answer's name points at the second's, which points back at it
+        pingPong[45] = (byte) 0xc0;
+        pingPong[46] = 29;
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(pingPong, pingPong.length));
+    }
+
+    @Test
+    void rejectsTruncatedMessages() {
+        for (int length = 0; length < RESPONSE.length; ++length) {
+            byte[] cut = Arrays.copyOf(RESPONSE, length);
+            assertThrows(IOException.class, () -> DNSMessage.decodeMessage(cut, cut.length), "cut to " + length);
+        }
+    }
+
+    @Test
+    void rejectsNamesLongerThan255Bytes() {
+        byte[] message = new byte[12 + 4 * 64 + 1 + 4];
+        message[5] = 1;
+        for (int label = 0; label < 4; ++label) {
+            message[12 + label * 64] = 63;
+        }
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(message, message.length));
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - the name in uncompressed wire format
+     */
+    private static byte[] name(String name) {
+        byte[] wire = new byte[name.length() + 2];
+        int at = 0;
+        for (String label : name.split("\\.")) {
+            wire[at++] = (byte) label.length();
+            for (char c : label.toCharArray()) {
+                wire[at++] = (byte) c;
+            }
+        }
+        return wire;
+    }
+}
@@ -0,0 +1,152 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The off-heap store on a single segment: entries put, found and replaced, probe runs that survive entries being
+ * deleted from the middle of them, CLOCK eviction, and pages moving between size classes.
+ */
+
+class DNSOffHeapCacheTest {
+
+    private DNSOffHeapCache cache;
+
+    @AfterEach
+    void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    void putsGetsAndReplacesEntries() throws IOException {
+        cache = new DNSOffHeapCache(64, 1024 * 1024, 3, 0.1);
+        DNSQuestion question = question("www.example");
+        cache.addAnswer(question, answer(question, 1), false);
+
+        DNSAnswer answer = cache.get(question("WWW.example"));
+        assertNotNull(answer);
+        assertArrayEquals(new byte[] {10, 0, 0, 0}, answer.getAnswers()[0].getIpBytes());
+        assertTrue(answer.getAnswers()[0].getTtl() <= 300);
+        ByteBuffer out = ByteBuffer.allocate(512);
+        int written = cache.writeResponse(question, 0x3c1a, out);
+        assertEquals(0x3c1a, out.getShort(0));
+        assertEquals(1, DNSMessage.decodeMessage(out.array(), written).getAnswers().length);
+
+        cache.addAnswer(question, answer(question, 3), false);
+        assertEquals(3, cache.get(question).getAnswers().length);
+        assertEquals(1, cache.size());
+        assertNull(cache.get(question("other.example")));
+        assertEquals(0, cache.writeResponse(question("other.example"), 1, out));
+    }
+
+    @Test
+    void keepsProbeRunsIntactWhenEntriesAreDeleted() throws IOException {
+        cache = new DNSOffHeapCache(64, 1024 * 1024, 3, 0.1);
+        List<DNSQuestion> inserted = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) { // every insert past the 64th evicts, deleting from the index
+            DNSQuestion question = question("host" + i + ".example");
+            inserted.add(question);
+            cache.addAnswer(question, answer(question, 1 + i % 2), false);
+            if (i % 97 == 0) {
+                cache.addAnswer(inserted.get(i / 2), answer(inserted.get(i / 2), 1), false); // a replacement too
+            }
+            assertNotNull(cache.get(question));
+        }
+        assertEquals(64, cache.size());
+        int found = 0;
+        for (DNSQuestion question : inserted) {
+            if (cache.get(question) != null) {
+                found++;
+            }
+        }
+        assertEquals(cache.size(), found, "every entry still in the index is reachable from its hash");
+    }
+
+    @Test
+    void givesEntriesHitSinceTheHandPassedASecondChance() throws IOException {
+        cache = new DNSOffHeapCache(64, 1024 * 1024, 3, 0.1);
+        for (int i = 0; i < 64; ++i) {
+            cache.addAnswer(question("host" + i + ".example"), answer(question("host" + i + ".example"), 1), false);
+        }
+        for (int i = 0; i < 10; ++i) {
+            assertNotNull(cache.get(question("host" + i + ".example")));
+        }
+        for (int i = 64; i < 118; ++i) {
+            cache.addAnswer(question("host" + i + ".example"), answer(question("host" + i + ".example"), 1), false);
+        }
+        for (int i = 0; i < 10; ++i) {
+            assertNotNull(cache.get(question("host" + i + ".example")), "hit, so kept");
+        }
+        for (int i = 10; i < 64; ++i) {
+            assertNull(cache.get(question("host" + i + ".example")), "never hit, so evicted");
+        }
+        assertEquals(54, cache.getEvictions());
+    }
+
+    @Test
+    void movesPagesBetweenSizeClasses() throws IOException {
+        cache = new DNSOffHeapCache(100_000, 64 * 1024, 3, 0.1); // one page, shared by every size class
+        List<DNSQuestion> inserted = new ArrayList<>();
+        for (int round = 0; round < 4; ++round) {
+            for (int i = 0; i < 600; ++i) {
+                DNSQuestion question = question("small" + round + "-" + i + ".example");
+                inserted.add(question);
+                cache.addAnswer(question, answer(question, 1), false);
+            }
+            DNSQuestion large = question("large" + round + ".example");
+            inserted.add(large);
+            cache.addAnswer(large, answer(large, 100), false); // takes the page from the small answers
+            assertEquals(100, cache.get(large).getAnswers().length);
+        }
+        int found = 0;
+        for (DNSQuestion question : inserted) {
+            if (cache.get(question) != null) {
+                found++;
+            }
+        }
+        assertEquals(cache.size(), found);
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    /**
+     * @param question - question to answer
+     * @param addresses - how many A records to give it, 10.0.0.0 up
+     * @return - a cacheable answer with a TTL of 300, as if it had come from upstream
+     * @throws IOException
+     */
+    private static DNSAnswer answer(DNSQuestion question, int addresses) throws IOException {
+        DNSRecord[] records = new DNSRecord[addresses];
+        for (int i = 0; i < addresses; ++i) {
+            records[i] = DNSRecord.buildLocal(question.getWireName(), DNSRecord.TYPE_A, 1, 300,
+                    new byte[] {10, 0, 0, (byte) i});
+        }
+        DNSAnswer local = DNSAnswer.authoritative(DNSAnswer.RCODE_NOERROR, records, new DNSRecord[0], null);
+        byte[] wire = DNSMessage.buildTemplate(question, local).toBytes();
+        return DNSAnswer.fromResponse(DNSMessage.decodeMessage(wire, wire.length), 300);
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - an A/IN question for the name
+     */
+    private static DNSQuestion question(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return DNSQuestion.forName(wire.array(), DNSRecord.TYPE_A, 1);
+    }
+}
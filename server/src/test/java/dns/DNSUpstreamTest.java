@@ -0,0 +1,380 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The upstream client against local stand-ins for the resolvers: DNSStubUpstream where the upstream behaves, and a
+ * bare socket where a test needs to send replies of its own making.
+ */
+
+class DNSUpstreamTest {
+
+    private static final DNSRecord OPT = DNSRecord.buildOpt(1232);
+
+    private List<DNSStubUpstream> stubs = new ArrayList<>();
+
+    private List<DatagramSocket> sockets = new ArrayList<>();
+
+    private DNSUpstream upstream;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (upstream != null) {
+            upstream.close();
+        }
+        for (DNSStubUpstream stub : stubs) {
+            stub.close();
+        }
+        for (DatagramSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    void matchesConcurrentRepliesById() throws Exception {
+        DNSUpstreamServer server = stub(5, 5, 0);
+        upstream = upstream(false, 2000, 0, server);
+
+        List<CompletableFuture<DNSMessage>> replies = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            replies.add(ask(question("host" + i + ".example")));
+        }
+        for (int i = 0; i < replies.size(); ++i) {
+            DNSMessage reply = replies.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(question("host" + i + ".example"), reply.getQuestions()[0]);
+            assertEquals(2, reply.getAnswers().length);
+        }
+        assertEquals(0, upstream.getInFlight());
+        assertEquals(0, upstream.getDroppedReplies());
+    }
+
+    @Test
+    void dropsLateAndMismatchedReplies() throws Exception {
+        DatagramSocket asked = socket();
+        DatagramSocket notAsked = socket();
+        DatagramSocket stranger = socket();
+        upstream = upstream(false, 2000, 0, serverAt(asked), serverAt(notAsked));
+
+        CompletableFuture<DNSMessage> reply = ask(question("www.example"));
+        DatagramPacket query = receive(asked);
+        SocketAddress client = query.getSocketAddress();
+        byte[] answer = reply(query, DNSAnswer.RCODE_NOERROR);
+        byte[] forged = reply(query, DNSAnswer.RCODE_NXDOMAIN);
+
+        byte[] wrongId = forged.clone();
+        wrongId[1] ^= 1;
+        send(asked, wrongId, client);
+        byte[] notResponse = forged.clone();
+        notResponse[2] &= 0x7f;
+        send(asked, notResponse, client);
+        byte[] otherQuestion = forged.clone();
+        otherQuestion[13] = 'v'; // vww.example
+        send(asked, otherQuestion, client);
+        send(notAsked, forged, client);
+        send(stranger, forged, client);
+        awaitDropped(5);
+        assertFalse(reply.isDone());
+
+        send(asked, answer, client);
+        assertEquals(DNSAnswer.RCODE_NOERROR, reply.get(2, TimeUnit.SECONDS).getHeader().getRcode());
+        send(asked, answer, client);
+        awaitDropped(6);
+        assertEquals(0, upstream.getInFlight());
+    }
+
+    @Test
+    void asksAgainOverTcpWhenTheReplyIsTruncated() throws Exception {
+        DatagramSocket udp = socket();
+        upstream = upstream(false, 2000, 0, serverAt(udp));
+        try (ServerSocket tcp = new ServerSocket(udp.getLocalPort(), 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<DNSMessage> reply = ask(question("big.example"));
+            DatagramPacket query = receive(udp);
+            byte[] truncated = reply(query, DNSAnswer.RCODE_NOERROR);
+            truncated[2] |= 0x02;
+            send(udp, truncated, query.getSocketAddress());
+
+            tcp.setSoTimeout(2000);
+            try (Socket connection = tcp.accept()) {
+                DataInputStream in = new DataInputStream(connection.getInputStream());
+                byte[] asked = new byte[in.readUnsignedShort()];
+                in.readFully(asked);
+                assertEquals(query.getData()[0], asked[0]); // same ID as over UDP
+                assertEquals(query.getData()[1], asked[1]);
+                byte[] full = withAddress(reply(new DatagramPacket(asked, asked.length), DNSAnswer.RCODE_NOERROR));
+                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                out.writeShort(full.length);
+                out.write(full);
+                out.flush();
+            }
+
+            DNSMessage answer = reply.get(2, TimeUnit.SECONDS);
+            assertFalse(answer.isTruncated());
+            assertEquals(1, answer.getAnswers().length);
+        }
+        assertEquals(1, upstream.getTcpRetries());
+        assertEquals(0, upstream.getTcpRetriesFailed());
+        assertEquals(0, upstream.getInFlight());
+    }
+
+    @Test
+    void keepsTheTruncatedReplyWhenTcpFails() throws Exception {
+        DatagramSocket udp = socket(); // nothing listens on its port over TCP
+        upstream = upstream(false, 500, 0, serverAt(udp));
+
+        CompletableFuture<DNSMessage> reply = ask(question("big.example"));
+        DatagramPacket query = receive(udp);
+        byte[] truncated = reply(query, DNSAnswer.RCODE_NOERROR);
+        truncated[2] |= 0x02;
+        send(udp, truncated, query.getSocketAddress());
+
+        assertTrue(reply.get(2, TimeUnit.SECONDS).isTruncated());
+        assertEquals(1, upstream.getTcpRetries());
+        assertEquals(1, upstream.getTcpRetriesFailed());
+    }
+
+    @Test
+    void retriesTheNextServerAfterATimeout() throws Exception {
+        DNSUpstreamServer dead = stub(0, 0, 1);
+        DNSUpstreamServer alive = stub(0, 0, 0);
+        upstream = upstream(false, 200, 1, dead, alive);
+
+        long started = System.nanoTime();
+        DNSMessage reply = ask(question("www.example")).get(2, TimeUnit.SECONDS);
+        assertEquals(2, reply.getAnswers().length);
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, dead.getFailures());
+        assertEquals(1, alive.getReplies());
+        assertEquals(0, upstream.getTimeouts());
+    }
+
+    @Test
+    void failsOnceEveryAttemptHasTimedOut() throws Exception {
+        DNSUpstreamServer first = stub(0, 0, 1);
+        DNSUpstreamServer second = stub(0, 0, 1);
+        upstream = upstream(false, 100, 1, first, second);
+
+        ExecutionException failure = null;
+        try {
+            ask(question("www.example")).get(2, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            failure = e;
+        }
+        assertInstanceOf(SocketTimeoutException.class, failure.getCause());
+        assertEquals(1, first.getFailures());
+        assertEquals(1, second.getFailures());
+        assertEquals(1, upstream.getTimeouts());
+        assertEquals(0, upstream.getInFlight());
+    }
+
+    @Test
+    void prefersTheServerWithTheLowestSrtt() throws Exception {
+        DNSUpstreamServer slow = stub(40, 0, 0);
+        DNSUpstreamServer fast = stub(0, 0, 0);
+        upstream = upstream(false, 2000, 0, slow, fast);
+
+        for (int i = 0; i < 20; ++i) {
+            ask(question("host" + i + ".example")).get(2, TimeUnit.SECONDS);
+        }
+        assertEquals(1, slow.getQueries()); // untried, so tried first
+        assertEquals(19, fast.getQueries());
+        assertTrue(slow.getSrttMillis() >= 40);
+    }
+
+    @Test
+    void decaysAnIdleServerByTimeAndProbesItOnce() throws Exception {
+        DNSUpstreamServer slow = new DNSUpstreamServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1), 0.9);
+        DNSUpstreamServer fast = new DNSUpstreamServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2), 0.9);
+        long start = System.nanoTime();
+        slow.onReply(TimeUnit.MILLISECONDS.toNanos(200), start);
+        fast.onReply(TimeUnit.MILLISECONDS.toNanos(10), start);
+
+        for (int pick = 0; pick < 100_000; ++pick) { // however often the slow one is passed over
+            assertEquals(200, slow.getSrttMillis(start), 1e-9);
+        }
+        assertEquals(200, slow.getSrttMillis(start + TimeUnit.SECONDS.toNanos(5)), 1e-9);
+        assertEquals(100, slow.getSrttMillis(start + TimeUnit.SECONDS.toNanos(10)), 1e-9);
+
+        long later = start + TimeUnit.SECONDS.toNanos(30);
+        for (long now = start; now <= later; now += TimeUnit.MILLISECONDS.toNanos(100)) {
+            fast.onReply(TimeUnit.MILLISECONDS.toNanos(10), now); // in steady use, so it doesn't decay
+        }
+        assertEquals(10, fast.getSrttMillis(later), 1e-9);
+        assertTrue(slow.getSrttMillis(later) < fast.getSrttMillis(later));
+        slow.onSent(later); // the probe
+        assertEquals(200, slow.getSrttMillis(later + 1), 1e-9);
+        assertTrue(fast.getSrttMillis(later + 1) < slow.getSrttMillis(later + 1));
+
+        slow.onReply(TimeUnit.MILLISECONDS.toNanos(200), later + TimeUnit.MILLISECONDS.toNanos(200));
+        double probed = slow.getSrttMillis(later + TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(probed > fast.getSrttMillis(later) && probed < 200);
+    }
+
+    @Test
+    void hedgesASlowAttemptToTheNextServer() throws Exception {
+        DNSUpstreamServer slow = stub(1000, 0, 0);
+        DNSUpstreamServer fast = stub(0, 0, 0);
+        upstream = upstream(true, 1500, 0, slow, fast);
+
+        long started = System.nanoTime();
+        DNSMessage reply = ask(question("www.example")).get(2, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - started;
+        assertEquals(2, reply.getAnswers().length);
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(750), "waited half the timeout before hedging");
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1000), "answered by the hedge");
+        assertEquals(1, upstream.getHedgesSent());
+        assertEquals(1, upstream.getHedgesWon());
+        assertEquals(0, slow.getFailures());
+        assertTrue(slow.getSrttMillis() >= 750); // overtaken, charged for the time it took
+    }
+
+    /**
+     * @param latencyMillis - how long the stub holds each answer back
+     * @param jitterMillis - answers are held back up to this much more or less than the latency
+     * @param loss - share of queries the stub drops
+     * @return - a running stub as an upstream server
+     * @throws IOException
+     */
+    private DNSUpstreamServer stub(double latencyMillis, double jitterMillis, double loss) throws IOException {
+        DNSStubUpstream stub = new DNSStubUpstream(0, latencyMillis, jitterMillis, loss, 300);
+        stubs.add(stub);
+        Thread thread = new Thread(() -> {
+            try {
+                stub.run();
+            } catch (IOException e) {
+                // closed by tearDown
+            }
+        }, "dns-test-stub");
+        thread.setDaemon(true);
+        thread.start();
+        return new DNSUpstreamServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), stub.getPort()), 0.9);
+    }
+
+    /**
+     * @return - a socket on loopback for sending replies by hand
+     * @throws IOException
+     */
+    private DatagramSocket socket() throws IOException {
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        socket.setSoTimeout(2000);
+        sockets.add(socket);
+        return socket;
+    }
+
+    /**
+     * @param socket - a socket from socket()
+     * @return - an upstream server at its address
+     */
+    private static DNSUpstreamServer serverAt(DatagramSocket socket) {
+        return new DNSUpstreamServer((InetSocketAddress) socket.getLocalSocketAddress(), 0.9);
+    }
+
+    /**
+     * @param hedging - whether slow attempts are also sent to a second server
+     * @param timeoutMillis - how long each attempt waits
+     * @param retries - how many times a query is resent
+     * @param servers - the upstreams, untried, so the first is picked first
+     * @return - the client under test
+     * @throws IOException
+     */
+    private DNSUpstream upstream(boolean hedging, int timeoutMillis, int retries, DNSUpstreamServer... servers)
+            throws IOException {
+        return new DNSUpstream(servers, 0, timeoutMillis, retries, 1024, 1232, hedging, 5, new DNSHistogram());
+    }
+
+    /**
+     * @param question - question to ask
+     * @return - future completed with the reply
+     */
+    private CompletableFuture<DNSMessage> ask(DNSQuestion question) {
+        return upstream.query(ByteBuffer.wrap(DNSMessage.buildQuery(question, OPT)), question);
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - an A/IN question for the name
+     */
+    private static DNSQuestion question(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return DNSQuestion.forName(wire.array(), DNSRecord.TYPE_A, 1);
+    }
+
+    private static DatagramPacket receive(DatagramSocket socket) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[1232], 1232);
+        socket.receive(packet);
+        return packet;
+    }
+
+    /**
+     * @param query - query as received
+     * @param rcode - response code to answer with
+     * @return - the query turned into a reply with no records besides its OPT
+     */
+    private static byte[] reply(DatagramPacket query, int rcode) {
+        byte[] reply = Arrays.copyOf(query.getData(), query.getLength());
+        reply[2] |= (byte) 0x80;
+        reply[3] = (byte) rcode;
+        return reply;
+    }
+
+    /**
+     * @param reply - reply with no records besides its OPT
+     * @return - the reply with an A record for its question, put in front of the OPT
+     */
+    private static byte[] withAddress(byte[] reply) {
+        int questionEnd = 12;
+        while (reply[questionEnd] != 0) {
+            questionEnd += (reply[questionEnd] & 0xff) + 1;
+        }
+        questionEnd += 5;
+        byte[] record = {(byte) 0xc0, 12, 0, 1, 0, 1, 0, 0, 1, 44, 0, 4, 10, 0, 0, 1};
+        ByteBuffer full = ByteBuffer.allocate(reply.length + record.length);
+        full.put(reply, 0, questionEnd).put(record).put(reply, questionEnd, reply.length - questionEnd);
+        full.putShort(6, (short) 1);
+        return full.array();
+    }
+
+    private static void send(DatagramSocket from, byte[] message, SocketAddress to) throws IOException {
+        from.send(new DatagramPacket(message, message.length, to));
+    }
+
+    /**
+     * Waits for the reply reader to have dropped this many replies
+     * @param count - replies dropped so far
+     * @throws InterruptedException
+     */
+    private void awaitDropped(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (upstream.getDroppedReplies() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, upstream.getDroppedReplies());
+    }
+}
@@ -0,0 +1,156 @@
+package dns;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Answers from a small zone: exact names, wildcards, empty non-terminals, names that don't exist and CNAME chains
+ * that stay inside the zone or leave it.
+ */
+
+class DNSZoneStoreTest {
+
+    private static final String ZONE = String.join("\n",
+            "$ORIGIN test.example.",
+            "$TTL 3600",
+            "@ IN SOA ns1 hostmaster 1 7200 900 1209600 60",
+            "@ IN NS ns1",
+            "ns1 IN A 10.0.0.53",
+            "www IN A 10.0.0.1",
+            "*.wild IN A 10.0.0.2",
+            "exact.wild IN A 10.0.0.3",
+            "a.b.ent IN A 10.0.0.4",
+            "alias IN CNAME www",
+            "out IN CNAME www.elsewhere.example.",
+            "");
+
+    @TempDir
+    Path dir;
+
+    private DNSZoneStore zones;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Path file = dir.resolve("test.zone");
+        Files.writeString(file, ZONE);
+        zones = new DNSZoneStore(new String[] {file.toString()});
+        zones.load();
+    }
+
+    @AfterEach
+    void tearDown() {
+        zones.close();
+    }
+
+    @Test
+    void answersExactNames() {
+        DNSAnswer answer = zones.get(question("www.test.example", DNSRecord.TYPE_A));
+        assertEquals(DNSAnswer.RCODE_NOERROR, answer.getRcode());
+        assertTrue(answer.isAuthoritative());
+        assertEquals(1, answer.getAnswers().length);
+        assertArrayEquals(new byte[] {10, 0, 0, 1}, answer.getAnswers()[0].getIpBytes());
+
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DNSQuestion mixedCase = question("WwW.Test.Example", DNSRecord.TYPE_A);
+        int written = zones.writeResponse(mixedCase, 0x3c1a, out);
+        assertTrue(written > 0);
+        assertEquals(0x3c1a, out.getShort(0));
+        byte[] spelled = new byte[mixedCase.getWireName().length];
+        out.get(12, spelled);
+        assertArrayEquals(mixedCase.getWireName(), spelled); // the client's spelling, not ours
+    }
+
+    @Test
+    void synthesisesFromWildcardsOnlyWhereNoNameExists() {
+        DNSAnswer synthesised = zones.get(question("anything.wild.test.example", DNSRecord.TYPE_A));
+        assertEquals(DNSAnswer.RCODE_NOERROR, synthesised.getRcode());
+        assertArrayEquals(new byte[] {10, 0, 0, 2}, synthesised.getAnswers()[0].getIpBytes());
+        assertArrayEquals(name("anything.wild.test.example"), synthesised.getAnswers()[0].getWireName());
+
+        DNSAnswer deeper = zones.get(question("x.y.wild.test.example", DNSRecord.TYPE_A));
+        assertArrayEquals(new byte[] {10, 0, 0, 2}, deeper.getAnswers()[0].getIpBytes());
+
+        DNSAnswer exact = zones.get(question("exact.wild.test.example", DNSRecord.TYPE_A));
+        assertArrayEquals(new byte[] {10, 0, 0, 3}, exact.getAnswers()[0].getIpBytes());
+
+        DNSAnswer otherType = zones.get(question("exact.wild.test.example", DNSRecord.TYPE_AAAA));
+        assertEquals(DNSAnswer.RCODE_NOERROR, otherType.getRcode()); // NODATA, the wildcard doesn't cover it
+        assertEquals(0, otherType.getAnswers().length);
+        assertEquals(DNSRecord.TYPE_SOA, otherType.getAuthorities()[0].getType());
+    }
+
+    @Test
+    void answersEmptyNonTerminalsWithNodata() {
+        for (String name : new String[] {"b.ent.test.example", "ent.test.example"}) {
+            DNSAnswer answer = zones.get(question(name, DNSRecord.TYPE_A));
+            assertEquals(DNSAnswer.RCODE_NOERROR, answer.getRcode(), name);
+            assertEquals(0, answer.getAnswers().length, name);
+            assertEquals(DNSRecord.TYPE_SOA, answer.getAuthorities()[0].getType(), name);
+        }
+        DNSAnswer below = zones.get(question("a.b.ent.test.example", DNSRecord.TYPE_A));
+        assertArrayEquals(new byte[] {10, 0, 0, 4}, below.getAnswers()[0].getIpBytes());
+    }
+
+    @Test
+    void answersMissingNamesWithNxdomain() {
+        for (String name : new String[] {"none.test.example", "c.ent.test.example", "x.www.test.example"}) {
+            DNSAnswer answer = zones.get(question(name, DNSRecord.TYPE_A));
+            assertEquals(DNSAnswer.RCODE_NXDOMAIN, answer.getRcode(), name);
+            assertEquals(DNSRecord.TYPE_SOA, answer.getAuthorities()[0].getType(), name);
+            assertEquals(60, answer.getAuthorities()[0].getTtl(), name); // the SOA MINIMUM
+        }
+        DNSQuestion outside = question("www.other.example", DNSRecord.TYPE_A);
+        assertNull(zones.get(outside));
+        assertEquals(0, zones.writeResponse(outside, 1, ByteBuffer.allocate(512)));
+    }
+
+    @Test
+    void followsCnameChains() {
+        DNSAnswer inside = zones.get(question("alias.test.example", DNSRecord.TYPE_A));
+        assertEquals(2, inside.getAnswers().length);
+        assertEquals(DNSRecord.TYPE_CNAME, inside.getAnswers()[0].getType());
+        assertArrayEquals(new byte[] {10, 0, 0, 1}, inside.getAnswers()[1].getIpBytes());
+        assertNull(inside.getChaseName());
+        DNSQuestion alias = question("alias.test.example", DNSRecord.TYPE_A);
+        assertTrue(zones.writeResponse(alias, 1, ByteBuffer.allocate(512)) > 0); // followed when the index was built
+
+        DNSAnswer leaving = zones.get(question("out.test.example", DNSRecord.TYPE_A));
+        assertEquals(1, leaving.getAnswers().length);
+        assertNotNull(leaving.getChaseName());
+        assertArrayEquals(name("www.elsewhere.example"), leaving.getChaseName());
+    }
+
+    /**
+     * @param name - dotted name
+     * @param type - question type
+     * @return - an IN question for the name
+     */
+    private static DNSQuestion question(String name, int type) {
+        return DNSQuestion.forName(name(name), type, 1);
+    }
+
+    /**
+     * @param name - dotted name
+     * @return - the name in uncompressed wire format
+     */
+    private static byte[] name(String name) {
+        ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            wire.put((byte) label.length()).put(label.getBytes());
+        }
+        wire.put((byte) 0);
+        return wire.array();
+    }
+}